@@ -6,4 +6,16 @@ public interface AbstractPatriciaTrie extends Iterable<String> {
     void addWord(String word);
     boolean contains(String word);
     List<String> search(String prefix);
+
+    /**
+     * Records that next may follow word, with a probability from 0 to 255. Tries which do
+     * not keep next-word data ignore it.
+     */
+    default void addBigram(String word, String next, int probability) {}
+
+    /**
+     * Records that word is a shortcut for target, with a probability from 0 to 255. Tries
+     * which do not keep shortcuts ignore it.
+     */
+    default void addShortcut(String word, String target, int probability) {}
 }
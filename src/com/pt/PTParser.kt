@@ -1,7 +1,9 @@
 package com.pt
 
-class PTParser(private val pt: AbstractPatriciaTrie) {
-    private val validator = PTValidator(pt)
+class PTParser(private val pt: AbstractPatriciaTrie, streaming: Boolean = false) {
+    private val validator = PTValidator(pt, streaming)
+    // The word the following bigram and shortcut lines belong to.
+    private var lastWord: String? = null
 
     fun feed(line: String) {
         if (line.startsWith("dictionary")) {
@@ -10,15 +12,34 @@ class PTParser(private val pt: AbstractPatriciaTrie) {
         }
 
         val l = line.trim()
+        // " bigram=<next word>,f=<probability>" and " shortcut=<target>,f=<probability>" lines
+        // follow the word they belong to.
+        if (l.startsWith("bigram=") || l.startsWith("shortcut=")) {
+            val word = lastWord ?: return
+            val fields = l.split(',')
+            val other = fields[0].substringAfter('=')
+            val probability = fields.firstOrNull { it.startsWith("f=") }?.substringAfter('=')?.toIntOrNull() ?: 0
+            if (l.startsWith("bigram=")) {
+                pt.addBigram(word, other, probability)
+            } else {
+                pt.addShortcut(word, other, probability)
+            }
+            return
+        }
         // only care word
         if (!l.startsWith("word")) {
             return
         }
         val word = line.split(',')[0].split('=')[1]
         validator.addWord(word)
+        lastWord = word
     }
 
     fun validate() {
         validator.validate()
     }
+
+    fun validate(sortedWords: Iterator<String>) {
+        validator.validate(sortedWords)
+    }
 }
\ No newline at end of file
@@ -1,14 +1,26 @@
 package com.pt
 
-class PTValidator(private val pt: AbstractPatriciaTrie) {
+/**
+ * Checks that a trie holds exactly the words fed to it.
+ *
+ * By default every word is also kept in a hash set, which doubles the memory of a load.
+ * In streaming mode nothing is kept: [validate] then takes the words again as a sorted
+ * source, and merges it with the sorted iteration of the trie in a single pass.
+ */
+class PTValidator(private val pt: AbstractPatriciaTrie, private val streaming: Boolean = false) {
     private val pool = HashSet<String>()
 
     fun addWord(word: String) {
-        pool.add(word)
+        if (!streaming) {
+            pool.add(word)
+        }
         pt.addWord(word)
     }
 
     fun validate() {
+        if (streaming) {
+            throw IllegalStateException("streaming validation needs the sorted words")
+        }
         for (word in pt) {
             if (!pool.contains(word)) {
                 throw RuntimeException("$word don't exist")
@@ -21,6 +33,41 @@ class PTValidator(private val pt: AbstractPatriciaTrie) {
         }
     }
 
+    /**
+     * Merges the trie iteration with sorted words, which may hold duplicates.
+     */
+    fun validate(sortedWords: Iterator<String>) {
+        val it = pt.iterator()
+        var word: String? = null
+        var previous: String? = null
+        var checked = 0
+        while (sortedWords.hasNext()) {
+            val expected = sortedWords.next()
+            if (previous != null) {
+                val cmp = previous.compareTo(expected)
+                if (cmp > 0) {
+                    throw RuntimeException("words not sorted: $expected after $previous")
+                }
+                if (cmp == 0) {
+                    continue
+                }
+            }
+            previous = expected
+            val last = word
+            word = if (it.hasNext()) it.next() else throw RuntimeException("$expected don't exist")
+            if (last != null && last >= word) {
+                throw RuntimeException("trie not sorted: $word after $last")
+            }
+            if (word != expected) {
+                throw RuntimeException(if (word < expected) "$word is not a word" else "$expected don't exist")
+            }
+            checked++
+        }
+        if (it.hasNext()) {
+            throw RuntimeException("${it.next()} is not a word, after $checked words")
+        }
+    }
+
 //    private fun dfs(current: StringBuilder, node: PatriciaTrie.PtNode) {
 //        val next = StringBuilder(current).append(node.mChars)
 //        if (node.isTerminal) {
@@ -0,0 +1,28 @@
+package com.pt.bench
+
+import java.io.BufferedReader
+import java.io.File
+import java.io.FileInputStream
+import java.io.InputStreamReader
+import kotlin.system.exitProcess
+
+/**
+ * Reads the words out of a combined word list, the same way [com.pt.PTParser] does.
+ */
+fun loadWordList(file: File = File("./en_wordlist.combined")): List<String> {
+    if (!file.exists()) {
+        println("can not find dictionary file ${file.name}")
+        exitProcess(1)
+    }
+    val words = ArrayList<String>()
+    BufferedReader(InputStreamReader(FileInputStream(file))).use { reader ->
+        var line = reader.readLine()
+        while (line != null) {
+            if (line.trim().startsWith("word")) {
+                words.add(line.split(',')[0].split('=')[1])
+            }
+            line = reader.readLine()
+        }
+    }
+    return words
+}
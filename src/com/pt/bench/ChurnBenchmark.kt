@@ -0,0 +1,35 @@
+package com.pt.bench
+
+import com.pt.compress.PatriciaTrie
+import kotlin.random.Random
+import kotlin.system.measureNanoTime
+import kotlin.system.measureTimeMillis
+
+// Alternating removeWord / addWord on a loaded trie, compared to rebuilding it from scratch.
+// The node count before and after shows whether the trie stays path-compressed under churn.
+fun main() {
+    val words = loadWordList()
+    val pt = PatriciaTrie()
+    val buildTime = measureTimeMillis {
+        for (word in words) {
+            pt.addWord(word)
+        }
+    }
+    val nodesBefore = PatriciaTrie.countPtNodes(pt.root.children)
+    println("build took $buildTime ms, words: ${words.size}, PtNodes: $nodesBefore")
+
+    val random = Random(42)
+    val rounds = 1_000_000
+    var removed = 0
+    val churnTime = measureNanoTime {
+        for (i in 0 until rounds) {
+            val word = words[random.nextInt(words.size)]
+            if (pt.removeWord(word)) removed++
+            pt.addWord(word)
+        }
+    }
+    val nodesAfter = PatriciaTrie.countPtNodes(pt.root.children)
+    println("churn: $rounds remove+add pairs in ${churnTime / 1_000_000} ms, " +
+            "${churnTime / (2L * rounds)} ns per operation, $removed removed")
+    println("PtNodes after churn: $nodesAfter (before: $nodesBefore)")
+}
@@ -0,0 +1,50 @@
+package com.pt.bench
+
+import com.pt.compress.BinaryPatriciaTrie
+import com.pt.compress.BlockCompressedDictBuffer
+import com.pt.compress.ByteArrayDictBuffer
+import com.pt.compress.PatriciaTrie
+import com.pt.compress.PatriciaTrieEncoder
+import java.io.File
+import kotlin.random.Random
+import kotlin.system.measureNanoTime
+
+// Size and lookup latency of the plain dictionary against block compressed ones, for a few
+// block sizes and cache sizes.
+fun main() {
+    val words = loadWordList()
+    val pt = PatriciaTrie()
+    for (word in words) {
+        pt.addWord(word)
+    }
+    val encoder = PatriciaTrieEncoder()
+    val plain = File("./wordlist.dict")
+    encoder.writeDictionary(plain, pt)
+    val queries = List(50_000) { words[Random(it).nextInt(words.size)] }
+
+    println("plain: ${plain.length()} bytes, contains ${measureContains(BinaryPatriciaTrie(plain), queries)} ns/op")
+    for (blockSize in intArrayOf(1024, 4096, 16384)) {
+        val file = File("./wordlist.$blockSize.cdict")
+        encoder.writeCompressedDictionary(file, pt, blockSize)
+        val bytes = file.readBytes()
+        for (cachedBlocks in intArrayOf(16, BlockCompressedDictBuffer.DEFAULT_CACHED_BLOCKS, 1024)) {
+            val buffer = BlockCompressedDictBuffer(ByteArrayDictBuffer(bytes, 0, bytes.size), cachedBlocks)
+            val latency = measureContains(BinaryPatriciaTrie(buffer, null), queries)
+            println("block $blockSize, cache $cachedBlocks/${buffer.blockCount} blocks: " +
+                    "${bytes.size} bytes (ratio ${"%.2f".format(plain.length().toDouble() / bytes.size)}), " +
+                    "contains $latency ns/op, ${buffer.blockMisses} block decompressions")
+        }
+        file.delete()
+    }
+}
+
+private fun measureContains(bpt: BinaryPatriciaTrie, queries: List<String>): Long {
+    // warm up, then measure
+    for (query in queries) bpt.contains(query)
+    val time = measureNanoTime {
+        for (query in queries) {
+            if (!bpt.contains(query)) throw RuntimeException("$query not found")
+        }
+    }
+    return time / queries.size
+}
@@ -0,0 +1,69 @@
+package com.pt.bench
+
+import com.pt.compress.BinaryPatriciaTrie
+import com.pt.compress.PatriciaTrie
+import com.pt.compress.PatriciaTrieEncoder
+import com.pt.compress.QueryMetrics
+import java.io.File
+import java.util.Random
+import kotlin.system.measureNanoTime
+
+// Long labels: URLs, whose PtNodes hold tens of chars once the shared hosts and paths are
+// factored out, and technical compounds made of 3 to 5 words. Times contains on hits, and
+// on misses differing in their last char, which compare the whole word before failing, and
+// building the in-memory trie, whose insertions compare the labels on the way down. Queries
+// encoded ahead are timed too, and the bytes of the dictionary each lookup reads give the
+// rate at which contains goes through the dictionary.
+fun main() {
+    val words = loadWordList()
+    val random = Random(19)
+    val hosts = List(200) { "https://www.${words[random.nextInt(words.size)]}.example.com/" }
+    val urls = List(100_000) {
+        hosts[random.nextInt(hosts.size)] + List(1 + random.nextInt(3)) { words[random.nextInt(words.size)] }.joinToString("/") +
+                (if (random.nextBoolean()) "/index.html" else "")
+    }.distinct()
+    val compounds = List(100_000) {
+        List(3 + random.nextInt(3)) { words[random.nextInt(words.size)] }.joinToString("")
+    }.distinct()
+    for ((name, keys) in listOf("urls" to urls, "compounds" to compounds)) {
+        var pt = PatriciaTrie()
+        val builds = List(5) {
+            measureNanoTime {
+                pt = PatriciaTrie()
+                for (key in keys) {
+                    pt.addWord(key)
+                }
+            }
+        }.sorted()
+        val dict = File("./wordlist.dict")
+        PatriciaTrieEncoder().writeDictionary(dict, pt)
+        val bpt = BinaryPatriciaTrie(dict)
+        val layout = bpt.layoutReport
+        println("%s: %d keys of %.1f chars, %.1f chars per PtNode".format(name, keys.size,
+                keys.sumBy { it.length }.toDouble() / keys.size,
+                layout.get("char_bytes") / 2.0 / layout.get("pt_nodes")))
+        println("  addWord %8.1f ns/key".format(builds[builds.size / 2].toDouble() / keys.size))
+        val hits = keys.shuffled(random).take(50_000)
+        val misses = hits.map { it.dropLast(1) + '~' }
+        check(hits.all { bpt.contains(it) } && misses.none { bpt.contains(it) })
+        val metrics = QueryMetrics()
+        val measured = BinaryPatriciaTrie(dict, metrics)
+        for ((kind, queries) in listOf("hits" to hits, "misses" to misses)) {
+            metrics.reset()
+            queries.forEach { measured.contains(it) }
+            val bytes = metrics.bytesTouched.toDouble() / queries.size
+            val encoded = queries.map { bpt.encodeQuery(it) }
+            val runs = listOf<Pair<String, () -> Int>>(
+                    "contains" to { queries.count { bpt.contains(it) } },
+                    "pre-encoded" to { encoded.count { bpt.contains(it) } })
+            for ((name, run) in runs) {
+                repeat(3) { run() }
+                var found = 0
+                val times = List(7) { measureNanoTime { found = run() } }.sorted()
+                val ns = times[times.size / 2].toDouble() / queries.size
+                println("  %-11s %-7s %6d found %8.1f ns/query %6.0f bytes/query %5.2f GB/s".format(
+                        name, kind, found, ns, bytes, bytes / ns))
+            }
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package com.pt.bench
+
+import com.pt.compress.BinaryPatriciaTrie
+import com.pt.compress.PatriciaTrie
+import com.pt.compress.PatriciaTrieEncoder
+import java.io.File
+
+// Heap footprint of the in-memory trie against the layout of its binary dictionary, plain
+// and block compressed. The JSON lines are meant to be diffed across word lists and builds.
+fun main() {
+    val pt = PatriciaTrie()
+    for (word in loadWordList()) {
+        pt.addWord(word)
+    }
+    val encoder = PatriciaTrieEncoder()
+    val plain = File("./wordlist.dict")
+    encoder.writeDictionary(plain, pt)
+    val compressed = File("./wordlist.cdict")
+    encoder.writeCompressedDictionary(compressed, pt)
+
+    val memory = pt.memoryReport
+    val layout = BinaryPatriciaTrie(plain).layoutReport
+    println(memory)
+    println(layout)
+    println("memory ${memory.toJson()}")
+    println("plain ${layout.toJson()}")
+    println("compressed ${BinaryPatriciaTrie(compressed).layoutReport.toJson()}, on disk ${compressed.length()}")
+}
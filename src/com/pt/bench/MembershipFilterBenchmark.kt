@@ -0,0 +1,65 @@
+package com.pt.bench
+
+import com.pt.compress.BinaryPatriciaTrie
+import com.pt.compress.EncoderUtils
+import com.pt.compress.MembershipFilter
+import com.pt.compress.PatriciaTrie
+import com.pt.compress.PatriciaTrieEncoder
+import java.io.File
+import java.util.Random
+import kotlin.system.measureNanoTime
+
+// Miss-heavy lookups, as when checking every token of a text: random junk tokens, and typos of
+// dictionary words, one char substituted, which share a long prefix with a word and so walk
+// deep into the trie before failing. Compares contains without a filter and with filters of
+// several sizes, reporting the measured false positive rate of each.
+fun main() {
+    val words = loadWordList()
+    val pt = PatriciaTrie()
+    for (word in words) {
+        pt.addWord(word)
+    }
+    val set = words.toHashSet()
+    val random = Random(17)
+    val junk = List(200_000) {
+        String(CharArray(3 + random.nextInt(10)) { 'a' + random.nextInt(26) })
+    }.filter { it !in set }
+    val typos = List(200_000) {
+        val chars = words[random.nextInt(words.size)].toCharArray()
+        chars[random.nextInt(chars.size)] = 'a' + random.nextInt(26)
+        String(chars)
+    }.filter { it !in set }
+    val hits = words.shuffled(random).take(100_000)
+
+    val dict = File("./wordlist.dict")
+    PatriciaTrieEncoder().writeDictionary(dict, pt)
+    val plainSize = dict.length()
+    val configs = listOf<Pair<String, Int>>("no filter" to 0,
+            "fpr 10%" to MembershipFilter.bitsPerKeyFor(0.1),
+            "fpr 1%" to MembershipFilter.bitsPerKeyFor(0.01),
+            "fpr 0.1%" to MembershipFilter.bitsPerKeyFor(0.001))
+    println("%-10s %5s %9s %7s %7s %10s %10s %10s".format(
+            "", "bits", "bytes", "fpr", "fpr", "junk", "typos", "hits"))
+    println("%-10s %5s %9s %7s %7s %10s %10s %10s".format(
+            "", "/key", "", "junk", "typos", "ns/query", "ns/query", "ns/query"))
+    for ((name, bitsPerKey) in configs) {
+        if (bitsPerKey == 0) {
+            PatriciaTrieEncoder().writeDictionary(dict, pt)
+        } else {
+            PatriciaTrieEncoder().writeDictionary(dict, pt, EncoderUtils.OPTION_MEMBERSHIP_FILTER, bitsPerKey)
+        }
+        val bpt = BinaryPatriciaTrie(dict)
+        val filter = bpt.membershipFilter
+        val fpr = { queries: List<String> ->
+            if (filter == null) 1.0 else queries.count { filter.mightContain(it.toCharArray()) }.toDouble() / queries.size
+        }
+        check(hits.all { bpt.contains(it) } && junk.none { bpt.contains(it) } && typos.none { bpt.contains(it) })
+        val time = { queries: List<String> ->
+            repeat(3) { queries.count { bpt.contains(it) } }
+            val times = List(7) { measureNanoTime { queries.count { bpt.contains(it) } } }.sorted()
+            times[times.size / 2].toDouble() / queries.size
+        }
+        println("%-10s %5d %9d %7.4f %7.4f %10.1f %10.1f %10.1f".format(name, bitsPerKey, dict.length() - plainSize,
+                fpr(junk), fpr(typos), time(junk), time(typos), time(hits)))
+    }
+}
@@ -0,0 +1,66 @@
+package com.pt.bench
+
+import com.pt.compress.BinaryPatriciaTrie
+import com.pt.compress.DictionaryMerger
+import com.pt.compress.PatriciaTrie
+import com.pt.compress.PatriciaTrieEncoder
+import java.io.File
+import java.io.OutputStream
+import java.io.PrintStream
+import java.util.Random
+import kotlin.system.measureNanoTime
+
+// Four per-domain dictionaries, each holding a random half of the word list, merged into
+// their union. Compares the streaming merge with decoding the inputs into a trie and
+// encoding it again, and with iterating the inputs only, which bounds what a merge reading
+// them can reach. Throughput is in MB of input dictionaries per second.
+fun main() {
+    val words = loadWordList()
+    val random = Random(23)
+    val quiet = PrintStream(OutputStream.nullOutputStream())
+    val stdout = System.out
+    val files = List(4) { domain ->
+        val pt = PatriciaTrie()
+        for (word in words) {
+            if (random.nextBoolean()) {
+                pt.addWord(word)
+            }
+        }
+        val file = File("./domain$domain.dict")
+        System.setOut(quiet)
+        PatriciaTrieEncoder().writeDictionary(file, pt)
+        System.setOut(stdout)
+        file
+    }
+    val megabytes = files.map { it.length() }.sum() / 1e6
+    val inputs = files.map { BinaryPatriciaTrie(it) }
+    val merged = File("./merged.dict")
+    val rebuilt = File("./rebuilt.dict")
+    val runs = listOf<Pair<String, () -> Unit>>(
+            "iterate inputs" to { inputs.sumBy { input -> input.count() } },
+            "streaming merge" to { DictionaryMerger.merge(inputs, merged, DictionaryMerger.UNION) },
+            "decode + rebuild" to {
+                val pt = PatriciaTrie()
+                val seen = HashSet<String>()
+                for (input in inputs) {
+                    for (word in input) {
+                        if (seen.add(word)) {
+                            pt.addWord(word)
+                        }
+                    }
+                }
+                System.setOut(quiet)
+                PatriciaTrieEncoder().writeDictionary(rebuilt, pt)
+                System.setOut(stdout)
+            })
+    for ((name, run) in runs) {
+        repeat(2) { run() }
+        val times = List(5) { measureNanoTime(run) / 1e9 }.sorted()
+        val time = times[times.size / 2]
+        println("%-18s %8.1f ms %8.1f MB/s".format(name, time * 1e3, megabytes / time))
+    }
+    check(merged.readBytes().contentEquals(rebuilt.readBytes())) { "the merged dictionaries differ" }
+    println("%d inputs of %.2f MB in all, %d words merged, same bytes either way".format(
+            files.size, megabytes, BinaryPatriciaTrie(merged).count()))
+    (files + merged + rebuilt).forEach { it.delete() }
+}
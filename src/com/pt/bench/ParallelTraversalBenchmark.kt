@@ -0,0 +1,49 @@
+package com.pt.bench
+
+import com.pt.compress.BinaryPatriciaTrie
+import com.pt.compress.PatriciaTrie
+import com.pt.compress.PatriciaTrieEncoder
+import java.io.File
+import java.util.concurrent.ForkJoinPool
+import java.util.stream.Collectors
+import kotlin.system.measureNanoTime
+
+// Exports every word, then every word under the largest first-char prefix, sequentially and
+// with 1 to N fork-join workers, through both searchParallel and a parallel stream.
+fun main() {
+    val words = loadWordList()
+    val pt = PatriciaTrie()
+    for (word in words) {
+        pt.addWord(word)
+    }
+    val dict = File("./wordlist.dict")
+    PatriciaTrieEncoder().writeDictionary(dict, pt)
+    val bpt = BinaryPatriciaTrie(dict)
+    val largest = words.groupingBy { it.substring(0, 1) }.eachCount().maxBy { it.value }!!.key
+    val cores = Runtime.getRuntime().availableProcessors()
+
+    for (prefix in listOf("", largest)) {
+        val expected = bpt.search(prefix).size
+        println("prefix \"$prefix\": $expected words, sequential search ${median { bpt.search(prefix) }} ms")
+        val steps = generateSequence(1) { it * 2 }.takeWhile { it < cores }.toList() + cores
+        for (parallelism in steps) {
+            val pool = ForkJoinPool(parallelism)
+            val search = median { check(bpt.searchParallel(prefix, pool).size == expected) }
+            val stream = median {
+                val list = pool.submit<List<String>> {
+                    java.util.stream.StreamSupport.stream(bpt.spliterator(prefix), true)
+                            .collect(Collectors.toList())
+                }.get()
+                check(list.size == expected)
+            }
+            println("  $parallelism workers: searchParallel $search ms, parallel stream $stream ms")
+            pool.shutdown()
+        }
+    }
+}
+
+private fun median(block: () -> Unit): Double {
+    repeat(5) { block() }
+    val times = List(15) { measureNanoTime(block) / 1e6 }.sorted()
+    return Math.round(times[times.size / 2] * 100) / 100.0
+}
@@ -0,0 +1,66 @@
+package com.pt.bench
+
+import com.pt.compress.BinaryPatriciaTrie
+import com.pt.compress.EncoderUtils
+import com.pt.compress.PatriciaTrie
+import com.pt.compress.PatriciaTrieEncoder
+import com.pt.compress.PatternMatcher
+import java.io.File
+import kotlin.system.measureNanoTime
+
+// Runs crossword and grep style patterns through searchPattern, which prunes the trie walk,
+// with and without a suffix index, and through a full scan of the dictionary matching every
+// word, with the same matcher and with the equivalent java.util.regex pattern.
+fun main() {
+    val words = loadWordList()
+    val pt = PatriciaTrie()
+    for (word in words) {
+        pt.addWord(word)
+    }
+    val dict = File("./wordlist.dict")
+    PatriciaTrieEncoder().writeDictionary(dict, pt)
+    val bpt = BinaryPatriciaTrie(dict)
+    val suffixDict = File("./wordlist.suffix.dict")
+    PatriciaTrieEncoder().writeDictionary(suffixDict, pt, EncoderUtils.OPTION_SUFFIX_INDEX)
+    val suffixBpt = BinaryPatriciaTrie(suffixDict)
+    println("suffix index: ${suffixBpt.layoutReport.get("suffix_index_bytes")} bytes " +
+            "over ${bpt.layoutReport.get("file_size")}")
+
+    val patterns = listOf("c?t", "th*", "[bc]at*", "*ing", "*tion", "?????", "s*[aeiou]?", "*q*", "[!a-m]*ly")
+    println("%-12s %8s %12s %12s %12s %12s".format("pattern", "matches", "trie ms", "suffix ms", "scan ms",
+            "regex ms"))
+    for (pattern in patterns) {
+        val matcher = PatternMatcher.compile(pattern)
+        val regex = Regex(globToRegex(pattern))
+        val expected = bpt.searchPattern(pattern)
+        check(expected == bpt.filter { matcher.matches(it) }) { "mismatch for $pattern" }
+        check(expected == bpt.filter { regex.matches(it) }) { "regex mismatch for $pattern" }
+        check(expected == suffixBpt.searchPattern(pattern)) { "suffix index mismatch for $pattern" }
+        val trie = median { bpt.searchPattern(pattern) }
+        val suffix = median { suffixBpt.searchPattern(pattern) }
+        val scan = median { bpt.filter { matcher.matches(it) } }
+        val scanRegex = median { bpt.filter { regex.matches(it) } }
+        println("%-12s %8d %12.3f %12.3f %12.3f %12.3f".format(pattern, expected.size, trie, suffix, scan,
+                scanRegex))
+    }
+}
+
+private fun globToRegex(pattern: String): String {
+    val sb = StringBuilder()
+    for (c in pattern) {
+        when (c) {
+            '?' -> sb.append('.')
+            '*' -> sb.append(".*")
+            '!' -> sb.append(if (sb.endsWith("[")) '^' else '!')
+            '[', ']', '-', '^' -> sb.append(c)
+            else -> sb.append(Regex.escape(c.toString()))
+        }
+    }
+    return sb.toString()
+}
+
+private fun median(block: () -> Unit): Double {
+    repeat(3) { block() }
+    val times = List(9) { measureNanoTime(block) / 1e6 }.sorted()
+    return times[times.size / 2]
+}
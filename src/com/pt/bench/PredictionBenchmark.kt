@@ -0,0 +1,54 @@
+package com.pt.bench
+
+import com.pt.compress.BinaryPatriciaTrie
+import com.pt.compress.PatriciaTrie
+import com.pt.compress.PatriciaTrieEncoder
+import java.io.File
+import java.util.Random
+import kotlin.system.measureNanoTime
+
+// The word list has no bigram lines, so every 4th word gets 1 to 24 random next words with
+// random probabilities. Reports what the bigrams cost in the dictionary, and the latency of
+// predictNext, which runs on every keystroke after a space.
+fun main() {
+    val words = loadWordList()
+    val pt = PatriciaTrie()
+    for (word in words) {
+        pt.addWord(word)
+    }
+    val dict = File("./wordlist.dict")
+    PatriciaTrieEncoder().writeDictionary(dict, pt)
+    val plainSize = dict.length()
+
+    val random = Random(11)
+    val expected = HashMap<String, List<String>>()
+    for (i in words.indices step 4) {
+        val next = HashMap<String, Int>()
+        repeat(1 + random.nextInt(24)) {
+            next[words[random.nextInt(words.size)]] = random.nextInt(256)
+        }
+        for ((word, probability) in next) {
+            pt.addBigram(words[i], word, probability)
+        }
+        expected[words[i]] = next.entries.sortedWith(compareBy({ -it.value }, { it.key })).map { it.key }
+    }
+    val encode = measureNanoTime { PatriciaTrieEncoder().writeDictionary(dict, pt) } / 1e6
+    val bpt = BinaryPatriciaTrie(dict)
+    println("structure: ${bpt.checkStructure()}")
+    val layout = bpt.layoutReport
+    println("%d bigrams in %d bytes, %.2f bytes each, dictionary %d -> %d bytes, encoded in %.1f ms".format(
+            layout.get("bigrams"), layout.get("bigram_bytes"),
+            layout.get("bigram_bytes").toDouble() / layout.get("bigrams"), plainSize, dict.length(), encode))
+
+    val queries = expected.keys.toList()
+    for ((word, next) in expected) {
+        check(bpt.predictNext(word, 3) == next.take(3)) { "mismatch for $word" }
+    }
+    for (k in listOf(1, 3, 10)) {
+        repeat(3) { for (word in queries) bpt.predictNext(word, k) }
+        val times = List(7) {
+            measureNanoTime { for (word in queries) bpt.predictNext(word, k) }
+        }.sorted()
+        println("predictNext k=%-3d %8.1f us/query".format(k, times[times.size / 2] / 1e3 / queries.size))
+    }
+}
@@ -0,0 +1,109 @@
+package com.pt.bench
+
+import com.pt.compress.PatriciaTrie
+import com.pt.compress.PatriciaTrieEncoder
+import com.pt.compress.ReloadableDictionary
+import java.io.File
+import java.io.OutputStream
+import java.io.PrintStream
+import java.nio.file.Files
+import java.nio.file.StandardCopyOption
+import java.util.Random
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.LongAdder
+
+// Threads looking up words of the list on a ReloadableDictionary, first alone, then while
+// another thread reloads the file every few milliseconds, alternating two versions of the
+// dictionary renamed over the served file, plus a truncated file now and then which must be
+// rejected. Every lookup must find its word, whichever generation serves it. Reports lookup
+// throughput, and the prepare, swap and drain latencies of the reloads.
+fun main() {
+    val words = loadWordList().distinct()
+    val quiet = PrintStream(OutputStream.nullOutputStream())
+    val stdout = System.out
+    // Both versions hold all the words, the second one some more.
+    val versions = List(2) { version ->
+        val pt = PatriciaTrie()
+        for (word in words) {
+            pt.addWord(word)
+        }
+        if (version == 1) {
+            for (word in words.take(10_000)) {
+                pt.addWord(word + "zq")
+            }
+        }
+        val file = File("./reload$version.dict")
+        System.setOut(quiet)
+        PatriciaTrieEncoder().writeDictionary(file, pt)
+        System.setOut(stdout)
+        file
+    }
+    val truncated = File("./reload.truncated.dict")
+    truncated.writeBytes(versions[0].readBytes().copyOf(versions[0].length().toInt() / 2))
+    val served = File("./reload.dict")
+    versions[0].copyTo(served, overwrite = true)
+
+    val threads = Runtime.getRuntime().availableProcessors().coerceIn(2, 8) - 1
+    ReloadableDictionary(served).use { dictionary ->
+        run(dictionary, words, threads, 1_000, false)
+        val (lookups, reloads) = run(dictionary, words, threads, 3_000, true)
+        println("%d threads, reloading every 5 ms:  %6.1f M lookups/s, %d reloads, %d rejected".format(
+                threads, lookups, reloads, dictionary.rejectedCount))
+        val (alone, _) = run(dictionary, words, threads, 3_000, false)
+        println("%d threads, no reload:             %6.1f M lookups/s".format(threads, alone))
+        println("prepare (ns) ${dictionary.prepareLatency}")
+        println("swap (ns)    ${dictionary.swapLatency}")
+        println("drain (ns)   ${dictionary.drainLatency}")
+        println("generation ${dictionary.generation}, ${dictionary.drainingCount} draining")
+    }
+    (versions + truncated + served).forEach { it.delete() }
+}
+
+// Returns the lookup throughput in millions per second, and the number of reloads.
+private fun run(dictionary: ReloadableDictionary, words: List<String>, threads: Int, millis: Long,
+                reload: Boolean): Pair<Double, Int> {
+    val done = AtomicBoolean(false)
+    val lookups = LongAdder()
+    val readers = List(threads) { thread ->
+        Thread {
+            val random = Random(thread.toLong())
+            while (!done.get()) {
+                dictionary.acquire().use { lease ->
+                    val trie = lease.get()
+                    for (i in 0 until 64) {
+                        val word = words[random.nextInt(words.size)]
+                        check(trie.contains(word)) { "$word not found in generation ${lease.generation}" }
+                    }
+                }
+                lookups.add(64)
+            }
+        }
+    }
+    readers.forEach { it.start() }
+    var reloads = 0
+    val start = System.nanoTime()
+    val deadline = start + millis * 1_000_000
+    while (System.nanoTime() < deadline) {
+        Thread.sleep(5)
+        if (!reload) {
+            continue
+        }
+        val next = File("./reload.next.dict")
+        if (reloads % 10 == 9) {
+            Files.copy(File("./reload.truncated.dict").toPath(), next.toPath(), StandardCopyOption.REPLACE_EXISTING)
+        } else {
+            Files.copy(File("./reload${reloads % 2}.dict").toPath(), next.toPath(), StandardCopyOption.REPLACE_EXISTING)
+        }
+        Files.move(next.toPath(), File("./reload.dict").toPath(), StandardCopyOption.ATOMIC_MOVE)
+        val generation = dictionary.generation
+        try {
+            dictionary.reload(File("./reload.dict"))
+        } catch (e: RuntimeException) {
+            check(dictionary.generation == generation) { "a rejected file was published" }
+        }
+        reloads++
+    }
+    done.set(true)
+    readers.forEach { it.join() }
+    return lookups.sum() / ((System.nanoTime() - start) / 1e9) / 1e6 to reloads
+}
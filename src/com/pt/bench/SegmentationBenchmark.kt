@@ -0,0 +1,71 @@
+package com.pt.bench
+
+import com.pt.compress.BinaryPatriciaTrie
+import com.pt.compress.PatriciaTrie
+import com.pt.compress.PatriciaTrieEncoder
+import java.io.File
+import java.lang.management.ManagementFactory
+import java.util.Random
+import kotlin.system.measureNanoTime
+
+// Segments a text made of concatenated dictionary words by greedy longest match, once with
+// contains on every candidate substring, and once with longestPrefixOf, on both tries.
+// Reports the time and the bytes allocated per segmented char.
+fun main() {
+    val words = loadWordList()
+    val pt = PatriciaTrie()
+    for (word in words) {
+        pt.addWord(word)
+    }
+    val dict = File("./wordlist.dict")
+    PatriciaTrieEncoder().writeDictionary(dict, pt)
+    val bpt = BinaryPatriciaTrie(dict)
+
+    val random = Random(42)
+    val sb = StringBuilder()
+    while (sb.length < 1_000_000) {
+        sb.append(words[random.nextInt(words.size)])
+    }
+    val text: CharSequence = sb
+
+    val maxLength = words.map { it.length }.max()!!
+    val runs = listOf<Pair<String, () -> Int>>(
+            "binary contains" to { segment(text) { offset -> longestByContains(bpt, text, offset, maxLength) } },
+            "binary longestPrefixOf" to { segment(text) { offset -> bpt.longestPrefixOf(text, offset) } },
+            "trie longestPrefixOf" to { segment(text) { offset -> pt.longestPrefixOf(text, offset) } })
+    for ((name, run) in runs) {
+        repeat(3) { run() }
+        var tokens = 0
+        val allocated = allocatedBytes()
+        val time = measureNanoTime { tokens = run() }
+        val bytes = allocatedBytes() - allocated
+        println("%-24s %8d tokens %8.1f ms %8.1f ns/char %8.1f bytes/char".format(name, tokens, time / 1e6,
+                time.toDouble() / text.length, bytes.toDouble() / text.length))
+    }
+}
+
+// Greedy segmentation: the longest word at each position, or a single char if none.
+private fun segment(text: CharSequence, longest: (Int) -> Int): Int {
+    var offset = 0
+    var tokens = 0
+    while (offset < text.length) {
+        val end = longest(offset)
+        offset = if (end > offset) end else offset + 1
+        tokens++
+    }
+    return tokens
+}
+
+private fun longestByContains(bpt: BinaryPatriciaTrie, text: CharSequence, offset: Int, maxLength: Int): Int {
+    for (end in minOf(text.length, offset + maxLength) downTo offset + 1) {
+        if (bpt.contains(text.subSequence(offset, end).toString())) {
+            return end
+        }
+    }
+    return -1
+}
+
+private fun allocatedBytes(): Long {
+    val bean = ManagementFactory.getThreadMXBean() as com.sun.management.ThreadMXBean
+    return bean.currentThreadAllocatedBytes
+}
@@ -0,0 +1,54 @@
+package com.pt.bench
+
+import com.pt.compress.BinaryPatriciaTrie
+import com.pt.compress.PatriciaTrie
+import com.pt.compress.PatriciaTrieEncoder
+import java.io.File
+import java.util.Random
+import kotlin.system.measureNanoTime
+
+// The word list has no shortcut lines, so every 8th word gets 1 to 3 targets made of 2 to 4
+// words, drawn from a set of phrases small enough for targets to repeat. Compares the pooled
+// targets with storing each target inline, and getShortcuts, a single walk, with contains
+// followed by a HashMap lookup.
+fun main() {
+    val words = loadWordList()
+    val pt = PatriciaTrie()
+    for (word in words) {
+        pt.addWord(word)
+    }
+    val random = Random(13)
+    val phrases = List(4000) { List(2 + random.nextInt(3)) { words[random.nextInt(words.size)] }.joinToString(" ") }
+    val aliases = HashMap<String, List<String>>()
+    for (i in words.indices step 8) {
+        val targets = List(1 + random.nextInt(3)) { phrases[random.nextInt(phrases.size)] }.distinct()
+        for (target in targets) {
+            pt.addShortcut(words[i], target, 255)
+        }
+        aliases[words[i]] = targets
+    }
+    val dict = File("./wordlist.dict")
+    PatriciaTrieEncoder().writeDictionary(dict, pt)
+    val bpt = BinaryPatriciaTrie(dict)
+    println("structure: ${bpt.checkStructure()}")
+    val layout = bpt.layoutReport
+    val inline = aliases.values.sumBy { targets -> targets.sumBy { 2 * it.length + 1 } }
+    println("%d shortcuts: %d entry bytes + %d pool bytes, against %d bytes inline".format(
+            layout.get("shortcuts"), layout.get("shortcut_bytes"), layout.get("shortcut_pool_bytes"), inline))
+
+    val queries = words.shuffled(random).take(50_000)
+    for (word in queries) {
+        check((bpt.getShortcuts(word) ?: emptyList<String>()).toSet() == (aliases[word] ?: emptyList()).toSet()) {
+            "mismatch for $word"
+        }
+    }
+    val runs = listOf<Pair<String, () -> Int>>(
+            "getShortcuts" to { queries.sumBy { bpt.getShortcuts(it)?.size ?: 0 } },
+            "contains + HashMap" to { queries.sumBy { if (bpt.contains(it)) aliases[it]?.size ?: 0 else 0 } })
+    for ((name, run) in runs) {
+        repeat(3) { run() }
+        var found = 0
+        val times = List(7) { measureNanoTime { found = run() } }.sorted()
+        println("%-20s %8d targets %8.1f ns/query".format(name, found, times[times.size / 2].toDouble() / queries.size))
+    }
+}
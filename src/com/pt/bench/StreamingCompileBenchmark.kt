@@ -0,0 +1,89 @@
+package com.pt.bench
+
+import com.pt.compress.PatriciaTrie
+import com.pt.compress.PatriciaTrieEncoder
+import com.pt.compress.StreamingDictionaryCompiler
+import java.io.File
+import java.io.OutputStream
+import java.io.PrintStream
+import java.lang.management.ManagementFactory
+import java.lang.management.MemoryType
+import kotlin.system.measureNanoTime
+
+// Compiles the word list with the object trie and the encoder, and with the streaming
+// compiler, checking that both write the same bytes, then streams lists made larger by
+// suffixing every word with 2 digits, which keeps them sorted. Reports the heap the
+// compilation holds once all the words are in, measured after a GC on top of the word
+// list, and the peak of the heap pools, garbage included, so run with a small -Xmx.
+fun main() {
+    val words = loadWordList().sorted()
+    val plain = File("./wordlist.dict")
+    val streamed = File("./wordlist.streamed.dict")
+
+    val quiet = PrintStream(OutputStream.nullOutputStream())
+    val stdout = System.out
+    var objectTime = 0.0
+    var objectHeld = 0L
+    val objectPeak = peakHeap {
+        val before = liveHeap()
+        objectTime = measureNanoTime {
+            val pt = PatriciaTrie()
+            for (word in words) {
+                pt.addWord(word)
+            }
+            objectHeld = liveHeap() - before
+            System.setOut(quiet)
+            PatriciaTrieEncoder().writeDictionary(plain, pt)
+            System.setOut(stdout)
+        } / 1e6
+    }
+    var streamTime = 0.0
+    var streamHeld = 0L
+    val streamPeak = peakHeap {
+        streamTime = measureNanoTime { streamHeld = compile(words.asSequence(), streamed) } / 1e6
+    }
+    check(plain.readBytes().contentEquals(streamed.readBytes())) { "the dictionaries differ" }
+    println("%d words, %d bytes, same bytes".format(words.size, plain.length()))
+    println("  object trie + encoder %8.0f ms  held %8.1f KB  peak heap %6.1f MB".format(
+            objectTime, objectHeld / 1e3, objectPeak / 1e6))
+    println("  streaming             %8.0f ms  held %8.1f KB  peak heap %6.1f MB".format(
+            streamTime, streamHeld / 1e3, streamPeak / 1e6))
+
+    // Past 16MB, the children addresses that need it take 4 bytes.
+    for (copies in listOf(10, 20, 40)) {
+        val sorted = words.asSequence().flatMap { word -> (0 until copies).asSequence().map { "%s%02d".format(word, it) } }
+        var time = 0.0
+        var held = 0L
+        val peak = peakHeap { time = measureNanoTime { held = compile(sorted, streamed) } / 1e6 }
+        println("%d words, %d bytes".format(words.size * copies, streamed.length()))
+        println("  streaming             %8.0f ms  held %8.1f KB  peak heap %6.1f MB".format(
+                time, held / 1e3, peak / 1e6))
+    }
+    streamed.delete()
+}
+
+// Returns the heap held by the compiler once all the words are in.
+private fun compile(words: Sequence<String>, output: File): Long {
+    val before = liveHeap()
+    StreamingDictionaryCompiler(output).use { compiler ->
+        for (word in words) {
+            compiler.add(word)
+        }
+        val held = liveHeap() - before
+        compiler.finish()
+        return held
+    }
+}
+
+private fun liveHeap(): Long {
+    System.gc()
+    return ManagementFactory.getMemoryMXBean().heapMemoryUsage.used
+}
+
+private fun peakHeap(run: () -> Unit): Long {
+    System.gc()
+    val pools = ManagementFactory.getMemoryPoolMXBeans().filter { it.type == MemoryType.HEAP }
+    pools.forEach { it.resetPeakUsage() }
+    run()
+    return pools.map { it.peakUsage.used }.sum()
+}
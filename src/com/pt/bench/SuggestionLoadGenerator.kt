@@ -0,0 +1,93 @@
+package com.pt.bench
+
+import com.pt.compress.BinaryPatriciaTrie
+import com.pt.compress.LatencyHistogram
+import com.pt.compress.PatriciaTrie
+import com.pt.compress.PatriciaTrieEncoder
+import com.pt.server.SuggestionServer
+import java.io.BufferedReader
+import java.io.File
+import java.io.InputStreamReader
+import java.io.OutputStreamWriter
+import java.net.InetAddress
+import java.net.Socket
+import kotlin.random.Random
+
+// Closed-loop load on a local SuggestionServer: each client connection sends one request,
+// waits for the answer, and sends the next. Reports p50/p99 latency per concurrency level,
+// with and without micro-batching. With "<port>" as argument, targets a running server.
+fun main(args: Array<String>) {
+    val words = loadWordList()
+    val requestsPerClient = 2_000
+    if (args.isNotEmpty()) {
+        for (clients in intArrayOf(1, 8, 32, 128)) {
+            println("$clients clients: ${runLoad(args[0].toInt(), words, clients, requestsPerClient)}")
+        }
+        return
+    }
+    val pt = PatriciaTrie()
+    for (word in words) {
+        pt.addWord(word)
+    }
+    val dict = File("./wordlist.dict")
+    PatriciaTrieEncoder().writeDictionary(dict, pt)
+    val bpt = BinaryPatriciaTrie(dict)
+
+    for ((name, options) in listOf(
+            "no batching" to SuggestionServer.Options().batchWindow(0).maxBatchSize(1),
+            "batching" to SuggestionServer.Options())) {
+        SuggestionServer(bpt, 0, options).use { server ->
+            for (clients in intArrayOf(1, 8, 32, 128)) {
+                val requests = server.requestCount
+                val batches = server.batchCount
+                val result = runLoad(server.port, words, clients, requestsPerClient)
+                val batchSize = (server.requestCount - requests).toDouble() / (server.batchCount - batches)
+                println("$name, $clients clients: $result, ${"%.1f".format(batchSize)} requests per batch")
+            }
+            // Reloading under load must not drop connections.
+            val reloader = Thread { repeat(20) { server.reload(BinaryPatriciaTrie(dict)); Thread.sleep(10) } }
+            reloader.start()
+            println("$name, 32 clients while reloading: ${runLoad(server.port, words, 32, requestsPerClient)}")
+            reloader.join()
+        }
+    }
+}
+
+private fun runLoad(port: Int, words: List<String>, clients: Int, requestsPerClient: Int): String {
+    val histogram = LatencyHistogram()
+    var errors = 0
+    val start = System.nanoTime()
+    val threads = List(clients) { client ->
+        Thread {
+            val random = Random(client)
+            Socket(InetAddress.getLoopbackAddress(), port).use { socket ->
+                socket.tcpNoDelay = true
+                val out = OutputStreamWriter(socket.getOutputStream(), Charsets.UTF_8)
+                val input = BufferedReader(InputStreamReader(socket.getInputStream(), Charsets.UTF_8))
+                repeat(requestsPerClient) {
+                    val word = words[random.nextInt(words.size)]
+                    val request = when (random.nextInt(3)) {
+                        0 -> "contains $word"
+                        1 -> "top 18 ${word.take(3)}"
+                        else -> "search ${word.take(5)}"
+                    }
+                    val t = System.nanoTime()
+                    out.write(request)
+                    out.write("\n")
+                    out.flush()
+                    val response = input.readLine()
+                    histogram.record(System.nanoTime() - t)
+                    if (response == null || !response.startsWith("OK")) {
+                        synchronized(histogram) { errors++ }
+                    }
+                }
+            }
+        }.apply { start() }
+    }
+    threads.forEach { it.join() }
+    val seconds = (System.nanoTime() - start) / 1e9
+    val snapshot = histogram.snapshot()
+    return "${(clients * requestsPerClient / seconds).toLong()} req/s, " +
+            "p50 ${snapshot.getValueAtPercentile(50.0) / 1000} us, " +
+            "p99 ${snapshot.getValueAtPercentile(99.0) / 1000} us, $errors errors"
+}
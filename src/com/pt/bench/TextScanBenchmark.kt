@@ -0,0 +1,63 @@
+package com.pt.bench
+
+import com.pt.compress.BinaryPatriciaTrie
+import com.pt.compress.PatriciaTrie
+import com.pt.compress.PatriciaTrieEncoder
+import com.pt.compress.TextScanner
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.File
+import java.io.StringReader
+import java.nio.CharBuffer
+import java.util.Random
+import kotlin.system.measureNanoTime
+
+// Finds all the dictionary words in a 16 MB text of words and spaces, with the Aho-Corasick
+// scanner over a CharBuffer and over a Reader, and with allPrefixesOf at every position of
+// the text. Reports the throughput in MB of text per second.
+fun main() {
+    val words = loadWordList()
+    val pt = PatriciaTrie()
+    for (word in words) {
+        pt.addWord(word)
+    }
+    val dict = File("./wordlist.dict")
+    PatriciaTrieEncoder().writeDictionary(dict, pt)
+    val bpt = BinaryPatriciaTrie(dict)
+
+    var scanner: TextScanner? = null
+    val compile = measureNanoTime { scanner = TextScanner.compile(bpt) } / 1e6
+    val sidecar = ByteArrayOutputStream()
+    scanner!!.writeTo(sidecar)
+    val load = measureNanoTime { scanner = TextScanner.readFrom(ByteArrayInputStream(sidecar.toByteArray())) } / 1e6
+    val ts = scanner!!
+    println("${ts.stateCount} states, compiled in %.1f ms, sidecar of %d bytes loaded in %.1f ms"
+            .format(compile, sidecar.size(), load))
+
+    val random = Random(7)
+    val sb = StringBuilder()
+    while (sb.length < 16_000_000) {
+        sb.append(words[random.nextInt(words.size)]).append(' ')
+    }
+    val text = sb.toString()
+    val megabytes = text.toByteArray(Charsets.UTF_8).size / 1e6
+
+    var matches = 0L
+    val ends = IntArray(64)
+    val runs = listOf<Pair<String, () -> Unit>>(
+            "scan CharBuffer" to { ts.scan(CharBuffer.wrap(text)) { _, _, _ -> matches++ } },
+            "scan Reader" to { ts.scan(StringReader(text)) { _, _, _ -> matches++ } },
+            "allPrefixesOf" to {
+                for (start in text.indices) {
+                    matches += bpt.allPrefixesOf(text, start, ends)
+                }
+            })
+    for ((name, run) in runs) {
+        run()
+        val times = List(5) {
+            matches = 0
+            measureNanoTime(run) / 1e9
+        }.sorted()
+        println("%-16s %10d matches %8.1f MB/s".format(name, matches, megabytes / times[times.size / 2]))
+    }
+}
@@ -3,19 +3,183 @@ package com.pt.compress;
 import com.pt.AbstractPatriciaTrie;
 
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 public class BinaryPatriciaTrie implements AbstractPatriciaTrie {
-    private byte[] data;
+    private static final int DEFAULT_STREAM_SIZE_HINT = 1 << 20;
+    // Order of the words of a folded dictionary: by key, then by surface form.
+    private static final Comparator<String> FOLDED_ORDER =
+            Comparator.comparing((String word) -> CharFolding.fold(word)).thenComparing(Comparator.naturalOrder());
+
+    private DictBuffer data;
     private int rootIndex;
+    // Keys are folded, see EncoderUtils.OPTION_FOLDED.
+    private boolean folded;
+    // Root of the trie of reversed words, or 0, see EncoderUtils.OPTION_SUFFIX_INDEX.
+    private int suffixIndex;
+    // Start of the shortcut targets, or 0, see EncoderUtils.OPTION_SHORTCUTS.
+    private int shortcutPool;
+    // null if the dictionary has none, see EncoderUtils.OPTION_MEMBERSHIP_FILTER.
+    private MembershipFilter membershipFilter;
+    // null when metrics are disabled
+    private final QueryMetrics metrics;
 
     public BinaryPatriciaTrie(File dictionary) throws IOException {
-        data = Files.readAllBytes(dictionary.toPath());
+        this(dictionary, null);
+    }
+
+    public BinaryPatriciaTrie(File dictionary, QueryMetrics metrics) throws IOException {
+        this.metrics = metrics;
+        final long start = metrics != null ? System.nanoTime() : 0;
+        final byte[] bytes = Files.readAllBytes(dictionary.toPath());
+        data = open(new ByteArrayDictBuffer(bytes, 0, bytes.length));
+        rootIndex = DecoderUtils.parseHeader(data);
+        folded = (DecoderUtils.readOptions(data) & EncoderUtils.OPTION_FOLDED) != 0;
+        suffixIndex = DecoderUtils.readSuffixIndexAddress(data);
+        shortcutPool = DecoderUtils.readShortcutPoolAddress(data);
+        final int filter = DecoderUtils.readMembershipFilterAddress(data);
+        membershipFilter = filter == 0 ? null : MembershipFilter.read(data, filter, rootIndex);
+        if (metrics != null) metrics.recordLoad(System.nanoTime() - start);
+    }
+
+    /**
+     * Reads the dictionary in place from the bytes between the position and the limit of the
+     * buffer, which may be direct, heap or memory-mapped. The buffer content must not change
+     * while the dictionary is in use.
+     */
+    public BinaryPatriciaTrie(ByteBuffer dictionary) {
+        this(dictionary, null);
+    }
+
+    public BinaryPatriciaTrie(ByteBuffer dictionary, QueryMetrics metrics) {
+        // Heap buffers are read through their array, which is cheaper than ByteBuffer.get.
+        this(dictionary.hasArray()
+                ? new ByteArrayDictBuffer(dictionary.array(),
+                        dictionary.arrayOffset() + dictionary.position(), dictionary.remaining())
+                : new ByteBufferDictBuffer(dictionary), metrics);
+    }
+
+    /**
+     * Reads the dictionary in place from a slice of an array.
+     */
+    public BinaryPatriciaTrie(byte[] dictionary, int offset, int length) {
+        this(new ByteArrayDictBuffer(dictionary, offset, length), null);
+    }
+
+    /**
+     * Reads the dictionary out of a DictBuffer. Block compressed dictionaries are decompressed
+     * on demand with a cache of {@link BlockCompressedDictBuffer#DEFAULT_CACHED_BLOCKS} blocks;
+     * pass a {@link BlockCompressedDictBuffer} directly to choose another cache size.
+     */
+    public BinaryPatriciaTrie(DictBuffer dictionary, QueryMetrics metrics) {
+        this.metrics = metrics;
+        final long start = metrics != null ? System.nanoTime() : 0;
+        data = open(dictionary);
         rootIndex = DecoderUtils.parseHeader(data);
+        folded = (DecoderUtils.readOptions(data) & EncoderUtils.OPTION_FOLDED) != 0;
+        suffixIndex = DecoderUtils.readSuffixIndexAddress(data);
+        shortcutPool = DecoderUtils.readShortcutPoolAddress(data);
+        final int filter = DecoderUtils.readMembershipFilterAddress(data);
+        membershipFilter = filter == 0 ? null : MembershipFilter.read(data, filter, rootIndex);
+        if (metrics != null) metrics.recordLoad(System.nanoTime() - start);
+    }
+
+    /**
+     * Reads a whole dictionary out of a stream. The stream is not closed.
+     *
+     * @param sizeHint the expected size of the dictionary, or 0 if unknown. A right guess
+     *                 makes the stream land directly in its final buffer.
+     */
+    public static BinaryPatriciaTrie fromStream(InputStream in, int sizeHint) throws IOException {
+        byte[] buffer = new byte[sizeHint > 0 ? sizeHint : DEFAULT_STREAM_SIZE_HINT];
+        int size = 0;
+        while (true) {
+            if (size == buffer.length) {
+                // Either the hint is exact, and the stream is over, or the buffer must grow.
+                final int next = in.read();
+                if (next < 0) {
+                    break;
+                }
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                buffer[size++] = (byte)next;
+            }
+            final int read = in.read(buffer, size, buffer.length - size);
+            if (read < 0) {
+                break;
+            }
+            size += read;
+        }
+        return new BinaryPatriciaTrie(buffer, 0, size);
+    }
+
+    /**
+     * Reads a dictionary shipped as a classpath resource, such as a file inside a jar.
+     */
+    public static BinaryPatriciaTrie fromResource(ClassLoader loader, String name) throws IOException {
+        final URL url = loader.getResource(name);
+        if (url == null) {
+            throw new FileNotFoundException("resource not found: " + name);
+        }
+        final URLConnection connection = url.openConnection();
+        try (InputStream in = connection.getInputStream()) {
+            return fromStream(in, (int)Math.max(0, connection.getContentLengthLong()));
+        }
+    }
+
+    private static DictBuffer open(DictBuffer raw) {
+        if (BlockCompressedDictBuffer.isBlockCompressed(raw)) {
+            return new BlockCompressedDictBuffer(raw, BlockCompressedDictBuffer.DEFAULT_CACHED_BLOCKS);
+        }
+        return raw;
+    }
+
+    /**
+     * @return true if lookups ignore case and diacritics, see
+     * {@link PatriciaTrieEncoder#writeFoldedDictionary}. Words then come out in the order of
+     * their folded keys.
+     */
+    public boolean isFolded() {
+        return folded;
+    }
+
+    /**
+     * @return true if the dictionary was written with a suffix index, see
+     * {@link EncoderUtils#OPTION_SUFFIX_INDEX}.
+     */
+    public boolean hasSuffixIndex() {
+        return suffixIndex != 0;
+    }
+
+    /**
+     * @return the filter contains consults before walking the trie, or null if the dictionary
+     * was written without, see {@link EncoderUtils#OPTION_MEMBERSHIP_FILTER}.
+     */
+    public MembershipFilter getMembershipFilter() {
+        return membershipFilter;
+    }
+
+    /**
+     * @return the metrics this dictionary reports to, or null if they are disabled.
+     */
+    public QueryMetrics getMetrics() {
+        return metrics;
     }
 
     @Override
@@ -23,37 +187,399 @@ public class BinaryPatriciaTrie implements AbstractPatriciaTrie {
 
     @Override
     public boolean contains(String word) {
-        StringBuilder sb = new StringBuilder();
-        int[] nodeIndex = DecoderUtils.contains(sb, data, rootIndex, word.toCharArray(), 0);
-        if (nodeIndex[0] == -1) {
+        if (metrics == null) {
+            return containsInner(word);
+        }
+        final long start = System.nanoTime();
+        final boolean res = containsInner(word);
+        metrics.recordContains(System.nanoTime() - start);
+        if (res) metrics.onResultsEmitted(1);
+        return res;
+    }
+
+    /**
+     * Looks up an encoded query, so that a query can be encoded once and looked up several
+     * times, or in several dictionaries of the same folding.
+     */
+    public boolean contains(EncodedQuery query) {
+        if (metrics == null) {
+            return containsInner(query);
+        }
+        final long start = System.nanoTime();
+        final boolean res = containsInner(query);
+        metrics.recordContains(System.nanoTime() - start);
+        if (res) metrics.onResultsEmitted(1);
+        return res;
+    }
+
+    /**
+     * Encodes a query for this dictionary, folded if it is, see {@link #contains(EncodedQuery)}.
+     */
+    public EncodedQuery encodeQuery(String word) {
+        final char[] chars = word.toCharArray();
+        if (folded) {
+            // In place: the query array is encoded as is.
+            CharFolding.foldInPlace(chars);
+        }
+        return new EncodedQuery(chars);
+    }
+
+    private boolean containsInner(String word) {
+        if (word.isEmpty()) {
             return false;
         }
-        if (nodeIndex[1] == 0) {
+        return containsInner(EncodedQuery.scratch(word, folded));
+    }
+
+    private boolean containsInner(EncodedQuery query) {
+        if (query.length() == 0) {
+            return false;
+        }
+        // Most misses stop here, without reading the trie.
+        if (membershipFilter != null && !membershipFilter.mightContain(query.getChars(), query.length())) {
             return false;
         }
-        return sb.toString().equals(word);
+        final int nodeStart = DecoderUtils.findPtNode(data, rootIndex, query, metrics);
+        return nodeStart != -1 && DecoderUtils.nodeIsTerminator((byte)data.readUnsignedByte(nodeStart));
+    }
+
+    /**
+     * Finds the longest word which is a prefix of text[offset..], in a single walk, without
+     * allocating. Meant for segmentation loops, so it does not report to the metrics.
+     *
+     * @return the end of the word in text, exclusive, or -1 if no word is a prefix.
+     */
+    public int longestPrefixOf(CharSequence text, int offset) {
+        return DecoderUtils.matchPrefixes(data, rootIndex, text, offset, folded, null);
+    }
+
+    /**
+     * Finds all the words which are prefixes of text[offset..], in a single walk, without
+     * allocating.
+     *
+     * @param ends receives the ends of the words in text, exclusive, shortest first, as many
+     *             as fit.
+     * @return the number of words found, which may be more than ends.length.
+     */
+    public int allPrefixesOf(CharSequence text, int offset, int[] ends) {
+        return DecoderUtils.matchPrefixes(data, rootIndex, text, offset, folded, ends);
     }
 
     @Override
     public List<String> search(String prefix) {
+        if (metrics == null) {
+            return searchInner(prefix);
+        }
+        final long start = System.nanoTime();
+        final List<String> res = searchInner(prefix);
+        metrics.recordSearch(System.nanoTime() - start);
+        metrics.onResultsEmitted(res.size());
+        return res;
+    }
+
+    private List<String> searchInner(String prefix) {
         StringBuilder sb = new StringBuilder();
-        int[] nodeIndex = DecoderUtils.contains(sb, data, rootIndex, prefix.toCharArray(), 0);
+        if (prefix.isEmpty()) {
+            ArrayList<String> res = new ArrayList<>();
+            DecoderUtils.traverse(data, rootIndex, sb, res, metrics);
+            return res;
+        }
+        final char[] chars = prefix.toCharArray();
+        if (folded) {
+            CharFolding.foldInPlace(chars);
+        }
+        int[] nodeIndex = DecoderUtils.contains(sb, data, rootIndex, chars, 0, metrics);
         if (nodeIndex[0] == -1) {
             return new ArrayList<>();
         }
         ArrayList<String> res = new ArrayList<>();
         if (nodeIndex[1] == 1) {
-            res.add(sb.toString());
+            DecoderUtils.addWords(res, DecoderUtils.readPtNode(data, nodeIndex[2]), sb, Integer.MAX_VALUE);
         }
         if (nodeIndex[0] == 0) {
             return res;
         }
-        DecoderUtils.traverse(data, nodeIndex[0], sb, res);
+        DecoderUtils.traverse(data, nodeIndex[0], sb, res, metrics);
+        return res;
+    }
+
+    /**
+     * Looks a word up and reads its shortcut targets in the same walk, such as
+     * "be right back" for "brb".
+     *
+     * @return the shortcut targets of the word, by decreasing probability, possibly none, or
+     * null if the word is not in the dictionary.
+     */
+    public List<String> getShortcuts(String word) {
+        if (metrics == null) {
+            return getShortcutsInner(word);
+        }
+        final long start = System.nanoTime();
+        final List<String> res = getShortcutsInner(word);
+        metrics.recordContains(System.nanoTime() - start);
+        if (res != null) metrics.onResultsEmitted(res.size());
+        return res;
+    }
+
+    private List<String> getShortcutsInner(String word) {
+        if (word.isEmpty()) {
+            return null;
+        }
+        final StringBuilder sb = new StringBuilder();
+        final char[] chars = word.toCharArray();
+        if (folded) {
+            CharFolding.foldInPlace(chars);
+        }
+        final int[] nodeIndex = DecoderUtils.contains(sb, data, rootIndex, chars, 0, metrics);
+        if (nodeIndex[0] == -1 || nodeIndex[1] == 0 || sb.length() != chars.length) {
+            return null;
+        }
+        final ArrayList<String> res = new ArrayList<>();
+        if ((data.readUnsignedByte(nodeIndex[2]) & DecoderUtils.NODE_FLAG_SHORTCUTS) != 0) {
+            DecoderUtils.readShortcuts(data, shortcutPool, DecoderUtils.readPtNode(data, nodeIndex[2]), res,
+                    Integer.MAX_VALUE);
+        }
+        return res;
+    }
+
+    /**
+     * Same as {@link #search}, up to limit words, but each word is mapped to its shortcut
+     * targets, read during the same traversal, so that typing "brb" can suggest
+     * "be right back". Words without shortcuts map to an empty list.
+     *
+     * @return the words in order, with their targets by decreasing probability.
+     */
+    public Map<String, List<String>> searchWithShortcuts(String prefix, int limit) {
+        final long start = metrics != null ? System.nanoTime() : 0;
+        final LinkedHashMap<String, List<String>> res = new LinkedHashMap<>();
+        if (limit > 0) {
+            final StringBuilder sb = new StringBuilder();
+            if (prefix.isEmpty()) {
+                DecoderUtils.traverseWithShortcuts(data, rootIndex, sb, res, limit, metrics, shortcutPool);
+            } else {
+                final char[] chars = prefix.toCharArray();
+                if (folded) {
+                    CharFolding.foldInPlace(chars);
+                }
+                final int[] nodeIndex = DecoderUtils.contains(sb, data, rootIndex, chars, 0, metrics);
+                if (nodeIndex[0] != -1) {
+                    if (nodeIndex[1] == 1) {
+                        final PtNodeInfo info = DecoderUtils.readPtNode(data, nodeIndex[2]);
+                        DecoderUtils.addWordsWithShortcuts(data, shortcutPool, res, info, sb, limit);
+                    }
+                    if (nodeIndex[0] != 0) {
+                        DecoderUtils.traverseWithShortcuts(data, nodeIndex[0], sb, res, limit, metrics, shortcutPool);
+                    }
+                }
+            }
+        }
+        if (metrics != null) {
+            metrics.recordSearch(System.nanoTime() - start);
+            metrics.onResultsEmitted(res.size());
+        }
+        return res;
+    }
+
+    /**
+     * @return up to k words which may follow the previous word, by decreasing probability, as
+     * recorded by {@link PatriciaTrie#addBigram}. Empty if the previous word is unknown or
+     * has no bigrams.
+     */
+    public List<String> predictNext(String previousWord, int k) {
+        if (metrics == null) {
+            return predictNextInner(previousWord, k);
+        }
+        final long start = System.nanoTime();
+        final List<String> res = predictNextInner(previousWord, k);
+        metrics.recordSearch(System.nanoTime() - start);
+        metrics.onResultsEmitted(res.size());
+        return res;
+    }
+
+    private List<String> predictNextInner(String previousWord, int k) {
+        final ArrayList<String> res = new ArrayList<>();
+        if (previousWord.isEmpty() || k <= 0) {
+            return res;
+        }
+        final StringBuilder sb = new StringBuilder();
+        final char[] chars = previousWord.toCharArray();
+        if (folded) {
+            CharFolding.foldInPlace(chars);
+        }
+        final int[] nodeIndex = DecoderUtils.contains(sb, data, rootIndex, chars, 0, metrics);
+        if (nodeIndex[0] == -1 || nodeIndex[1] == 0 || sb.length() != chars.length) {
+            return res;
+        }
+        DecoderUtils.readNextWords(data, rootIndex, nodeIndex[2], res, k);
         return res;
     }
 
+    /**
+     * @return the words matching a glob pattern such as "c?t", "*ing" or "[bc]at*", in order.
+     * In folded dictionaries, the pattern ignores case and diacritics as well.
+     * @throws IllegalArgumentException if the pattern is malformed, see {@link PatternMatcher}.
+     */
+    public List<String> searchPattern(String pattern) {
+        return searchPattern(pattern, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Same as {@link #searchPattern(String)}, but stops after the first limit words.
+     */
+    public List<String> searchPattern(String pattern, int limit) {
+        final PatternMatcher matcher = PatternMatcher.compile(pattern, folded);
+        if (metrics == null) {
+            return searchPatternInner(matcher, limit);
+        }
+        final long start = System.nanoTime();
+        final List<String> res = searchPatternInner(matcher, limit);
+        metrics.recordSearch(System.nanoTime() - start);
+        metrics.onResultsEmitted(res.size());
+        return res;
+    }
+
+    private List<String> searchPatternInner(PatternMatcher matcher, int limit) {
+        if (suffixIndex == 0 || !matcher.prefersSuffixIndex()) {
+            return matcher.search(data, rootIndex, limit, metrics);
+        }
+        // The suffix index yields the words in reversed order: all of them are needed to
+        // find the first ones in dictionary order.
+        final List<String> res = matcher.reversed().search(data, suffixIndex, Integer.MAX_VALUE, metrics);
+        reverseAll(res);
+        res.sort(folded ? FOLDED_ORDER : Comparator.naturalOrder());
+        return res.size() > limit ? new ArrayList<>(res.subList(0, limit)) : res;
+    }
+
+    /**
+     * @return up to limit words ending with the suffix, ordered by their reversed spelling,
+     * so that words sharing longer endings come together.
+     * @throws UnsupportedOperationException if the dictionary has no suffix index.
+     */
+    public List<String> searchSuffix(String suffix, int limit) {
+        if (suffixIndex == 0) {
+            throw new UnsupportedOperationException("no suffix index, see EncoderUtils.OPTION_SUFFIX_INDEX");
+        }
+        if (metrics == null) {
+            return searchSuffixInner(suffix, limit);
+        }
+        final long start = System.nanoTime();
+        final List<String> res = searchSuffixInner(suffix, limit);
+        metrics.recordSearch(System.nanoTime() - start);
+        metrics.onResultsEmitted(res.size());
+        return res;
+    }
+
+    private List<String> searchSuffixInner(String suffix, int limit) {
+        final ArrayList<String> res = new ArrayList<>();
+        if (limit <= 0) {
+            return res;
+        }
+        final StringBuilder sb = new StringBuilder();
+        final char[] chars = new StringBuilder(suffix).reverse().toString().toCharArray();
+        if (chars.length == 0) {
+            DecoderUtils.traverse(data, suffixIndex, sb, res, limit, metrics);
+            reverseAll(res);
+            return res;
+        }
+        if (folded) {
+            CharFolding.foldInPlace(chars);
+        }
+        final int[] nodeIndex = DecoderUtils.contains(sb, data, suffixIndex, chars, 0, metrics);
+        if (nodeIndex[0] == -1) {
+            return res;
+        }
+        if (nodeIndex[1] == 1) {
+            DecoderUtils.addWords(res, DecoderUtils.readPtNode(data, nodeIndex[2]), sb, limit);
+        }
+        if (nodeIndex[0] != 0) {
+            DecoderUtils.traverse(data, nodeIndex[0], sb, res, limit, metrics);
+        }
+        reverseAll(res);
+        return res;
+    }
+
+    private static void reverseAll(List<String> words) {
+        for (int i = 0; i < words.size(); i++) {
+            words.set(i, new StringBuilder(words.get(i)).reverse().toString());
+        }
+    }
+
+    /**
+     * Same as {@link #search}, but large subtrees are walked in parallel on the common
+     * fork-join pool.
+     */
+    public List<String> searchParallel(String prefix) {
+        return searchParallel(prefix, ForkJoinPool.commonPool());
+    }
+
+    public List<String> searchParallel(String prefix, ForkJoinPool pool) {
+        final long start = metrics != null ? System.nanoTime() : 0;
+        final ArrayList<String> res = new ArrayList<>();
+        for (ParallelTraversal.Piece piece : ParallelTraversal.ofPrefix(data, rootIndex, prefix, folded)) {
+            if (piece.isWord()) {
+                res.add(piece.mWord);
+            } else {
+                res.addAll(pool.invoke(new ParallelTraversal.SearchTask(data, piece,
+                        ParallelTraversal.DEFAULT_THRESHOLD)));
+            }
+        }
+        if (metrics != null) {
+            metrics.recordSearch(System.nanoTime() - start);
+            metrics.onResultsEmitted(res.size());
+        }
+        return res;
+    }
+
+    /**
+     * @return the words starting with the prefix, in order, splittable for parallel streams.
+     */
+    public Spliterator<String> spliterator(String prefix) {
+        return new ParallelTraversal.SubtreeSpliterator(data, ParallelTraversal.ofPrefix(data, rootIndex, prefix, folded),
+                ParallelTraversal.DEFAULT_THRESHOLD, !folded);
+    }
+
+    @Override
+    public Spliterator<String> spliterator() {
+        return spliterator("");
+    }
+
+    public Stream<String> stream() {
+        return StreamSupport.stream(spliterator(), false);
+    }
+
+    /**
+     * Checks the structure of the whole dictionary in parallel.
+     *
+     * @throws RuntimeException describing the first defect found.
+     */
+    public DictionaryChecker.Report checkStructure() {
+        final DictionaryChecker.Report report = DictionaryChecker.check(data, rootIndex, ForkJoinPool.commonPool());
+        if (suffixIndex != 0) {
+            final DictionaryChecker.Report suffixes = DictionaryChecker.check(data, suffixIndex, ForkJoinPool.commonPool());
+            if (suffixes.mWords != report.mWords) {
+                throw new RuntimeException("invalid dictionary: suffix index has " + suffixes.mWords
+                        + " words instead of " + report.mWords);
+            }
+        }
+        return report;
+    }
+
+    /**
+     * @return how the bytes of the dictionary are spent, per kind of field.
+     */
+    public LayoutReport getLayoutReport() {
+        return LayoutReport.ofDictionary(data, rootIndex);
+    }
+
+    /**
+     * Starts a new type-ahead session at the root of the dictionary.
+     */
+    public PrefixCursor newCursor() {
+        return new PrefixCursor(data, rootIndex, metrics, folded);
+    }
+
     @Override
     public Iterator<String> iterator() {
-        return null;
+        return new BinaryPatriciaTrieIterator(data, rootIndex, "");
     }
 }
@@ -0,0 +1,92 @@
+package com.pt.compress;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Lazy, in order iteration over the words of a binary dictionary.
+ *
+ * PtNodes of a node array are sorted by their first char, so a depth first walk yields the
+ * words in lexicographic order. Only the stack of node arrays on the way to the current
+ * word is kept in memory.
+ */
+public class BinaryPatriciaTrieIterator implements Iterator<String> {
+    private static final class Position {
+        public int address;
+        public int remaining;
+        public int length;
+        public Position(DictBuffer buffer, int nodeArrayAddress, int prefixLength) {
+            final int[] nc = DecoderUtils.readPtNodeCount(buffer, nodeArrayAddress);
+            remaining = nc[0];
+            address = nc[1];
+            length = prefixLength;
+        }
+    }
+    final DictBuffer mBuffer;
+    final StringBuilder mCurrentString;
+    final ArrayDeque<Position> mPositions;
+    String mNext;
+    // Surface forms of the last terminal not returned yet, in folded dictionaries.
+    String[] mSurfaceForms;
+    int mSurfaceFormIndex;
+
+    /**
+     * @param buffer the dictionary buffer.
+     * @param nodeArrayAddress the node array to start from.
+     * @param prefix the chars leading to this node array, prepended to every word.
+     */
+    public BinaryPatriciaTrieIterator(DictBuffer buffer, int nodeArrayAddress, CharSequence prefix) {
+        mBuffer = buffer;
+        mCurrentString = new StringBuilder(prefix);
+        mPositions = new ArrayDeque<>();
+        mPositions.addLast(new Position(buffer, nodeArrayAddress, prefix.length()));
+        mNext = fetchNext();
+    }
+
+    @Override
+    public boolean hasNext() {
+        return mNext != null;
+    }
+
+    @Override
+    public String next() {
+        if (mNext == null) {
+            throw new NoSuchElementException();
+        }
+        final String res = mNext;
+        mNext = fetchNext();
+        return res;
+    }
+
+    private String fetchNext() {
+        if (mSurfaceForms != null && mSurfaceFormIndex < mSurfaceForms.length) {
+            return mSurfaceForms[mSurfaceFormIndex++];
+        }
+        mSurfaceForms = null;
+        while (!mPositions.isEmpty()) {
+            final Position currentPos = mPositions.getLast();
+            if (currentPos.remaining == 0) {
+                mPositions.removeLast();
+                continue;
+            }
+            final PtNodeInfo info = DecoderUtils.readPtNode(mBuffer, currentPos.address);
+            currentPos.address = info.mEndAddress;
+            currentPos.remaining--;
+            mCurrentString.setLength(currentPos.length);
+            mCurrentString.append(info.mCharacters);
+            if (info.hasChildren()) {
+                mPositions.addLast(new Position(mBuffer, info.mChildrenAddress, mCurrentString.length()));
+            }
+            if (info.isTerminal()) {
+                if (info.mSurfaceForms != null) {
+                    mSurfaceForms = info.mSurfaceForms;
+                    mSurfaceFormIndex = 1;
+                    return mSurfaceForms[0];
+                }
+                return mCurrentString.toString();
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,160 @@
+package com.pt.compress;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.pt.compress.DecoderUtils.readInt;
+import static com.pt.compress.DecoderUtils.readUnsignedShort;
+import static com.pt.compress.EncoderUtils.*;
+
+/**
+ * A {@link DictBuffer} over a block compressed dictionary, as written by
+ * {@link EncoderUtils#writeBlockCompressedDictionary}.
+ *
+ * Reads see the uncompressed dictionary. Blocks are decompressed on first access and kept in
+ * a bounded LRU cache of hot blocks. Consecutive reads mostly hit the same block, so the last
+ * block read is also kept aside, which spares the cache lookup for most bytes.
+ */
+public final class BlockCompressedDictBuffer implements DictBuffer {
+    private static final int BLOCK_HEADER_SIZE = 24;
+    private static final VarHandle LONGS = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+    public static final int DEFAULT_CACHED_BLOCKS = 64;
+
+    private static final class Block {
+        final int mIndex;
+        final byte[] mBytes;
+
+        Block(int index, byte[] bytes) {
+            mIndex = index;
+            mBytes = bytes;
+        }
+    }
+
+    private final DictBuffer mCompressed;
+    private final int mLength;
+    private final int mBlockSize;
+    private final int mBlockShift;
+    private final int[] mOffsets;
+    private final Map<Integer, Block> mCache;
+    // Not volatile: a Block only has final fields, so a thread seeing a stale or a fresh
+    // one always sees it whole, and at worst takes the slow path.
+    private Block mLastBlock;
+    private final LongAdder mMisses = new LongAdder();
+
+    /**
+     * @param compressed the block compressed file.
+     * @param cachedBlocks the maximum number of decompressed blocks kept in memory.
+     */
+    public BlockCompressedDictBuffer(DictBuffer compressed, int cachedBlocks) {
+        if (!isBlockCompressed(compressed)) {
+            throw new RuntimeException("not a block compressed dictionary");
+        }
+        mCompressed = compressed;
+        final int headerSize = readInt(compressed, DecoderUtils.HEADER_SIZE_POS);
+        mLength = readInt(compressed, 12);
+        mBlockSize = readInt(compressed, 16);
+        final int blockCount = readInt(compressed, 20);
+        mBlockShift = Integer.numberOfTrailingZeros(mBlockSize);
+        if (mBlockSize <= 0 || Integer.bitCount(mBlockSize) != 1 || blockCount < 0
+                || (long)blockCount * mBlockSize < mLength
+                || headerSize != BLOCK_HEADER_SIZE + (blockCount + 1) * 4
+                || headerSize > compressed.limit()) {
+            throw new RuntimeException("invalid block compressed header");
+        }
+        mOffsets = new int[blockCount + 1];
+        for (int i = 0; i <= blockCount; i++) {
+            mOffsets[i] = readInt(compressed, BLOCK_HEADER_SIZE + 4 * i);
+            if (mOffsets[i] < headerSize || mOffsets[i] > compressed.limit()
+                    || (i > 0 && mOffsets[i] < mOffsets[i - 1])) {
+                throw new RuntimeException("invalid block offset " + mOffsets[i] + " for block " + i);
+            }
+        }
+        mCache = new LinkedHashMap<Integer, Block>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, Block> eldest) {
+                return size() > cachedBlocks;
+            }
+        };
+        mLastBlock = new Block(-1, null);
+    }
+
+    public static boolean isBlockCompressed(DictBuffer buffer) {
+        return buffer.limit() >= BLOCK_HEADER_SIZE
+                && readInt(buffer, 0) == MAGIC_NUMBER
+                && (readUnsignedShort(buffer, 6) & OPTION_BLOCK_COMPRESSED) != 0;
+    }
+
+    @Override
+    public int readUnsignedByte(int position) {
+        final int index = position >>> mBlockShift;
+        Block block = mLastBlock;
+        if (block.mIndex != index) {
+            block = getBlock(index);
+            mLastBlock = block;
+        }
+        return block.mBytes[position & (mBlockSize - 1)] & 0xFF;
+    }
+
+    @Override
+    public long readLong(int position) {
+        final int offset = position & (mBlockSize - 1);
+        if (offset > mBlockSize - 8) {
+            // Across two blocks.
+            return DictBuffer.super.readLong(position);
+        }
+        final int index = position >>> mBlockShift;
+        Block block = mLastBlock;
+        if (block.mIndex != index) {
+            block = getBlock(index);
+            mLastBlock = block;
+        }
+        return (long)LONGS.get(block.mBytes, offset);
+    }
+
+    @Override
+    public int limit() {
+        return mLength;
+    }
+
+    public int getBlockCount() {
+        return mOffsets.length - 1;
+    }
+
+    /**
+     * @return how many times a block had to be decompressed.
+     */
+    public long getBlockMisses() {
+        return mMisses.sum();
+    }
+
+    private Block getBlock(int index) {
+        synchronized (mCache) {
+            final Block block = mCache.get(index);
+            if (block != null) {
+                return block;
+            }
+        }
+        // Decompress out of the lock; two threads missing the same block both decompress it,
+        // which is harmless.
+        mMisses.increment();
+        final int start = mOffsets[index];
+        final byte[] compressed = new byte[mOffsets[index + 1] - start];
+        for (int i = 0; i < compressed.length; i++) {
+            compressed[i] = (byte)mCompressed.readUnsignedByte(start + i);
+        }
+        final int expected = Math.min(mBlockSize, mLength - index * mBlockSize);
+        final byte[] bytes = new byte[expected];
+        if (Lz4Codec.decompress(compressed, 0, compressed.length, bytes) != expected) {
+            throw new RuntimeException("corrupted block " + index);
+        }
+        final Block block = new Block(index, bytes);
+        synchronized (mCache) {
+            mCache.put(index, block);
+        }
+        return block;
+    }
+}
@@ -0,0 +1,44 @@
+package com.pt.compress;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+
+/**
+ * A {@link DictBuffer} reading a slice of an array in place.
+ */
+public final class ByteArrayDictBuffer implements DictBuffer {
+    private static final VarHandle LONGS = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
+    private final byte[] mBuffer;
+    private final int mOffset;
+    private final int mLength;
+
+    public ByteArrayDictBuffer(byte[] buffer, int offset, int length) {
+        if (offset < 0 || length < 0 || offset + length > buffer.length) {
+            throw new IndexOutOfBoundsException("slice " + offset + "+" + length
+                    + " out of an array of " + buffer.length);
+        }
+        mBuffer = buffer;
+        mOffset = offset;
+        mLength = length;
+    }
+
+    @Override
+    public int readUnsignedByte(int position) {
+        return mBuffer[mOffset + position] & 0xFF;
+    }
+
+    @Override
+    public long readLong(int position) {
+        if (position < 0 || position > mLength - 8) {
+            throw new IndexOutOfBoundsException("long at " + position + " out of " + mLength + " bytes");
+        }
+        return (long)LONGS.get(mBuffer, mOffset + position);
+    }
+
+    @Override
+    public int limit() {
+        return mLength;
+    }
+}
@@ -0,0 +1,35 @@
+package com.pt.compress;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A {@link DictBuffer} reading a ByteBuffer in place, whether it is a heap buffer, a direct
+ * buffer or a memory-mapped file.
+ */
+public final class ByteBufferDictBuffer implements DictBuffer {
+    private final ByteBuffer mBuffer;
+
+    /**
+     * Wraps the bytes between the position and the limit of the buffer. The buffer itself is
+     * not modified, and its content is not copied.
+     */
+    public ByteBufferDictBuffer(ByteBuffer buffer) {
+        mBuffer = buffer.slice();
+    }
+
+    @Override
+    public int readUnsignedByte(int position) {
+        return mBuffer.get(position) & 0xFF;
+    }
+
+    @Override
+    public long readLong(int position) {
+        // The slice is big-endian whatever the order of the wrapped buffer.
+        return mBuffer.getLong(position);
+    }
+
+    @Override
+    public int limit() {
+        return mBuffer.limit();
+    }
+}
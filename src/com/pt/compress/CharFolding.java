@@ -0,0 +1,46 @@
+package com.pt.compress;
+
+import java.text.Normalizer;
+
+/**
+ * Case and diacritic folding of single chars, as used by folded dictionaries.
+ *
+ * A char folds to the lower case of its base letter: E acute and e acute fold to 'e', C cedilla
+ * to 'c'.
+ * Folding is one char to one char, so a folded key has the length of its word, and a query
+ * can be folded in place. Letters without a decomposition, like sharp s, o slash or ae, are
+ * only lower-cased, and input is expected composed (NFC): a combining mark stays as it is.
+ */
+public final class CharFolding {
+    // Latin, Greek, Cyrillic, and Latin Extended Additional, which hold nearly all the
+    // precomposed letters; anything above is only lower-cased.
+    private static final int TABLE_SIZE = 0x2000;
+    private static final char[] TABLE = new char[TABLE_SIZE];
+
+    static {
+        for (int c = 0; c < TABLE_SIZE; c++) {
+            final String decomposed = Normalizer.normalize(String.valueOf((char)c), Normalizer.Form.NFD);
+            TABLE[c] = Character.toLowerCase(decomposed.charAt(0));
+        }
+    }
+
+    private CharFolding() {}
+
+    public static char fold(char c) {
+        return c < TABLE_SIZE ? TABLE[c] : Character.toLowerCase(c);
+    }
+
+    public static void foldInPlace(char[] chars) {
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = fold(chars[i]);
+        }
+    }
+
+    public static String fold(CharSequence word) {
+        final char[] chars = new char[word.length()];
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = fold(word.charAt(i));
+        }
+        return new String(chars);
+    }
+}
@@ -1,89 +1,323 @@
 package com.pt.compress;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 
 import static com.pt.compress.EncoderUtils.*;
 
 public class DecoderUtils {
-    public static int ROOT_POS = 12;
+    // magic number, version, options and header size
+    public static final int MIN_HEADER_SIZE = 12;
+    public static final int HEADER_SIZE_POS = 8;
     public static int NODE_FLAG_ADDR_TYPE = 0xC0;
     public static int NODE_FLAG_MULTI_CHAR = 0x20;
     public static int NODE_FLAG_TERMINAL = 0x10;
+    public static int NODE_FLAG_SHORTCUTS = 0x08;
+    public static int NODE_FLAG_BIGRAMS = 0x04;
+    public static int NODE_FLAG_WIDE_ADDRESS = 0x02;
+    public static int NODE_FLAG_SURFACE_FORMS = 0x01;
+    public static final int OPTIONS_POS = 6;
 
-    public static int parseHeader(byte[] buffer) {
-        if (buffer[0] != (byte)(0xFF & (MAGIC_NUMBER >> 24)) ||
-            buffer[1] != (byte)(0xFF & (MAGIC_NUMBER >> 16)) ||
-            buffer[2] != (byte)(0xFF & (MAGIC_NUMBER >> 8)) ||
-            buffer[3] != (byte)(0xFF & MAGIC_NUMBER)) {
+    /**
+     * Checks the header of a dictionary.
+     *
+     * @return the size of the header, which is also the position of the root node array.
+     */
+    public static int parseHeader(DictBuffer buffer) {
+        if (buffer.limit() < MIN_HEADER_SIZE || readInt(buffer, 0) != MAGIC_NUMBER) {
             throw new RuntimeException("invalid header format");
         }
-        return ROOT_POS;
+        final int version = readUnsignedShort(buffer, 4);
+        if (version != VERSION && version != VERSION_WIDE_ADDRESSES) {
+            throw new RuntimeException("unsupported dictionary version " + version);
+        }
+        final int headerSize = readInt(buffer, HEADER_SIZE_POS);
+        // The root node array holds at least its PtNode count.
+        if (headerSize < MIN_HEADER_SIZE || headerSize >= buffer.limit()) {
+            throw new RuntimeException("invalid header size " + headerSize
+                    + " for a dictionary of " + buffer.limit() + " bytes");
+        }
+        return headerSize;
+    }
+
+    public static int readOptions(DictBuffer buffer) {
+        return readUnsignedShort(buffer, OPTIONS_POS);
+    }
+
+    /**
+     * @return the position of the root node array of the suffix index, or 0 if the
+     * dictionary has none.
+     */
+    public static int readSuffixIndexAddress(DictBuffer buffer) {
+        if ((readOptions(buffer) & OPTION_SUFFIX_INDEX) == 0) {
+            return 0;
+        }
+        final int address = readInt(buffer, MIN_HEADER_SIZE);
+        if (address < MIN_HEADER_SIZE + SUFFIX_INDEX_ADDRESS_SIZE || address >= buffer.limit()) {
+            throw new RuntimeException("invalid suffix index address " + address
+                    + " for a dictionary of " + buffer.limit() + " bytes");
+        }
+        return address;
     }
 
-    public static int[] contains(StringBuilder sb, byte[] buffer, int bp, char[] chars, int cp) {
+    /**
+     * @return the position of the shortcut pool, or 0 if the dictionary has none.
+     */
+    public static int readShortcutPoolAddress(DictBuffer buffer) {
+        final int options = readOptions(buffer);
+        if ((options & OPTION_SHORTCUTS) == 0) {
+            return 0;
+        }
+        final int field = MIN_HEADER_SIZE + ((options & OPTION_SUFFIX_INDEX) != 0 ? SUFFIX_INDEX_ADDRESS_SIZE : 0);
+        final int address = readInt(buffer, field);
+        if (address < field + SHORTCUT_POOL_ADDRESS_SIZE || address > buffer.limit()) {
+            throw new RuntimeException("invalid shortcut pool address " + address
+                    + " for a dictionary of " + buffer.limit() + " bytes");
+        }
+        return address;
+    }
+
+    /**
+     * @return the position of the membership filter, or 0 if the dictionary has none.
+     */
+    public static int readMembershipFilterAddress(DictBuffer buffer) {
+        final int options = readOptions(buffer);
+        if ((options & OPTION_MEMBERSHIP_FILTER) == 0) {
+            return 0;
+        }
+        return MIN_HEADER_SIZE + ((options & OPTION_SUFFIX_INDEX) != 0 ? SUFFIX_INDEX_ADDRESS_SIZE : 0)
+                + ((options & OPTION_SHORTCUTS) != 0 ? SHORTCUT_POOL_ADDRESS_SIZE : 0);
+    }
+
+    public static int[] contains(StringBuilder sb, DictBuffer buffer, int bp, char[] chars, int cp) {
+        return contains(sb, buffer, bp, chars, cp, null);
+    }
+
+    public static int[] contains(StringBuilder sb, DictBuffer buffer, int bp, char[] chars, int cp,
+                                 QueryMetrics metrics) {
+        return contains(sb, buffer, bp, EncodedQuery.scratch(chars), cp, metrics);
+    }
+
+    /**
+     * Matches query[cp..] from the node array at bp, comparing the bytes of the labels with
+     * those of the query in place. Only the chars the key gets past the end of the query, if
+     * it ends inside a label, are decoded.
+     */
+    public static int[] contains(StringBuilder sb, DictBuffer buffer, int bp, EncodedQuery query, int cp,
+                                 QueryMetrics metrics) {
         int[] nc = DecoderUtils.readPtNodeCount(buffer, bp);
         int count = nc[0], pos = nc[1];
+        if (metrics != null) metrics.onNodeArrayRead(pos - bp);
         for (int i = 0; i < count; i++) {
             // parse ptnode
-            byte flag = buffer[pos++];
-            // parse chars
-            String pts;
-            if (!nodeMultipleChars(flag)) {
-                char c = (char)(readUnsignedShort(buffer, pos));
-                pos += 2;
-                pts = String.valueOf(c);
-            } else {
-                String[] t = readString(buffer, pos);
-                pos = Integer.parseInt(t[1]);
-                pts = t[0];
-            }
-            // address
-            int childAddrSize = (flag & NODE_FLAG_ADDR_TYPE)>>6;
-            if (pts.charAt(0) != chars[cp]) {
-                pos += childAddrSize;
+            final int nodeStart = pos;
+            byte flag = (byte)buffer.readUnsignedByte(pos++);
+            int childAddrSize = childrenAddressSize(flag);
+            if (!query.charMatches(buffer, pos, cp)) {
+                pos = skipCharacters(buffer, pos, flag);
+                if (metrics != null) metrics.onPtNodeDecoded(pos + childAddrSize - nodeStart);
+                pos = skipAttributes(buffer, pos + childAddrSize, flag);
                 continue;
             }
 
-            // should return childAddr
+            // should return childAddr, and where the PtNode starts for its surface forms
             int term = nodeIsTerminator(flag) ? 1 : 0;
 
-            int childAddr = nodeChildrenAddressSize(buffer, pos, flag);
-            int ptci = 0;
-            while (cp < chars.length && ptci < pts.length() && pts.charAt(ptci) == chars[cp]) {
-                ptci++;
-                cp++;
+            int matched = 1;
+            if (nodeMultipleChars(flag) && cp + 1 < query.length()) {
+                matched += query.matchLabel(buffer, pos + 2, cp + 1);
             }
-            if (ptci < pts.length()) {
-                if (cp < chars.length) {
+            query.appendTo(sb, cp, cp + matched);
+            cp += matched;
+            int end = pos + 2 * matched;
+            if (nodeMultipleChars(flag)) {
+                if (cp < query.length() && readUnsignedByte(buffer, end) != PTNODE_CHARACTERS_TERMINATOR) {
+                    if (metrics != null) metrics.onPtNodeDecoded(end + 2 - nodeStart);
                     return new int[]{-1, 0};
-                } else {
-                    // cp == chars.length
-                    sb.append(pts);
-                    return new int[]{childAddr, term};
                 }
+                // A word ending inside the label is returned with the whole label.
+                while (readUnsignedByte(buffer, end) != PTNODE_CHARACTERS_TERMINATOR) {
+                    sb.append((char)readUnsignedShort(buffer, end));
+                    end += 2;
+                }
+                end++;
             }
-            // ptci == pts.length
-            sb.append(pts);
-            if (cp == chars.length) {
-                return new int[]{childAddr, term};
+            if (metrics != null) metrics.onPtNodeDecoded(end + childAddrSize - nodeStart);
+            int childAddr = nodeChildrenAddressSize(buffer, end, flag);
+            if (cp == query.length()) {
+                return new int[]{childAddr, term, nodeStart};
             }
-            // ptci == pts.length && cp < chars.length, continue matching
+            // the whole label matched && cp < query.length(), continue matching
             if (childAddr == 0) {
                 return new int[]{-1, 0};
             }
-            return contains(sb, buffer, childAddr, chars, cp);
+            return contains(sb, buffer, childAddr, query, cp, metrics);
         }
         return new int[]{-1, 0};
     }
 
+    /**
+     * Finds the PtNode whose label ends exactly where the query does, comparing bytes in
+     * place and allocating nothing.
+     *
+     * @param position the position of the root node array.
+     * @return the position of the PtNode, or -1 if the query is not a key of the trie.
+     */
+    public static int findPtNode(DictBuffer buffer, int position, EncodedQuery query, QueryMetrics metrics) {
+        int pos = position;
+        int cp = 0;
+        walk:
+        while (cp < query.length()) {
+            final int arrayStart = pos;
+            int count = readUnsignedByte(buffer, pos++);
+            if (count > MAX_PTNODES_FOR_ONE_BYTE_PTNODE_COUNT) {
+                count = ((count & MAX_PTNODES_FOR_ONE_BYTE_PTNODE_COUNT) << 8) + readUnsignedByte(buffer, pos++);
+            }
+            if (metrics != null) metrics.onNodeArrayRead(pos - arrayStart);
+            for (int i = 0; i < count; i++) {
+                final int nodeStart = pos;
+                final byte flag = (byte)buffer.readUnsignedByte(pos++);
+                final int childAddrSize = childrenAddressSize(flag);
+                if (!query.charMatches(buffer, pos, cp)) {
+                    pos = skipCharacters(buffer, pos, flag);
+                    if (metrics != null) metrics.onPtNodeDecoded(pos + childAddrSize - nodeStart);
+                    pos = skipAttributes(buffer, pos + childAddrSize, flag);
+                    continue;
+                }
+                pos += 2;
+                cp++;
+                if (nodeMultipleChars(flag)) {
+                    final int matched = cp < query.length() ? query.matchLabel(buffer, pos, cp) : 0;
+                    pos += 2 * matched;
+                    cp += matched;
+                    if (readUnsignedByte(buffer, pos) != PTNODE_CHARACTERS_TERMINATOR) {
+                        // A difference, or the query ends inside the label.
+                        if (metrics != null) metrics.onPtNodeDecoded(pos + 2 - nodeStart);
+                        return -1;
+                    }
+                    pos++;
+                }
+                if (metrics != null) metrics.onPtNodeDecoded(pos + childAddrSize - nodeStart);
+                if (cp == query.length()) {
+                    return nodeStart;
+                }
+                pos = nodeChildrenAddressSize(buffer, pos, flag);
+                if (pos == 0) {
+                    return -1;
+                }
+                continue walk;
+            }
+            return -1;
+        }
+        return -1;
+    }
+
+    private static final long TERMINATOR_LANES = 0x0100010001000100L * PTNODE_CHARACTERS_TERMINATOR;
+
+    /**
+     * @param position the position of the first character of a PtNode.
+     * @return the position right after its characters, that of its children address.
+     */
+    static int skipCharacters(DictBuffer buffer, int position, byte flag) {
+        if (!nodeMultipleChars(flag)) {
+            return position + 2;
+        }
+        int pos = position + 2;
+        final int lastLong = buffer.limit() - 8;
+        while (pos <= lastLong) {
+            // The high bytes of 4 chars, in 16 bits lanes, xored so that a terminator is 0.
+            final long highBytes = (buffer.readLong(pos) & 0xFF00FF00FF00FF00L) ^ TERMINATOR_LANES;
+            // 0x8000 in exactly the lanes which are 0: no carry crosses lanes.
+            final long zeroLanes = ~(((highBytes & 0x7FFF7FFF7FFF7FFFL) + 0x7FFF7FFF7FFF7FFFL)
+                    | highBytes | 0x7FFF7FFF7FFF7FFFL);
+            if (zeroLanes != 0) {
+                return pos + 2 * (Long.numberOfLeadingZeros(zeroLanes) / 16) + 1;
+            }
+            pos += 8;
+        }
+        while (readUnsignedByte(buffer, pos) != PTNODE_CHARACTERS_TERMINATOR) {
+            pos += 2;
+        }
+        return pos + 1;
+    }
+
+    /**
+     * Walks the words which are prefixes of text[offset..], reading the PtNodes in place, so
+     * that nothing is allocated.
+     *
+     * @param position the position of the root node array.
+     * @param folded whether to fold the chars of text before comparing them, see CharFolding.
+     * @param ends if not null, receives the ends of the words in text, exclusive, shortest
+     *             first, as many as fit.
+     * @return the number of words found if ends is given, otherwise the end of the longest
+     * word, or -1 if no word is a prefix.
+     */
+    public static int matchPrefixes(DictBuffer buffer, int position, CharSequence text, int offset,
+                                    boolean folded, int[] ends) {
+        int count = 0;
+        int longest = -1;
+        int pos = position;
+        int cp = offset;
+        final int length = text.length();
+        walk:
+        while (cp < length) {
+            int nodeCount = readUnsignedByte(buffer, pos++);
+            if (nodeCount > MAX_PTNODES_FOR_ONE_BYTE_PTNODE_COUNT) {
+                nodeCount = ((nodeCount & MAX_PTNODES_FOR_ONE_BYTE_PTNODE_COUNT) << 8) + readUnsignedByte(buffer, pos++);
+            }
+            final char c = folded ? CharFolding.fold(text.charAt(cp)) : text.charAt(cp);
+            for (int i = 0; i < nodeCount; i++) {
+                final byte flag = (byte)buffer.readUnsignedByte(pos);
+                final int first = readUnsignedShort(buffer, pos + 1);
+                if (first != c) {
+                    // PtNodes are sorted by first char.
+                    if (first > c) break walk;
+                    pos = skipPtNode(buffer, pos);
+                    continue;
+                }
+                pos += 3;
+                cp++;
+                if (nodeMultipleChars(flag)) {
+                    while (readUnsignedByte(buffer, pos) != PTNODE_CHARACTERS_TERMINATOR) {
+                        if (cp >= length) break walk;
+                        final char t = folded ? CharFolding.fold(text.charAt(cp)) : text.charAt(cp);
+                        if (readUnsignedShort(buffer, pos) != t) break walk;
+                        pos += 2;
+                        cp++;
+                    }
+                    pos++;
+                }
+                if (nodeIsTerminator(flag)) {
+                    if (ends != null && count < ends.length) ends[count] = cp;
+                    count++;
+                    longest = cp;
+                }
+                pos = nodeChildrenAddressSize(buffer, pos, flag);
+                if (pos == 0) break walk;
+                continue walk;
+            }
+            break;
+        }
+        return ends == null ? longest : count;
+    }
+
     // dfs, order children by frequency, then collect up to a limit candidates
-    public static void traverse(byte[] buffer, int position, StringBuilder sb, List<String> data) {
+    public static void traverse(DictBuffer buffer, int position, StringBuilder sb, List<String> data) {
+        traverse(buffer, position, sb, data, (QueryMetrics)null);
+    }
+
+    public static void traverse(DictBuffer buffer, int position, StringBuilder sb, List<String> data,
+                                QueryMetrics metrics) {
         // position != 0
         int[] nc = DecoderUtils.readPtNodeCount(buffer, position);
         int count = nc[0], pos = nc[1];
+        if (metrics != null) metrics.onNodeArrayRead(pos - position);
         for (int i = 0; i < count; i++) {
             // parse ptnode
-            byte flag = buffer[pos++];
+            final int nodeStart = pos;
+            byte flag = (byte)buffer.readUnsignedByte(pos++);
 //            boolean terminal = nodeIsTerminator(flag);
             // parse chars
             String pts;
@@ -98,23 +332,370 @@ public class DecoderUtils {
             }
             StringBuilder nsb = new StringBuilder(sb);
             nsb.append(pts);
-            if (nodeIsTerminator(flag)) {
-                data.add(nsb.toString());
-            }
             // address
-            int childAddrSize = (flag & NODE_FLAG_ADDR_TYPE)>>6;
+            int childAddrSize = childrenAddressSize(flag);
             int childAddr = nodeChildrenAddressSize(buffer, pos, flag);
             pos += childAddrSize;
+            if (nodeIsTerminator(flag)) {
+                if ((flag & NODE_FLAG_SURFACE_FORMS) != 0) {
+                    Collections.addAll(data, readSurfaceForms(buffer, pos));
+                } else {
+                    data.add(nsb.toString());
+                }
+            }
+            pos = skipAttributes(buffer, pos, flag);
+            if (metrics != null) metrics.onPtNodeDecoded(pos - nodeStart);
             if (childAddr != 0) {
-                traverse(buffer, childAddr, nsb, data);
+                traverse(buffer, childAddr, nsb, data, metrics);
+            }
+        }
+    }
+
+    // dfs like above, but stops as soon as the limit of candidates is collected.
+    // Returns false once the limit is reached, so callers can stop their own walk as well.
+    public static boolean traverse(DictBuffer buffer, int position, StringBuilder sb, List<String> data, int limit) {
+        return traverse(buffer, position, sb, data, limit, null);
+    }
+
+    public static boolean traverse(DictBuffer buffer, int position, StringBuilder sb, List<String> data, int limit,
+                                   QueryMetrics metrics) {
+        int[] nc = DecoderUtils.readPtNodeCount(buffer, position);
+        int count = nc[0], pos = nc[1];
+        if (metrics != null) metrics.onNodeArrayRead(pos - position);
+        final int length = sb.length();
+        for (int i = 0; i < count; i++) {
+            if (data.size() >= limit) {
+                return false;
+            }
+            PtNodeInfo info = readPtNode(buffer, pos);
+            if (metrics != null) metrics.onPtNodeDecoded(info.mEndAddress - pos);
+            pos = info.mEndAddress;
+            sb.setLength(length);
+            sb.append(info.mCharacters);
+            if (info.isTerminal()) {
+                addWords(data, info, sb, limit);
+            }
+            if (info.hasChildren() && !traverse(buffer, info.mChildrenAddress, sb, data, limit, metrics)) {
+                sb.setLength(length);
+                return false;
             }
         }
+        sb.setLength(length);
+        return data.size() < limit;
+    }
+
+    /**
+     * Same as above, and each word is mapped to its shortcut targets, read from the shortcut
+     * pool at shortcutPool, or to an empty list if it has none. The limit counts words only.
+     */
+    public static boolean traverseWithShortcuts(DictBuffer buffer, int position, StringBuilder sb,
+                                                Map<String, List<String>> data, int limit, QueryMetrics metrics,
+                                                int shortcutPool) {
+        int[] nc = DecoderUtils.readPtNodeCount(buffer, position);
+        int count = nc[0], pos = nc[1];
+        if (metrics != null) metrics.onNodeArrayRead(pos - position);
+        final int length = sb.length();
+        for (int i = 0; i < count; i++) {
+            if (data.size() >= limit) {
+                return false;
+            }
+            PtNodeInfo info = readPtNode(buffer, pos);
+            if (metrics != null) metrics.onPtNodeDecoded(info.mEndAddress - pos);
+            pos = info.mEndAddress;
+            sb.setLength(length);
+            sb.append(info.mCharacters);
+            if (info.isTerminal()) {
+                addWordsWithShortcuts(buffer, shortcutPool, data, info, sb, limit);
+            }
+            if (info.hasChildren() && !traverseWithShortcuts(buffer, info.mChildrenAddress, sb, data, limit,
+                    metrics, shortcutPool)) {
+                sb.setLength(length);
+                return false;
+            }
+        }
+        sb.setLength(length);
+        return data.size() < limit;
+    }
+
+    /**
+     * Reads a whole PtNode starting at the flags byte.
+     *
+     * @param buffer the dictionary buffer.
+     * @param position the position of the flags of the PtNode.
+     * @return the decoded PtNode, with an absolute children address.
+     */
+    public static PtNodeInfo readPtNode(DictBuffer buffer, int position) {
+        int pos = position;
+        final byte flag = (byte)buffer.readUnsignedByte(pos++);
+        final char[] characters;
+        if (!nodeMultipleChars(flag)) {
+            characters = new char[]{(char)readUnsignedShort(buffer, pos)};
+            pos += 2;
+        } else {
+            int end = pos;
+            while (readUnsignedByte(buffer, end) != PTNODE_CHARACTERS_TERMINATOR) {
+                end += 2;
+            }
+            characters = new char[(end - pos) / 2];
+            for (int i = 0; i < characters.length; i++, pos += 2) {
+                characters[i] = (char)readUnsignedShort(buffer, pos);
+            }
+            pos++;
+        }
+        final int childrenAddress = nodeChildrenAddressSize(buffer, pos, flag);
+        pos += childrenAddressSize(flag);
+        final String[] surfaceForms = (flag & NODE_FLAG_SURFACE_FORMS) != 0 ? readSurfaceForms(buffer, pos) : null;
+        return new PtNodeInfo(position, skipAttributes(buffer, pos, flag), flag, characters, childrenAddress,
+                pos, surfaceForms);
+    }
+
+    /**
+     * Adds the words of a terminal PtNode, up to a limit: its surface forms if it has some,
+     * its key otherwise.
+     */
+    public static void addWords(List<String> data, PtNodeInfo info, CharSequence key, int limit) {
+        if (info.mSurfaceForms == null) {
+            if (data.size() < limit) data.add(key.toString());
+            return;
+        }
+        for (int i = 0; i < info.mSurfaceForms.length && data.size() < limit; i++) {
+            data.add(info.mSurfaceForms[i]);
+        }
+    }
+
+    /**
+     * Same as {@link #addWords}, mapping each word to the shortcut targets of the PtNode, which
+     * its surface forms share.
+     *
+     * @param shortcutPool the position of the shortcut pool, or 0 if the dictionary has none.
+     */
+    public static void addWordsWithShortcuts(DictBuffer buffer, int shortcutPool, Map<String, List<String>> data,
+                                             PtNodeInfo info, CharSequence key, int limit) {
+        List<String> targets = Collections.emptyList();
+        if (shortcutPool != 0 && (info.mFlags & NODE_FLAG_SHORTCUTS) != 0) {
+            targets = new ArrayList<>();
+            readShortcuts(buffer, shortcutPool, info, targets, Integer.MAX_VALUE);
+        }
+        if (info.mSurfaceForms == null) {
+            if (data.size() < limit) data.put(key.toString(), targets);
+            return;
+        }
+        for (int i = 0; i < info.mSurfaceForms.length && data.size() < limit; i++) {
+            data.put(info.mSurfaceForms[i], targets);
+        }
+    }
+
+    /**
+     * Skips what follows the children address of a PtNode.
+     *
+     * @param position the position right after the children address.
+     * @return the position of the next PtNode.
+     */
+    public static int skipAttributes(DictBuffer buffer, int position, int flag) {
+        return skipBigrams(buffer, skipShortcuts(buffer, skipSurfaceForms(buffer, position, flag), flag), flag);
+    }
+
+    /**
+     * @param position the position right after the children address.
+     * @return the position right after the surface forms, if any.
+     */
+    public static int skipSurfaceForms(DictBuffer buffer, int position, int flag) {
+        if ((flag & NODE_FLAG_SURFACE_FORMS) == 0) {
+            return position;
+        }
+        int pos = position;
+        final int count = readUnsignedByte(buffer, pos++);
+        for (int i = 0; i < count; i++) {
+            while (readUnsignedByte(buffer, pos) != PTNODE_CHARACTERS_TERMINATOR) {
+                pos += 2;
+            }
+            pos++;
+        }
+        return pos;
+    }
+
+    /**
+     * @param position the position right after the surface forms.
+     * @return the position right after the shortcuts, if any.
+     */
+    public static int skipShortcuts(DictBuffer buffer, int position, int flag) {
+        if ((flag & NODE_FLAG_SHORTCUTS) == 0) {
+            return position;
+        }
+        return skipEntries(buffer, position);
+    }
+
+    /**
+     * Adds the shortcut targets of a terminal PtNode, up to a limit, by decreasing
+     * probability.
+     *
+     * @param shortcutPool the position of the shortcut pool.
+     */
+    public static void readShortcuts(DictBuffer buffer, int shortcutPool, PtNodeInfo info, List<String> data,
+                                     int limit) {
+        if ((info.mFlags & NODE_FLAG_SHORTCUTS) == 0) {
+            return;
+        }
+        int pos = skipSurfaceForms(buffer, info.mAttributesAddress, info.mFlags);
+        while (data.size() < limit) {
+            final int flags = readUnsignedByte(buffer, pos);
+            final int size = attributeAddressSize(flags);
+            data.add(readString(buffer, shortcutPool + readUIntN(buffer, pos + 1, size))[0]);
+            if ((flags & FLAG_ATTR_HAS_NEXT) == 0) {
+                return;
+            }
+            pos += 1 + size;
+        }
+    }
+
+    /**
+     * @param position the position right after the shortcuts.
+     * @return the position right after the bigrams, if any.
+     */
+    public static int skipBigrams(DictBuffer buffer, int position, int flag) {
+        if ((flag & NODE_FLAG_BIGRAMS) == 0) {
+            return position;
+        }
+        return skipEntries(buffer, position);
+    }
+
+    // Shortcut and bigram entries share their flags byte layout.
+    private static int skipEntries(DictBuffer buffer, int position) {
+        int pos = position;
+        while (true) {
+            final int flags = readUnsignedByte(buffer, pos);
+            pos += 1 + attributeAddressSize(flags);
+            if ((flags & FLAG_ATTR_HAS_NEXT) == 0) {
+                return pos;
+            }
+        }
+    }
+
+    /**
+     * Adds the words following a terminal PtNode, as recorded by its bigrams, up to a limit,
+     * by decreasing probability.
+     *
+     * @param rootIndex the position of the root node array, to spell the words from.
+     * @param nodeStart the position of the flags of the terminal PtNode.
+     */
+    public static void readNextWords(DictBuffer buffer, int rootIndex, int nodeStart, List<String> data,
+                                     int limit) {
+        final byte flag = (byte)buffer.readUnsignedByte(nodeStart);
+        if ((flag & NODE_FLAG_BIGRAMS) == 0) {
+            return;
+        }
+        int pos = nodeStart + 1;
+        if (!nodeMultipleChars(flag)) {
+            pos += 2;
+        } else {
+            while (readUnsignedByte(buffer, pos) != PTNODE_CHARACTERS_TERMINATOR) {
+                pos += 2;
+            }
+            pos++;
+        }
+        pos = skipShortcuts(buffer, skipSurfaceForms(buffer, pos + childrenAddressSize(flag), flag), flag);
+        while (data.size() < limit) {
+            final int flags = readUnsignedByte(buffer, pos);
+            final int size = attributeAddressSize(flags);
+            final int offset = readUIntN(buffer, pos + 1, size);
+            data.add(getWordAtPosition(buffer, rootIndex,
+                    (flags & FLAG_BIGRAM_ATTR_OFFSET_NEGATIVE) != 0 ? pos - offset : pos + offset));
+            if ((flags & FLAG_ATTR_HAS_NEXT) == 0) {
+                return;
+            }
+            pos += 1 + size;
+        }
+    }
+
+    /**
+     * Spells the word of the PtNode at a position, walking down from the root. Node arrays
+     * are laid out depth first, so the PtNode is under the last PtNode of each node array
+     * whose children come before it.
+     *
+     * @return the word, or null if no PtNode starts at the position.
+     */
+    public static String getWordAtPosition(DictBuffer buffer, int rootIndex, int position) {
+        final StringBuilder sb = new StringBuilder();
+        int arrayPos = rootIndex;
+        while (true) {
+            int nodeCount = readUnsignedByte(buffer, arrayPos);
+            int pos = arrayPos + 1;
+            if (nodeCount > MAX_PTNODES_FOR_ONE_BYTE_PTNODE_COUNT) {
+                nodeCount = ((nodeCount & MAX_PTNODES_FOR_ONE_BYTE_PTNODE_COUNT) << 8) + readUnsignedByte(buffer, pos++);
+            }
+            int parent = -1;
+            int parentChildren = 0;
+            for (int i = 0; i < nodeCount && pos <= position; i++) {
+                if (pos == position) {
+                    appendCharacters(sb, buffer, pos);
+                    return sb.toString();
+                }
+                final int nodeStart = pos;
+                final byte flag = (byte)buffer.readUnsignedByte(pos++);
+                if (!nodeMultipleChars(flag)) {
+                    pos += 2;
+                } else {
+                    while (readUnsignedByte(buffer, pos) != PTNODE_CHARACTERS_TERMINATOR) {
+                        pos += 2;
+                    }
+                    pos++;
+                }
+                final int children = nodeChildrenAddressSize(buffer, pos, flag);
+                if (children != 0 && children <= position) {
+                    parent = nodeStart;
+                    parentChildren = children;
+                }
+                pos = skipAttributes(buffer, pos + childrenAddressSize(flag), flag);
+            }
+            if (parent < 0) {
+                return null;
+            }
+            appendCharacters(sb, buffer, parent);
+            arrayPos = parentChildren;
+        }
+    }
+
+    private static void appendCharacters(StringBuilder sb, DictBuffer buffer, int nodeStart) {
+        final byte flag = (byte)buffer.readUnsignedByte(nodeStart);
+        int pos = nodeStart + 1;
+        do {
+            sb.append((char)readUnsignedShort(buffer, pos));
+            pos += 2;
+        } while (nodeMultipleChars(flag) && readUnsignedByte(buffer, pos) != PTNODE_CHARACTERS_TERMINATOR);
+    }
+
+    /**
+     * Reads the surface forms of a PtNode which has some.
+     *
+     * @param position the position right after the children address.
+     */
+    public static String[] readSurfaceForms(DictBuffer buffer, int position) {
+        int pos = position;
+        final String[] forms = new String[readUnsignedByte(buffer, pos++)];
+        for (int i = 0; i < forms.length; i++) {
+            final String[] t = readString(buffer, pos);
+            forms[i] = t[0];
+            pos = Integer.parseInt(t[1]);
+        }
+        return forms;
+    }
+
+    /**
+     * Skips over a PtNode without decoding its characters.
+     *
+     * @return the position of the next PtNode in the same node array.
+     */
+    public static int skipPtNode(DictBuffer buffer, int position) {
+        int pos = position;
+        final byte flag = (byte)buffer.readUnsignedByte(pos++);
+        pos = skipCharacters(buffer, pos, flag);
+        return skipAttributes(buffer, pos + childrenAddressSize(flag), flag);
     }
 
     /**
      * Reads and returns the PtNode count out of a buffer and forwards the pointer.
      */
-    public static int[] readPtNodeCount(final byte[] buffer, int position) {
+    public static int[] readPtNodeCount(final DictBuffer buffer, int position) {
         int msb = readUnsignedByte(buffer, position);
         if (MAX_PTNODES_FOR_ONE_BYTE_PTNODE_COUNT >= msb) {
             return new int[]{msb, position+1};
@@ -127,7 +708,7 @@ public class DecoderUtils {
     /**
      * Reads a string from a DictBuffer. This is the converse of the above method.
      */
-    public static String[] readString(byte[] buffer, int position) {
+    public static String[] readString(DictBuffer buffer, int position) {
         final StringBuilder s = new StringBuilder();
         int character = readUnsignedByte(buffer, position);
         while (character != PTNODE_CHARACTERS_TERMINATOR) {
@@ -140,27 +721,42 @@ public class DecoderUtils {
         return new String[]{s.toString(), String.valueOf(position)};
     }
 
-    public static int readUnsignedByte(byte[] buffer, int position) {
-        return buffer[position] & 0xFF;
+    public static int readUnsignedByte(DictBuffer buffer, int position) {
+        return buffer.readUnsignedByte(position);
     }
 
-    public static int readUnsignedShort(byte[] buffer, int position) {
+    public static int readUnsignedShort(DictBuffer buffer, int position) {
         final int retval = readUnsignedByte(buffer, position);
         return (retval << 8) + readUnsignedByte(buffer, position+1);
     }
 
-    public static int readUnsignedInt24(byte[] buffer, int position) {
+    public static int readUnsignedInt24(DictBuffer buffer, int position) {
         final int retval = readUnsignedShort(buffer, position);
         return (retval << 8) + readUnsignedByte(buffer, position+2);
     }
 
-    public static int readInt(byte[] buffer, int position) {
+    public static int readUIntN(DictBuffer buffer, int position, int size) {
+        switch (size) {
+            case 1:
+                return readUnsignedByte(buffer, position);
+            case 2:
+                return readUnsignedShort(buffer, position);
+            case 3:
+                return readUnsignedInt24(buffer, position);
+            case 4:
+                return readInt(buffer, position);
+            default:
+                throw new RuntimeException("invalid address size " + size);
+        }
+    }
+
+    public static int readInt(DictBuffer buffer, int position) {
         final int retval = readUnsignedShort(buffer, position);
         return (retval << 16) + readUnsignedShort(buffer, position+2);
     }
 
-    public static int nodeChildrenAddressSize(byte[] buffer, int position, byte flag) {
-        int size = (flag & NODE_FLAG_ADDR_TYPE)>>6;
+    public static int nodeChildrenAddressSize(DictBuffer buffer, int position, byte flag) {
+        int size = childrenAddressSize(flag);
         if (size == 0) {
             return 0;
         } else if (size == 1) {
@@ -169,11 +765,28 @@ public class DecoderUtils {
             return position + readUnsignedShort(buffer, position);
         } else if (size == 3) {
             return position + readUnsignedInt24(buffer, position);
+        } else if (size == 4) {
+            return position + readInt(buffer, position);
         } else {
             throw new RuntimeException("invalid children address");
         }
     }
 
+    /**
+     * @return the size of the children address of a PtNode, 0 if it has no children.
+     */
+    public static int childrenAddressSize(byte flag) {
+        return ((flag & NODE_FLAG_ADDR_TYPE) >> 6) + ((flag & NODE_FLAG_WIDE_ADDRESS) >> 1);
+    }
+
+    /**
+     * @return the size of the address of a shortcut or bigram entry, from its flags.
+     */
+    public static int attributeAddressSize(int flags) {
+        final int size = (flags & MASK_ATTR_ADDRESS_TYPE) >> 4;
+        return size != 0 ? size : 4;
+    }
+
     public static boolean nodeMultipleChars(byte flag) {
         return (flag & NODE_FLAG_MULTI_CHAR) != 0;
     }
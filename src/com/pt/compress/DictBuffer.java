@@ -0,0 +1,28 @@
+package com.pt.compress;
+
+/**
+ * Read access to the bytes of a binary dictionary.
+ *
+ * Positions are absolute, from the first byte of the header, so implementations hold no
+ * cursor and may be shared between threads.
+ */
+public interface DictBuffer {
+    int readUnsignedByte(int position);
+
+    /**
+     * Reads 8 bytes as a big-endian long, for the comparisons of several characters at once.
+     * Implementations which can should override it with a single wide load.
+     */
+    default long readLong(int position) {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | readUnsignedByte(position + i);
+        }
+        return value;
+    }
+
+    /**
+     * @return the size of the dictionary, in bytes.
+     */
+    int limit();
+}
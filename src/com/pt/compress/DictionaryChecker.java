@@ -0,0 +1,343 @@
+package com.pt.compress;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import static com.pt.compress.DecoderUtils.*;
+import static com.pt.compress.EncoderUtils.FLAG_ATTR_HAS_NEXT;
+import static com.pt.compress.EncoderUtils.FLAG_BIGRAM_ATTR_OFFSET_NEGATIVE;
+import static com.pt.compress.EncoderUtils.MASK_ATTR_ADDRESS_TYPE;
+import static com.pt.compress.EncoderUtils.PTNODE_CHARACTERS_TERMINATOR;
+
+/**
+ * Structural checker of a binary dictionary.
+ *
+ * Walks every node array reachable from the root, without building any word, and checks:
+ * - every PtNode lies within the buffer, and only uses known flags,
+ * - multiple chars PtNodes have at least 2 chars, and a characters terminator,
+ * - PtNodes of a node array are sorted by strictly increasing first char,
+ * - children addresses point forward, within the buffer, and no node array is reached twice,
+ * - a PtNode without children is a terminal,
+ * - surface forms lie within the buffer, and only follow terminals,
+ * - shortcuts only follow terminals, and point to strings within the shortcut pool,
+ * - bigrams only follow terminals, and point to terminal PtNodes of the same trie.
+ *
+ * Node arrays near the root are checked as separate fork-join tasks, deeper ones inline
+ * by the task of their top ancestor, so the work splits into a few hundred tasks.
+ */
+public final class DictionaryChecker {
+    // The root node array and its children are forked, giving one task per 2 chars prefix.
+    private static final int FORK_DEPTH = 2;
+    private static final int KNOWN_FLAGS = NODE_FLAG_ADDR_TYPE | NODE_FLAG_MULTI_CHAR | NODE_FLAG_TERMINAL
+            | NODE_FLAG_SHORTCUTS | NODE_FLAG_BIGRAMS | NODE_FLAG_SURFACE_FORMS | NODE_FLAG_WIDE_ADDRESS;
+
+    public static final class Report {
+        public final long mNodeArrays;
+        public final long mPtNodes;
+        public final long mWords;
+        public final int mMaxDepth;
+
+        Report(long nodeArrays, long ptNodes, long words, int maxDepth) {
+            mNodeArrays = nodeArrays;
+            mPtNodes = ptNodes;
+            mWords = words;
+            mMaxDepth = maxDepth;
+        }
+
+        @Override
+        public String toString() {
+            return "node arrays " + mNodeArrays + ", PtNodes " + mPtNodes
+                    + ", words " + mWords + ", max depth " + mMaxDepth;
+        }
+    }
+
+    // Per task counts, turned into a Report once all the tasks are done.
+    private static final class Counts {
+        long mNodeArrays;
+        long mPtNodes;
+        long mWords;
+        int mMaxDepth;
+
+        void add(Counts other) {
+            mNodeArrays += other.mNodeArrays;
+            mPtNodes += other.mPtNodes;
+            mWords += other.mWords;
+            mMaxDepth = Math.max(mMaxDepth, other.mMaxDepth);
+        }
+    }
+
+    private final DictBuffer mBuffer;
+    private final int mLimit;
+    // 0 if the dictionary has no shortcuts.
+    private final int mShortcutPool;
+    // One bit per byte of the buffer, set at the start of each visited node array.
+    private final AtomicLongArray mVisited;
+    // Same, at the start of each terminal PtNode, and at each bigram target.
+    private final AtomicLongArray mTerminals;
+    private final AtomicLongArray mTargets;
+
+    private DictionaryChecker(DictBuffer buffer) {
+        mBuffer = buffer;
+        mLimit = buffer.limit();
+        mShortcutPool = readShortcutPoolAddress(buffer);
+        mVisited = new AtomicLongArray((mLimit + 63) >>> 6);
+        mTerminals = new AtomicLongArray((mLimit + 63) >>> 6);
+        mTargets = new AtomicLongArray((mLimit + 63) >>> 6);
+    }
+
+    /**
+     * Checks a whole dictionary, header included, on the common fork-join pool.
+     *
+     * @throws RuntimeException describing the first defect found.
+     */
+    public static Report check(DictBuffer buffer) {
+        return check(buffer, parseHeader(buffer), ForkJoinPool.commonPool());
+    }
+
+    public static Report check(DictBuffer buffer, int rootIndex, ForkJoinPool pool) {
+        final DictionaryChecker checker = new DictionaryChecker(buffer);
+        final Counts counts = pool.invoke(checker.new NodeArrayTask(rootIndex, 1));
+        // Targets are only known to be terminals once the whole trie is walked.
+        for (int i = 0; i < checker.mTargets.length(); i++) {
+            final long dangling = checker.mTargets.get(i) & ~checker.mTerminals.get(i);
+            if (dangling != 0) {
+                throw error((i << 6) + Long.numberOfTrailingZeros(dangling),
+                        "bigram target is not a terminal PtNode");
+            }
+        }
+        return new Report(counts.mNodeArrays, counts.mPtNodes, counts.mWords, counts.mMaxDepth);
+    }
+
+    @SuppressWarnings("serial")
+    private final class NodeArrayTask extends RecursiveTask<Counts> {
+        private final int mPosition;
+        private final int mDepth;
+
+        NodeArrayTask(int position, int depth) {
+            mPosition = position;
+            mDepth = depth;
+        }
+
+        @Override
+        protected Counts compute() {
+            final Counts counts = new Counts();
+            if (mDepth > FORK_DEPTH) {
+                checkNodeArray(mPosition, mDepth, counts, null);
+                return counts;
+            }
+            final List<NodeArrayTask> subtasks = new ArrayList<>();
+            checkNodeArray(mPosition, mDepth, counts, subtasks);
+            invokeAll(subtasks);
+            for (NodeArrayTask t : subtasks) {
+                counts.add(t.join());
+            }
+            return counts;
+        }
+    }
+
+    /**
+     * Checks a node array, and its descendants unless subtasks is given, in which case a
+     * task is added for each child node array instead.
+     */
+    private void checkNodeArray(int position, int depth, Counts counts, List<NodeArrayTask> subtasks) {
+        checkRange(position, 1, position);
+        if (!markVisited(position)) {
+            throw error(position, "node array reached twice");
+        }
+        final int[] nc = readPtNodeCount(mBuffer, position);
+        final int count = nc[0];
+        int pos = nc[1];
+        // Only the root of an empty dictionary has no PtNode.
+        if (count == 0 && depth > 1) {
+            throw error(position, "empty node array");
+        }
+        counts.mNodeArrays++;
+        counts.mPtNodes += count;
+        counts.mMaxDepth = Math.max(counts.mMaxDepth, depth);
+        int previousChar = -1;
+        for (int i = 0; i < count; i++) {
+            final int nodeStart = pos;
+            checkRange(pos, 3, nodeStart);
+            final byte flag = (byte)mBuffer.readUnsignedByte(pos++);
+            if ((flag & ~KNOWN_FLAGS & 0xFF) != 0) {
+                throw error(nodeStart, "unknown flags " + Integer.toHexString(flag & 0xFF));
+            }
+            final int firstChar = readUnsignedShort(mBuffer, pos);
+            if (firstChar <= previousChar) {
+                throw error(nodeStart, "PtNodes out of order");
+            }
+            previousChar = firstChar;
+            pos += 2;
+            if (nodeMultipleChars(flag)) {
+                int chars = 1;
+                while (true) {
+                    checkRange(pos, 1, nodeStart);
+                    if (mBuffer.readUnsignedByte(pos) == PTNODE_CHARACTERS_TERMINATOR) {
+                        break;
+                    }
+                    checkRange(pos, 2, nodeStart);
+                    pos += 2;
+                    chars++;
+                }
+                if (chars < 2) {
+                    throw error(nodeStart, "multiple chars PtNode with a single char");
+                }
+                pos++;
+            }
+            if ((flag & NODE_FLAG_WIDE_ADDRESS) != 0 && (flag & NODE_FLAG_ADDR_TYPE) != NODE_FLAG_ADDR_TYPE) {
+                throw error(nodeStart, "wide children address flag without a 3 bytes address type");
+            }
+            final int addressSize = childrenAddressSize(flag);
+            if (addressSize > 0) {
+                checkRange(pos, addressSize, nodeStart);
+            }
+            final int childrenAddress = nodeChildrenAddressSize(mBuffer, pos, flag);
+            pos += addressSize;
+            if ((flag & NODE_FLAG_SURFACE_FORMS) != 0) {
+                pos = checkSurfaceForms(pos, flag, nodeStart);
+            }
+            if ((flag & NODE_FLAG_SHORTCUTS) != 0) {
+                pos = checkShortcuts(pos, flag, nodeStart);
+            }
+            if ((flag & NODE_FLAG_BIGRAMS) != 0) {
+                pos = checkBigrams(pos, flag, nodeStart);
+            }
+            if (nodeIsTerminator(flag)) {
+                counts.mWords++;
+                mark(mTerminals, nodeStart);
+            }
+            if (childrenAddress == 0) {
+                if (!nodeIsTerminator(flag)) {
+                    throw error(nodeStart, "PtNode with neither children nor terminal");
+                }
+                continue;
+            }
+            if (childrenAddress < pos) {
+                throw error(nodeStart, "children address " + childrenAddress + " points backward");
+            }
+            if (subtasks != null) {
+                subtasks.add(new NodeArrayTask(childrenAddress, depth + 1));
+            } else {
+                checkNodeArray(childrenAddress, depth + 1, counts, null);
+            }
+        }
+    }
+
+    /**
+     * @return the position after the surface forms.
+     */
+    private int checkSurfaceForms(int position, byte flag, int nodeStart) {
+        if (!nodeIsTerminator(flag)) {
+            throw error(nodeStart, "surface forms on a PtNode that is not a terminal");
+        }
+        checkRange(position, 1, nodeStart);
+        final int count = mBuffer.readUnsignedByte(position);
+        if (count == 0) {
+            throw error(nodeStart, "no surface form");
+        }
+        int pos = position + 1;
+        for (int i = 0; i < count; i++) {
+            while (true) {
+                checkRange(pos, 1, nodeStart);
+                if (mBuffer.readUnsignedByte(pos) == PTNODE_CHARACTERS_TERMINATOR) {
+                    break;
+                }
+                checkRange(pos, 2, nodeStart);
+                pos += 2;
+            }
+            pos++;
+        }
+        return pos;
+    }
+
+    /**
+     * @return the position after the shortcuts.
+     */
+    private int checkShortcuts(int position, byte flag, int nodeStart) {
+        if (!nodeIsTerminator(flag)) {
+            throw error(nodeStart, "shortcuts on a PtNode that is not a terminal");
+        }
+        if (mShortcutPool == 0) {
+            throw error(nodeStart, "shortcuts in a dictionary without shortcut pool");
+        }
+        int pos = position;
+        while (true) {
+            checkRange(pos, 1, nodeStart);
+            final int flags = mBuffer.readUnsignedByte(pos);
+            final int size = (flags & MASK_ATTR_ADDRESS_TYPE) >> 4;
+            if (size == 0) {
+                throw error(nodeStart, "shortcut without an address");
+            }
+            checkRange(pos + 1, size, nodeStart);
+            int target = mShortcutPool + readUIntN(mBuffer, pos + 1, size);
+            while (true) {
+                checkRange(target, 1, nodeStart);
+                if (mBuffer.readUnsignedByte(target) == PTNODE_CHARACTERS_TERMINATOR) {
+                    break;
+                }
+                checkRange(target, 2, nodeStart);
+                target += 2;
+            }
+            pos += 1 + size;
+            if ((flags & FLAG_ATTR_HAS_NEXT) == 0) {
+                return pos;
+            }
+        }
+    }
+
+    /**
+     * @return the position after the bigrams.
+     */
+    private int checkBigrams(int position, byte flag, int nodeStart) {
+        if (!nodeIsTerminator(flag)) {
+            throw error(nodeStart, "bigrams on a PtNode that is not a terminal");
+        }
+        int pos = position;
+        while (true) {
+            checkRange(pos, 1, nodeStart);
+            final int flags = mBuffer.readUnsignedByte(pos);
+            final int size = attributeAddressSize(flags);
+            checkRange(pos + 1, size, nodeStart);
+            final int offset = readUIntN(mBuffer, pos + 1, size);
+            final int target = (flags & FLAG_BIGRAM_ATTR_OFFSET_NEGATIVE) != 0 ? pos - offset : pos + offset;
+            checkRange(target, 3, nodeStart);
+            mark(mTargets, target);
+            pos += 1 + size;
+            if ((flags & FLAG_ATTR_HAS_NEXT) == 0) {
+                return pos;
+            }
+        }
+    }
+
+    private boolean markVisited(int position) {
+        return mark(mVisited, position);
+    }
+
+    // Sets the bit of a position, and tells whether it was clear.
+    private static boolean mark(AtomicLongArray bitset, int position) {
+        final int index = position >>> 6;
+        final long bit = 1L << (position & 63);
+        while (true) {
+            final long bits = bitset.get(index);
+            if ((bits & bit) != 0) {
+                return false;
+            }
+            if (bitset.compareAndSet(index, bits, bits | bit)) {
+                return true;
+            }
+        }
+    }
+
+    private void checkRange(int position, int size, int nodeStart) {
+        if (position < 0 || position + size > mLimit) {
+            throw error(nodeStart, "truncated at " + position);
+        }
+    }
+
+    private static RuntimeException error(int position, String message) {
+        return new RuntimeException("invalid dictionary at " + position + ": " + message);
+    }
+}
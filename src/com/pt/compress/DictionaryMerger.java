@@ -0,0 +1,184 @@
+package com.pt.compress;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Merges binary dictionaries into one, in a single pass and in constant memory: the inputs
+ * are iterated in parallel, in lexicographic order, and the kept words are fed to a
+ * {@link StreamingDictionaryCompiler}. Memory holds an iterator per input and the open path
+ * of the compiler, whatever the size of the dictionaries.
+ *
+ * Dictionaries hold no value per word, so what combines is presence: a {@link Policy}
+ * decides from the inputs holding a word whether the merged dictionary keeps it. Only words
+ * are merged; surface forms, shortcuts and bigrams are not, see
+ * {@link StreamingDictionaryCompiler}. Folded dictionaries iterate their surface forms, out
+ * of order, so they are rejected.
+ */
+public final class DictionaryMerger {
+    /**
+     * Decides whether the merged dictionary keeps a word.
+     */
+    public interface Policy {
+        /**
+         * @param present for each input, in the order given, whether it holds the word. The
+         *                array is reused from word to word.
+         */
+        boolean keep(String word, boolean[] present);
+    }
+
+    /** The words of any input. */
+    public static final Policy UNION = (word, present) -> true;
+
+    /** The words of all the inputs. */
+    public static final Policy INTERSECTION = (word, present) -> {
+        for (boolean p : present) {
+            if (!p) return false;
+        }
+        return true;
+    };
+
+    /** The words of the first input which none of the others holds, such as blocklists. */
+    public static final Policy DIFFERENCE = (word, present) -> {
+        for (int i = 1; i < present.length; i++) {
+            if (present[i]) return false;
+        }
+        return present[0];
+    };
+
+    /**
+     * @return the policy keeping the words at least count inputs hold.
+     */
+    public static Policy atLeast(final int count) {
+        return (word, present) -> {
+            int n = 0;
+            for (boolean p : present) {
+                if (p) n++;
+            }
+            return n >= count;
+        };
+    }
+
+    private DictionaryMerger() {
+    }
+
+    // The next word of an input.
+    private static final class Head implements Comparable<Head> {
+        final int mInput;
+        final Iterator<String> mIterator;
+        String mWord;
+
+        Head(int input, Iterator<String> iterator) {
+            mInput = input;
+            mIterator = iterator;
+        }
+
+        @Override
+        public int compareTo(Head other) {
+            final int c = mWord.compareTo(other.mWord);
+            return c != 0 ? c : Integer.compare(mInput, other.mInput);
+        }
+    }
+
+    /**
+     * Writes the merged dictionary of the inputs.
+     *
+     * @return the layout report of the compilation, with the merged word count.
+     */
+    public static LayoutReport merge(List<BinaryPatriciaTrie> inputs, File output, Policy policy) throws IOException {
+        if (inputs.isEmpty()) {
+            throw new IllegalArgumentException("no dictionary to merge");
+        }
+        final PriorityQueue<Head> heads = new PriorityQueue<>(inputs.size());
+        for (int i = 0; i < inputs.size(); i++) {
+            if (inputs.get(i).isFolded()) {
+                throw new IllegalArgumentException("input " + i + " is folded");
+            }
+            final Head head = new Head(i, inputs.get(i).iterator());
+            if (head.mIterator.hasNext()) {
+                head.mWord = head.mIterator.next();
+                heads.add(head);
+            }
+        }
+        final boolean[] present = new boolean[inputs.size()];
+        long inputWords = 0;
+        try (StreamingDictionaryCompiler compiler = new StreamingDictionaryCompiler(output)) {
+            while (!heads.isEmpty()) {
+                final String word = heads.peek().mWord;
+                Arrays.fill(present, false);
+                while (!heads.isEmpty() && heads.peek().mWord.equals(word)) {
+                    final Head head = heads.poll();
+                    present[head.mInput] = true;
+                    inputWords++;
+                    if (head.mIterator.hasNext()) {
+                        head.mWord = head.mIterator.next();
+                        heads.add(head);
+                    }
+                }
+                if (policy.keep(word, present)) {
+                    compiler.add(word);
+                }
+            }
+            final LayoutReport report = compiler.finish();
+            report.put("input_words", inputWords);
+            return report;
+        }
+    }
+
+    // Maps a dictionary file, so that merging pages it in as it goes rather than reading it
+    // into the heap first.
+    private static MappedByteBuffer map(File dictionary) throws IOException {
+        try (FileChannel channel = FileChannel.open(dictionary.toPath(), StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("dictionary too large to map: " + dictionary);
+            }
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    /**
+     * Merges dictionary files:
+     *
+     *   [--policy=union|intersection|difference|at-least-N] output input...
+     */
+    public static void main(String[] args) throws IOException {
+        Policy policy = UNION;
+        int first = 0;
+        if (args.length > 0 && args[0].startsWith("--policy=")) {
+            final String name = args[0].substring("--policy=".length());
+            if (name.equals("union")) {
+                policy = UNION;
+            } else if (name.equals("intersection")) {
+                policy = INTERSECTION;
+            } else if (name.equals("difference")) {
+                policy = DIFFERENCE;
+            } else if (name.startsWith("at-least-")) {
+                policy = atLeast(Integer.parseInt(name.substring("at-least-".length())));
+            } else {
+                throw new IllegalArgumentException("unknown policy " + name);
+            }
+            first = 1;
+        }
+        if (args.length - first < 2) {
+            System.err.println("usage: DictionaryMerger [--policy=union|intersection|difference|at-least-N]"
+                    + " output input...");
+            System.exit(1);
+        }
+        final List<BinaryPatriciaTrie> inputs = new ArrayList<>();
+        for (int i = first + 1; i < args.length; i++) {
+            inputs.add(new BinaryPatriciaTrie(map(new File(args[i]))));
+        }
+        final long start = System.nanoTime();
+        final LayoutReport report = merge(inputs, new File(args[first]), policy);
+        System.out.println(report);
+        System.out.println("merged in " + (System.nanoTime() - start) / 1000000 + " ms");
+    }
+}
@@ -0,0 +1,156 @@
+package com.pt.compress;
+
+import static com.pt.compress.EncoderUtils.PTNODE_CHARACTERS_TERMINATOR;
+
+/**
+ * A query encoded once the way the dictionary encodes its labels, 2 big-endian bytes per
+ * char, so that matching compares bytes of the dictionary with bytes of the query, and
+ * decodes nothing.
+ *
+ * Every run of 4 chars is also kept as the long an 8 bytes load of the same label chars
+ * reads, so that labels are compared 4 chars at a time with a single XOR.
+ */
+public final class EncodedQuery {
+    // One query per thread, encoded over and over by the lookups that take a String or a char
+    // array, so that they allocate nothing. It is only good until the next such lookup.
+    private static final ThreadLocal<EncodedQuery> SCRATCH = ThreadLocal.withInitial(EncodedQuery::new);
+
+    // The arrays may be longer than the query, when it is encoded again over a longer one.
+    private char[] mChars;
+    private int mLength;
+    private byte[] mBytes;
+    // mRuns[i] holds the chars i to i + 3, for i + 4 <= mSafeLength.
+    private long[] mRuns;
+    // Up to the first char whose high byte is the label terminator. Such a char would match
+    // a terminator and the byte after it, so chars from there on are compared one at a time;
+    // no label has one, as it would read as a terminator too.
+    private int mSafeLength;
+
+    private EncodedQuery() {
+        mChars = new char[16];
+        mBytes = new byte[32];
+        mRuns = new long[16];
+    }
+
+    /**
+     * @param chars the query, already folded for a folded dictionary, see
+     *              {@link BinaryPatriciaTrie#encodeQuery}.
+     */
+    public EncodedQuery(char[] chars) {
+        mChars = chars;
+        mLength = chars.length;
+        mBytes = new byte[2 * chars.length];
+        mRuns = new long[Math.max(0, chars.length - 3)];
+        encode();
+    }
+
+    /**
+     * @return the query of this thread, encoded from word, folded if fold is set.
+     */
+    static EncodedQuery scratch(CharSequence word, boolean fold) {
+        final EncodedQuery query = SCRATCH.get();
+        final int length = word.length();
+        query.ensureCapacity(length);
+        for (int i = 0; i < length; i++) {
+            final char c = word.charAt(i);
+            query.mChars[i] = fold ? CharFolding.fold(c) : c;
+        }
+        query.mLength = length;
+        query.encode();
+        return query;
+    }
+
+    /**
+     * @return the query of this thread, encoded from chars.
+     */
+    static EncodedQuery scratch(char[] chars) {
+        final EncodedQuery query = SCRATCH.get();
+        query.ensureCapacity(chars.length);
+        System.arraycopy(chars, 0, query.mChars, 0, chars.length);
+        query.mLength = chars.length;
+        query.encode();
+        return query;
+    }
+
+    private void ensureCapacity(int length) {
+        if (mChars.length < length) {
+            final int capacity = Math.max(length, 2 * mChars.length);
+            mChars = new char[capacity];
+            mBytes = new byte[2 * capacity];
+            mRuns = new long[capacity];
+        }
+    }
+
+    // Encodes the first mLength chars of mChars.
+    private void encode() {
+        final char[] chars = mChars;
+        int safe = mLength;
+        for (int i = 0; i < mLength; i++) {
+            mBytes[2 * i] = (byte)(chars[i] >>> 8);
+            mBytes[2 * i + 1] = (byte)chars[i];
+            if (safe == mLength && (chars[i] >>> 8) == PTNODE_CHARACTERS_TERMINATOR) {
+                safe = i;
+            }
+        }
+        mSafeLength = safe;
+        for (int i = 0; i + 4 <= safe; i++) {
+            mRuns[i] = ((long)chars[i] << 48) | ((long)chars[i + 1] << 32) | ((long)chars[i + 2] << 16) | chars[i + 3];
+        }
+    }
+
+    /**
+     * @return the number of chars of the query.
+     */
+    public int length() {
+        return mLength;
+    }
+
+    /**
+     * @return the chars of the query, in the first {@link #length()} of the array.
+     */
+    char[] getChars() {
+        return mChars;
+    }
+
+    /**
+     * Appends chars of the query to a key being emitted.
+     */
+    void appendTo(StringBuilder sb, int start, int end) {
+        sb.append(mChars, start, end - start);
+    }
+
+    /**
+     * @return whether the char at position in the dictionary is the char at index.
+     */
+    boolean charMatches(DictBuffer buffer, int position, int index) {
+        return (byte)buffer.readUnsignedByte(position) == mBytes[2 * index]
+                && (byte)buffer.readUnsignedByte(position + 1) == mBytes[2 * index + 1];
+    }
+
+    /**
+     * Compares the chars of a label with the query from index, 4 at a time while both have
+     * that many, then one at a time.
+     *
+     * @param position the position of the first char of the label to compare.
+     * @return how many chars match, from index; the comparison stops at the first
+     * difference, the end of the query or the terminator of the label.
+     */
+    int matchLabel(DictBuffer buffer, int position, int index) {
+        final int lastLong = buffer.limit() - 8;
+        int i = index;
+        while (i + 4 <= mSafeLength && position <= lastLong) {
+            final long diff = buffer.readLong(position) ^ mRuns[i];
+            if (diff != 0) {
+                return i - index + Long.numberOfLeadingZeros(diff) / 16;
+            }
+            i += 4;
+            position += 8;
+        }
+        while (i < mLength && buffer.readUnsignedByte(position) != PTNODE_CHARACTERS_TERMINATOR
+                && charMatches(buffer, position, i)) {
+            i++;
+            position += 2;
+        }
+        return i - index;
+    }
+}
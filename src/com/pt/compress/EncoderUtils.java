@@ -4,9 +4,14 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.HashMap;
 
 public class EncoderUtils {
     public static final int MAGIC_NUMBER = 0x9BC13AFE;
+    public static final int VERSION = 2;
+    // Same format, but some addresses may take 4 bytes, see FLAG_CHILDREN_ADDRESS_WIDE. Written
+    // for tries over 16MB only, so that smaller dictionaries stay readable by version 2 readers.
+    public static final int VERSION_WIDE_ADDRESSES = 3;
     public static final int MAX_PTNODES_FOR_ONE_BYTE_PTNODE_COUNT = 0x7F; // 127
     // Large PtNode array size field size is 2 bytes.
     public static final int LARGE_PTNODE_ARRAY_SIZE_FIELD_SIZE_FLAG = 0x8000;
@@ -16,6 +21,7 @@ public class EncoderUtils {
     public static final int PTNODE_TERMINATOR_SIZE = 1;
     public static final int PTNODE_FREQUENCY_SIZE = 1;
     public static final int PTNODE_MAX_ADDRESS_SIZE = 3;
+    public static final int PTNODE_MAX_WIDE_ADDRESS_SIZE = 4;
 
     public static final int UINT8_MAX = 0xFF;
     public static final int UINT16_MAX = 0xFFFF;
@@ -38,11 +44,41 @@ public class EncoderUtils {
     static final int FLAG_CHILDREN_ADDRESS_TYPE_ONEBYTE = 0x40;
     static final int FLAG_CHILDREN_ADDRESS_TYPE_TWOBYTES = 0x80;
     static final int FLAG_CHILDREN_ADDRESS_TYPE_THREEBYTES = 0xC0;
+    // With FLAG_CHILDREN_ADDRESS_TYPE_THREEBYTES only: the children address takes 4 bytes.
+    static final int FLAG_CHILDREN_ADDRESS_WIDE = 0x02;
 
     static final int FLAG_IS_TERMINAL = 0x10;
+    static final int FLAG_HAS_SHORTCUT_TARGETS = 0x08;
+    static final int FLAG_HAS_BIGRAMS = 0x04;
+    static final int FLAG_HAS_SURFACE_FORMS = 0x01;
+    static final int MAX_SURFACE_FORMS = 0xFF;
+
+    // Flags of a shortcut or bigram entry, see the PtNode layout.
+    static final int FLAG_ATTR_HAS_NEXT = 0x80;
+    static final int FLAG_BIGRAM_ATTR_OFFSET_NEGATIVE = 0x40;
+    static final int MASK_ATTR_ADDRESS_TYPE = 0x30;
+    static final int MASK_ATTR_PROBABILITY = 0x0F;
+    // Probabilities range from 0 to MAX_PROBABILITY, as the frequencies of the combined word
+    // list, and are stored on 4 bits.
+    public static final int MAX_PROBABILITY = 0xFF;
+    static final int PROBABILITY_SHIFT = 4;
 
     static final int PTNODE_CHARACTERS_TERMINATOR = 0x1F;
 
+    // Header options flags.
+    public static final int OPTION_BLOCK_COMPRESSED = 0x1;
+    // Keys are folded by CharFolding, and queries must be folded the same way.
+    public static final int OPTION_FOLDED = 0x2;
+    // A trie of the reversed words follows the main one, see SUFFIX_INDEX_ADDRESS_SIZE.
+    public static final int OPTION_SUFFIX_INDEX = 0x4;
+    static final int SUFFIX_INDEX_ADDRESS_SIZE = 4;
+    // Shortcut targets are in a pool at the end of the file, see SHORTCUT_POOL_ADDRESS_SIZE.
+    public static final int OPTION_SHORTCUTS = 0x8;
+    static final int SHORTCUT_POOL_ADDRESS_SIZE = 4;
+    // The header ends with a MembershipFilter of the keys.
+    public static final int OPTION_MEMBERSHIP_FILTER = 0x10;
+    public static final int DEFAULT_COMPRESSION_BLOCK_SIZE = 4096;
+
     /*
      * File header layout is as follows:
      *
@@ -57,9 +93,52 @@ public class EncoderUtils {
      * a |   including the size of the magic number, and the header size
      * d |
      * ersize
+     *
+     * s | with OPTION_SUFFIX_INDEX only: absolute address of the root node array of the
+     * u |   suffix index, 4 bytes. The suffix index is a trie of the reversed words,
+     * f |   surface forms reversed too, written right after the main trie up to the end
+     * fix of the file, or up to the shortcut pool.
+     *
+     * s | with OPTION_SHORTCUTS only: absolute address of the shortcut pool, 4 bytes. The
+     * h |   pool holds each distinct shortcut target once, chars then a 0x1F terminator,
+     * o |   most used first, from this address up to the end of the file. Shortcut entries
+     * rtcuts point to their target by its offset in the pool.
+     *
+     * f | with OPTION_MEMBERSHIP_FILTER only: a MembershipFilter of the keys of the main
+     * i |   trie, up to the end of the header, see MembershipFilter for its layout.
+     * lter
      */
     public static int writeDictionaryHeader(OutputStream dst) throws IOException {
-        int version = 2;
+        return writeDictionaryHeader(dst, 0);
+    }
+
+    public static int writeDictionaryHeader(OutputStream dst, int options) throws IOException {
+        return writeDictionaryHeader(dst, options, 0);
+    }
+
+    public static int writeDictionaryHeader(OutputStream dst, int options, int mainTrieSize) throws IOException {
+        return writeDictionaryHeader(dst, options, mainTrieSize, 0);
+    }
+
+    /**
+     * @param mainTrieSize the size of the main trie, which the suffix index follows, if
+     *                     options have OPTION_SUFFIX_INDEX.
+     * @param suffixIndexSize the size of the suffix index, which the shortcut pool follows,
+     *                        if options have OPTION_SHORTCUTS.
+     */
+    public static int writeDictionaryHeader(OutputStream dst, int options, int mainTrieSize,
+                                            int suffixIndexSize) throws IOException {
+        return writeDictionaryHeader(dst, options, mainTrieSize, suffixIndexSize, null);
+    }
+
+    /**
+     * @param membershipFilter the encoded filter, see {@link MembershipFilter#encode}, if
+     *                         options have OPTION_MEMBERSHIP_FILTER.
+     */
+    public static int writeDictionaryHeader(OutputStream dst, int options, int mainTrieSize,
+                                            int suffixIndexSize, byte[] membershipFilter) throws IOException {
+        // Addresses inside the tries are bounded by their sizes.
+        int version = (long)mainTrieSize + suffixIndexSize > UINT24_MAX ? VERSION_WIDE_ADDRESSES : VERSION;
 
         ByteArrayOutputStream headerBuffer = new ByteArrayOutputStream(256);
 
@@ -74,8 +153,6 @@ public class EncoderUtils {
         headerBuffer.write((byte) (0xFF & version));
 
         // Options flags
-        // TODO: Remove this field.
-        final int options = 0;
         headerBuffer.write((byte) (0xFF & (options >> 8)));
         headerBuffer.write((byte) (0xFF & options));
         final int headerSizeOffset = headerBuffer.size();
@@ -83,6 +160,21 @@ public class EncoderUtils {
         for (int i = 0; i < 4; ++i) {
             headerBuffer.write(0);
         }
+        final int suffixIndexOffset = headerBuffer.size();
+        if ((options & OPTION_SUFFIX_INDEX) != 0) {
+            for (int i = 0; i < SUFFIX_INDEX_ADDRESS_SIZE; ++i) {
+                headerBuffer.write(0);
+            }
+        }
+        final int shortcutPoolOffset = headerBuffer.size();
+        if ((options & OPTION_SHORTCUTS) != 0) {
+            for (int i = 0; i < SHORTCUT_POOL_ADDRESS_SIZE; ++i) {
+                headerBuffer.write(0);
+            }
+        }
+        if ((options & OPTION_MEMBERSHIP_FILTER) != 0) {
+            headerBuffer.write(membershipFilter);
+        }
 
         // no attributes, no code point array
         final int size = headerBuffer.size();
@@ -92,12 +184,77 @@ public class EncoderUtils {
         bytes[headerSizeOffset + 1] = (byte) (0xFF & (size >> 16));
         bytes[headerSizeOffset + 2] = (byte) (0xFF & (size >> 8));
         bytes[headerSizeOffset + 3] = (byte) (0xFF & (size >> 0));
+        if ((options & OPTION_SUFFIX_INDEX) != 0) {
+            writeUIntToBuffer(bytes, suffixIndexOffset, size + mainTrieSize, SUFFIX_INDEX_ADDRESS_SIZE);
+        }
+        if ((options & OPTION_SHORTCUTS) != 0) {
+            writeUIntToBuffer(bytes, shortcutPoolOffset, size + mainTrieSize + suffixIndexSize,
+                    SHORTCUT_POOL_ADDRESS_SIZE);
+        }
         dst.write(bytes);
 
         headerBuffer.close();
         return size;
     }
 
+    /*
+     * Block compressed dictionary layout is as follows:
+     *
+     * h | MAGIC_NUMBER, version, options with OPTION_BLOCK_COMPRESSED, header size,
+     * e |   same as the plain header above, 12 bytes
+     * a |
+     * d | size of the uncompressed dictionary, 4 bytes
+     * e | block size, a power of 2, 4 bytes
+     * r | block count, 4 bytes
+     *
+     * t | (block count + 1) file offsets, 4 bytes each. Block i is stored between offsets
+     * a |   i and i + 1, compressed with Lz4Codec.
+     * b |
+     * le
+     *
+     * b | compressed blocks
+     * l |
+     * o |
+     * cks
+     *
+     * The uncompressed dictionary is a plain dictionary, header included, cut into blocks of
+     * block size bytes, the last one being shorter. Addresses inside it are unchanged, so
+     * the (block, offset) pair of an address is (address / block size, address % block size).
+     */
+    public static void writeBlockCompressedDictionary(OutputStream dst, byte[] dictionary,
+                                                      int blockSize) throws IOException {
+        if (blockSize <= 0 || Integer.bitCount(blockSize) != 1) {
+            throw new RuntimeException("Block size must be a power of 2, got " + blockSize);
+        }
+        final int blockCount = (dictionary.length + blockSize - 1) / blockSize;
+        final int headerSize = 12 + 3 * 4 + (blockCount + 1) * 4;
+        final byte[][] blocks = new byte[blockCount][];
+        for (int i = 0; i < blockCount; ++i) {
+            final int start = i * blockSize;
+            blocks[i] = Lz4Codec.compress(dictionary, start, Math.min(blockSize, dictionary.length - start));
+        }
+
+        final byte[] header = new byte[headerSize];
+        int pos = writeUIntToBuffer(header, 0, MAGIC_NUMBER, 4);
+        pos = writeUIntToBuffer(header, pos, VERSION, 2);
+        pos = writeUIntToBuffer(header, pos, OPTION_BLOCK_COMPRESSED, 2);
+        pos = writeUIntToBuffer(header, pos, headerSize, 4);
+        pos = writeUIntToBuffer(header, pos, dictionary.length, 4);
+        pos = writeUIntToBuffer(header, pos, blockSize, 4);
+        pos = writeUIntToBuffer(header, pos, blockCount, 4);
+        int offset = headerSize;
+        for (final byte[] block : blocks) {
+            pos = writeUIntToBuffer(header, pos, offset, 4);
+            offset += block.length;
+        }
+        writeUIntToBuffer(header, pos, offset, 4);
+
+        dst.write(header);
+        for (final byte[] block : blocks) {
+            dst.write(block);
+        }
+    }
+
     /*
      * Node array (FusionDictionary.PtNodeArray) layout is as follows:
      *
@@ -125,8 +282,9 @@ public class EncoderUtils {
      * g | has a terminal ?            1 bit, 1 = yes, 0 = no   : FLAG_IS_TERMINAL
      * s | has shortcut targets ?      1 bit, 1 = yes, 0 = no   : FLAG_HAS_SHORTCUT_TARGETS
      *   | has bigrams ?               1 bit, 1 = yes, 0 = no   : FLAG_HAS_BIGRAMS
-     *   | is not a word ?             1 bit, 1 = yes, 0 = no   : FLAG_IS_NOT_A_WORD
-     *   | is possibly offensive ?     1 bit, 1 = yes, 0 = no   : FLAG_IS_POSSIBLY_OFFENSIVE
+     *   | wide children address ?     1 bit, 1 = 4 bytes       : FLAG_CHILDREN_ADDRESS_WIDE
+     *   |   only with CHILDREN_ADDRESS_TYPE 11, in VERSION_WIDE_ADDRESSES dictionaries
+     *   | has surface forms ?         1 bit, 1 = yes, 0 = no   : FLAG_HAS_SURFACE_FORMS
      *
      * c | IF FLAG_HAS_MULTIPLE_CHARS
      * h |   char, char, char, char    n * 2 bytes
@@ -140,6 +298,37 @@ public class EncoderUtils {
      * l |
      * drenaddress
      *
+     * s | IF FLAG_HAS_SURFACE_FORMS, only in folded dictionaries
+     * u |   surface form count        1 byte
+     * r |   for each surface form, sorted:
+     * f |     char, char, char, char  n * 2 bytes
+     * a |     end                     1 byte, = 0x1F
+     * ce| END
+     *
+     * s | IF FLAG_HAS_SHORTCUT_TARGETS, only on terminals, by decreasing probability
+     * h |   for each shortcut target:
+     * o |     flags                   1 byte
+     * r |       has next ?            1 bit, 1 = yes, 0 = no   : FLAG_ATTR_HAS_NEXT
+     * t |       unused                1 bit, = 0
+     * c |       address size          2 bits, 1 to 3 bytes     : MASK_ATTR_ADDRESS_TYPE
+     * u |       probability           4 bits, quantized        : MASK_ATTR_PROBABILITY
+     * t |     offset of the target in the shortcut pool, 1 to 3 bytes
+     * s | END
+     *
+     * b | IF FLAG_HAS_BIGRAMS, only on terminals, by decreasing probability
+     * i |   for each bigram:
+     * g |     flags                   1 byte
+     * r |       has next ?            1 bit, 1 = yes, 0 = no   : FLAG_ATTR_HAS_NEXT
+     * a |       offset sign           1 bit, 1 = negative      : FLAG_BIGRAM_ATTR_OFFSET_NEGATIVE
+     * m |       address size          2 bits, 1 to 3 bytes     : MASK_ATTR_ADDRESS_TYPE
+     *   |                               or 00 for 4 bytes
+     * s |       probability           4 bits, quantized        : MASK_ATTR_PROBABILITY
+     *   |     offset                  1 to 4 bytes, absolute value
+     *   |   The offset goes from these flags to the terminal PtNode of the next word.
+     *   | END
+     *
+     * A terminal of a folded dictionary without surface forms has its folded key as only word.
+     *
      * Char format is:
      * 1 byte = bbbbbbbb match
      * case 000xxxxx: xxxxx << 8 + next byte
@@ -190,6 +379,178 @@ public class EncoderUtils {
         return list;
     }
 
+    /**
+     * Makes the folded trie of a trie: its keys are the words folded by {@link CharFolding},
+     * and each terminal records the words folding to it as its surface forms.
+     *
+     * Shortcuts and bigrams move to the folded key of their word. Bigrams point at the folded
+     * key of their next word, so that they still resolve. Words folding to the same key pool
+     * theirs, and an entry they share keeps its highest probability.
+     */
+    public static PatriciaTrie foldTrie(final PatriciaTrie pt) {
+        final PatriciaTrie folded = new PatriciaTrie();
+        addFoldedWords(pt.getRoot(), new StringBuilder(), folded);
+        return folded;
+    }
+
+    private static void addFoldedWords(final PatriciaTrie.PtNode ptNode, final StringBuilder sb,
+                                       final PatriciaTrie folded) {
+        final int length = sb.length();
+        sb.append(ptNode.mChars);
+        if (ptNode.isTerminal()) {
+            final String word = sb.toString();
+            final String key = CharFolding.fold(word);
+            folded.addWord(key, word);
+            if (null != ptNode.mShortcuts) {
+                for (PatriciaTrie.WeightedString shortcut : ptNode.mShortcuts) {
+                    folded.addShortcut(key, shortcut.mWord, shortcut.mProbability);
+                }
+            }
+            if (null != ptNode.mBigrams) {
+                for (PatriciaTrie.WeightedString bigram : ptNode.mBigrams) {
+                    folded.addBigram(key, CharFolding.fold(bigram.mWord), bigram.mProbability);
+                }
+            }
+        }
+        if (null != ptNode.mChildren) {
+            for (PatriciaTrie.PtNode child : ptNode.mChildren.mData) {
+                addFoldedWords(child, sb, folded);
+            }
+        }
+        sb.setLength(length);
+    }
+
+    /**
+     * Makes the trie of the reversed words of a trie, for the suffix index. Surface forms
+     * are reversed as well, so that every word read out of the suffix index only needs to be
+     * reversed back.
+     */
+    public static PatriciaTrie reverseTrie(final PatriciaTrie pt) {
+        final PatriciaTrie reversed = new PatriciaTrie();
+        addReversedWords(pt.getRoot(), new StringBuilder(), reversed);
+        return reversed;
+    }
+
+    private static void addReversedWords(final PatriciaTrie.PtNode ptNode, final StringBuilder sb,
+                                         final PatriciaTrie reversed) {
+        final int length = sb.length();
+        sb.append(ptNode.mChars);
+        if (ptNode.isTerminal()) {
+            final String key = new StringBuilder(sb).reverse().toString();
+            if (null == ptNode.mSurfaceForms) {
+                reversed.addWord(key);
+            } else {
+                for (String form : ptNode.mSurfaceForms) {
+                    reversed.addWord(key, new StringBuilder(form).reverse().toString());
+                }
+            }
+        }
+        if (null != ptNode.mChildren) {
+            for (PatriciaTrie.PtNode child : ptNode.mChildren.mData) {
+                addReversedWords(child, sb, reversed);
+            }
+        }
+        sb.setLength(length);
+    }
+
+    /**
+     * Splits a trie by leading characters into at most shardCount tries of similar PtNode
+     * counts, in lexicographic order: every word of a shard sorts before every word of the
+     * next shard.
+     *
+     * PtNodes under the root are kept together when they fit in one shard. A larger one is cut
+     * along its children, and each piece gets a copy of it, so a prefix such as "s" may span
+     * several shards. The shards share the PtNodes of the source trie, which must not be
+     * modified afterwards.
+     *
+     * Words keep their surface forms, shortcuts and bigrams. A bigram whose next word lands in
+     * another shard can't be resolved there, and {@link #resolveBigrams} drops it when the
+     * shard is encoded.
+     *
+     * @param pt the trie to split.
+     * @param shardCount the maximum number of shards.
+     * @return the shards, none of them empty.
+     */
+    public static ArrayList<PatriciaTrie> splitIntoShards(final PatriciaTrie pt, final int shardCount) {
+        final ArrayList<PatriciaTrie.PtNode> roots = pt.getRoot().mChildren.mData;
+        final int target = Math.max(1, PatriciaTrie.countPtNodes(pt.getRoot().mChildren) / shardCount);
+
+        // Cut the PtNodes under the root into pieces of at most target PtNodes, where possible.
+        final ArrayList<PatriciaTrie.PtNode> pieces = new ArrayList<>();
+        final ArrayList<PatriciaTrie.PtNode> sources = new ArrayList<>();
+        final ArrayList<Integer> sizes = new ArrayList<>();
+        for (final PatriciaTrie.PtNode ptNode : roots) {
+            final int size = countBranchPtNodes(ptNode);
+            if (size <= target) {
+                pieces.add(ptNode);
+                sources.add(ptNode);
+                sizes.add(size);
+                continue;
+            }
+            PatriciaTrie.PtNode piece = null;
+            int pieceSize = 0;
+            boolean firstPiece = true;
+            for (final PatriciaTrie.PtNode child : ptNode.mChildren.mData) {
+                final int childSize = countBranchPtNodes(child);
+                if (null != piece && pieceSize + childSize > target) {
+                    pieces.add(piece);
+                    sources.add(ptNode);
+                    sizes.add(pieceSize);
+                    piece = null;
+                }
+                if (null == piece) {
+                    piece = new PatriciaTrie.PtNode(ptNode.mChars);
+                    // Only the first piece holds the word of the PtNode itself, if any, and
+                    // what hangs on that word.
+                    if (firstPiece) {
+                        piece.terminal = ptNode.terminal;
+                        piece.mSurfaceForms = ptNode.mSurfaceForms;
+                        piece.mShortcuts = ptNode.mShortcuts;
+                        piece.mBigrams = ptNode.mBigrams;
+                    }
+                    firstPiece = false;
+                    pieceSize = 1;
+                }
+                piece.addChild(child);
+                pieceSize += childSize;
+            }
+            pieces.add(piece);
+            sources.add(ptNode);
+            sizes.add(pieceSize);
+        }
+
+        // Group consecutive pieces into shards. Pieces of the same PtNode landing in the same
+        // shard are glued back together, since a node array can't hold the same char twice.
+        final ArrayList<PatriciaTrie> shards = new ArrayList<>();
+        ArrayList<PatriciaTrie.PtNode> current = new ArrayList<>();
+        PatriciaTrie.PtNode lastSource = null;
+        int currentSize = 0;
+        for (int i = 0; i < pieces.size(); ++i) {
+            final PatriciaTrie.PtNode piece = pieces.get(i);
+            if (sources.get(i) == lastSource && !current.isEmpty()) {
+                final PatriciaTrie.PtNode last = current.get(current.size() - 1);
+                last.mChildren.mData.addAll(piece.mChildren.mData);
+            } else {
+                current.add(piece);
+            }
+            lastSource = sources.get(i);
+            currentSize += sizes.get(i);
+            if (currentSize >= target && shards.size() < shardCount - 1) {
+                shards.add(new PatriciaTrie(current));
+                current = new ArrayList<>();
+                currentSize = 0;
+            }
+        }
+        if (!current.isEmpty()) {
+            shards.add(new PatriciaTrie(current));
+        }
+        return shards;
+    }
+
+    private static int countBranchPtNodes(final PatriciaTrie.PtNode ptNode) {
+        return 1 + (null == ptNode.mChildren ? 0 : PatriciaTrie.countPtNodes(ptNode.mChildren));
+    }
+
     /**
      * Compute the addresses and sizes of an ordered list of PtNode arrays.
      *
@@ -204,9 +565,20 @@ public class EncoderUtils {
      * @return the same array it was passed. The nodes have been updated for address and size.
      */
     public static ArrayList<PatriciaTrie.PtNodeArray> computeAddresses(final ArrayList<PatriciaTrie.PtNodeArray> flatNodes) {
-        // First get the worst possible sizes and offsets
+        // First get the worst possible sizes and offsets. No address of a trie that fits in
+        // 16MB with 3 bytes addresses needs more; a larger one starts from 4 bytes addresses.
+        long maximumSize = 0;
         for (final PatriciaTrie.PtNodeArray n : flatNodes) {
-            calculatePtNodeArrayMaximumSize(n);
+            maximumSize += calculatePtNodeArrayMaximumSize(n, PTNODE_MAX_ADDRESS_SIZE);
+        }
+        if (maximumSize > UINT24_MAX) {
+            maximumSize = 0;
+            for (final PatriciaTrie.PtNodeArray n : flatNodes) {
+                maximumSize += calculatePtNodeArrayMaximumSize(n, PTNODE_MAX_WIDE_ADDRESS_SIZE);
+            }
+        }
+        if (maximumSize > Integer.MAX_VALUE) {
+            throw new RuntimeException("Dictionary of up to " + maximumSize + " bytes does not fit 2GB");
         }
         final int offset = initializePtNodeArraysCachedAddresses(flatNodes);
 
@@ -243,21 +615,23 @@ public class EncoderUtils {
     }
 
     /**
-     * Compute the maximum size of each PtNode of a PtNode array, assuming 3-byte addresses for
-     * everything, and caches it in the `mCachedSize' member of the nodes; deduce the size of
-     * the containing node array, and cache it it its 'mCachedSize' member.
+     * Compute the maximum size of each PtNode of a PtNode array, assuming addresses of
+     * addressSize bytes for everything, and caches it in the `mCachedSize' member of the nodes;
+     * deduce the size of the containing node array, and cache it it its 'mCachedSize' member.
      *
      * @param ptNodeArray the node array to compute the maximum size of.
+     * @return the size of the node array.
      */
-    private static void calculatePtNodeArrayMaximumSize(
-            final PatriciaTrie.PtNodeArray ptNodeArray) {
+    private static int calculatePtNodeArrayMaximumSize(
+            final PatriciaTrie.PtNodeArray ptNodeArray, final int addressSize) {
         int size = getPtNodeCountSize(ptNodeArray.mData.size());
         for (PatriciaTrie.PtNode node : ptNodeArray.mData) {
-            final int nodeSize = getPtNodeMaximumSize(node);
+            final int nodeSize = getPtNodeMaximumSize(node, addressSize);
             node.mCachedSize = nodeSize;
             size += nodeSize;
         }
         ptNodeArray.mCachedSize = size;
+        return size;
     }
 
     /**
@@ -309,6 +683,16 @@ public class EncoderUtils {
                 nodeSize += getByteSize(getOffsetToTargetNodeArrayDuringUpdate(ptNodeArray,
                         nodeSize + size, ptNode.mChildren));
             }
+            nodeSize += getSurfaceFormsSize(ptNode);
+            nodeSize += getShortcutsSize(ptNode);
+            if (getBigramCount(ptNode) > 0) {
+                for (PatriciaTrie.WeightedString bigram : ptNode.mBigrams) {
+                    if (null == bigram.mTarget) continue;
+                    final int offset = getOffsetToTargetPtNodeDuringUpdate(ptNodeArray,
+                            nodeSize + size, bigram.mTarget);
+                    nodeSize += 1 + getAttributeOffsetSize(offset);
+                }
+            }
             ptNode.mCachedSize = nodeSize;
             size += nodeSize;
         }
@@ -338,14 +722,16 @@ public class EncoderUtils {
     }
 
     /**
-     * Compute the maximum size of a PtNode, assuming 3-byte addresses for everything.
+     * Compute the maximum size of a PtNode, assuming addresses of addressSize bytes for
+     * everything.
      *
      * @param ptNode the PtNode to compute the size of.
      * @return the maximum size of the PtNode.
      */
-    private static int getPtNodeMaximumSize(final PatriciaTrie.PtNode ptNode) {
+    private static int getPtNodeMaximumSize(final PatriciaTrie.PtNode ptNode, final int addressSize) {
         int size = getNodeHeaderSize(ptNode);
-        size += PTNODE_MAX_ADDRESS_SIZE; // For children address
+        size += addressSize; // For children address
+        size += getNodeAttributesSize(ptNode, addressSize);
         return size;
     }
 
@@ -354,11 +740,147 @@ public class EncoderUtils {
      *
      * @param ptNode the PtNode of which to compute the size of the header
      */
-    private static int getNodeHeaderSize(final PatriciaTrie.PtNode ptNode) {
+    static int getNodeHeaderSize(final PatriciaTrie.PtNode ptNode) {
         if (ptNode.mChars.length == 1) return PTNODE_FLAGS_SIZE + 2;
         return PTNODE_FLAGS_SIZE + 2*ptNode.mChars.length + PTNODE_TERMINATOR_SIZE;
     }
 
+    /**
+     * Compute the size of what follows the children address of a PtNode, bigrams counted
+     * with addresses of addressSize bytes.
+     */
+    static int getNodeAttributesSize(final PatriciaTrie.PtNode ptNode, final int addressSize) {
+        return getSurfaceFormsSize(ptNode) + getShortcutsSize(ptNode)
+                + getBigramCount(ptNode) * (1 + addressSize);
+    }
+
+    /**
+     * @return the size of the shortcut entries of a PtNode, once {@link #buildShortcutPool}
+     * gave them their pool offsets.
+     */
+    static int getShortcutsSize(final PatriciaTrie.PtNode ptNode) {
+        if (!hasShortcuts(ptNode)) return 0;
+        int size = 0;
+        for (PatriciaTrie.WeightedString shortcut : ptNode.mShortcuts) {
+            size += 1 + getAttributeOffsetSize(shortcut.mPoolOffset);
+        }
+        return size;
+    }
+
+    static boolean hasShortcuts(final PatriciaTrie.PtNode ptNode) {
+        return ptNode.terminal && null != ptNode.mShortcuts && !ptNode.mShortcuts.isEmpty();
+    }
+
+    /**
+     * Makes the shortcut pool of a trie, most used targets first so that they get the
+     * shortest offsets, and records the offset of each target in its shortcut entries.
+     *
+     * @return the pool, empty if the trie has no shortcut.
+     */
+    public static byte[] buildShortcutPool(final PatriciaTrie pt) {
+        final HashMap<String, Integer> uses = new HashMap<>();
+        final ArrayList<PatriciaTrie.PtNode> terminals = new ArrayList<>();
+        final ArrayList<PatriciaTrie.PtNode> stack = new ArrayList<>();
+        stack.add(pt.getRoot());
+        while (!stack.isEmpty()) {
+            final PatriciaTrie.PtNode ptNode = stack.remove(stack.size() - 1);
+            if (hasShortcuts(ptNode)) {
+                terminals.add(ptNode);
+                for (PatriciaTrie.WeightedString shortcut : ptNode.mShortcuts) {
+                    uses.merge(shortcut.mWord, 1, Integer::sum);
+                }
+            }
+            if (null != ptNode.mChildren) stack.addAll(ptNode.mChildren.mData);
+        }
+        final ArrayList<String> targets = new ArrayList<>(uses.keySet());
+        targets.sort((a, b) -> {
+            final int cmp = Integer.compare(uses.get(b), uses.get(a));
+            return cmp != 0 ? cmp : a.compareTo(b);
+        });
+        final HashMap<String, Integer> offsets = new HashMap<>();
+        int size = 0;
+        for (String target : targets) {
+            offsets.put(target, size);
+            size += 2 * target.length() + PTNODE_TERMINATOR_SIZE;
+        }
+        if (size > UINT24_MAX + 1) {
+            throw new RuntimeException("Shortcut pool of " + size + " bytes does not fit 3 bytes offsets");
+        }
+        final byte[] pool = new byte[size];
+        int pos = 0;
+        for (String target : targets) {
+            pos = CharEncoding.writeCharArray(target.toCharArray(), pool, pos);
+            pool[pos++] = PTNODE_CHARACTERS_TERMINATOR;
+        }
+        for (PatriciaTrie.PtNode ptNode : terminals) {
+            for (PatriciaTrie.WeightedString shortcut : ptNode.mShortcuts) {
+                shortcut.mPoolOffset = offsets.get(shortcut.mWord);
+            }
+        }
+        return pool;
+    }
+
+    static int getSurfaceFormsSize(final PatriciaTrie.PtNode ptNode) {
+        if (!hasSurfaceForms(ptNode)) return 0;
+        int size = 1;
+        for (String form : ptNode.mSurfaceForms) {
+            size += 2*form.length() + PTNODE_TERMINATOR_SIZE;
+        }
+        return size;
+    }
+
+    /**
+     * @return the number of bigrams of a PtNode whose next word is in the trie being
+     * encoded, see {@link #resolveBigrams}.
+     */
+    static int getBigramCount(final PatriciaTrie.PtNode ptNode) {
+        if (!ptNode.terminal || null == ptNode.mBigrams) return 0;
+        int count = 0;
+        for (PatriciaTrie.WeightedString bigram : ptNode.mBigrams) {
+            if (null != bigram.mTarget) count++;
+        }
+        return count;
+    }
+
+    /**
+     * Points the bigrams of every terminal of the trie to the terminal of their next word,
+     * or to null if the next word is not in this trie, as happens for shards.
+     */
+    public static void resolveBigrams(final PatriciaTrie pt) {
+        final ArrayList<PatriciaTrie.PtNode> stack = new ArrayList<>();
+        stack.add(pt.getRoot());
+        while (!stack.isEmpty()) {
+            final PatriciaTrie.PtNode ptNode = stack.remove(stack.size() - 1);
+            if (null != ptNode.mBigrams) {
+                for (PatriciaTrie.WeightedString bigram : ptNode.mBigrams) {
+                    final PatriciaTrie.PtNode target = pt.findNode(bigram.mWord, null);
+                    bigram.mTarget = null != target && target.terminal ? target : null;
+                }
+            }
+            if (null != ptNode.mChildren) stack.addAll(ptNode.mChildren.mData);
+        }
+    }
+
+    static int quantizeProbability(final int probability) {
+        return probability >> PROBABILITY_SHIFT;
+    }
+
+    // A terminal whose only surface form is its key does not need to store it. Surface forms
+    // fold to the key, so a form is the key when folding does not change it.
+    static boolean hasSurfaceForms(final PatriciaTrie.PtNode ptNode) {
+        if (!ptNode.terminal || null == ptNode.mSurfaceForms || ptNode.mSurfaceForms.isEmpty()) {
+            return false;
+        }
+        if (ptNode.mSurfaceForms.size() > 1) {
+            return true;
+        }
+        final String form = ptNode.mSurfaceForms.get(0);
+        for (int i = 0; i < form.length(); i++) {
+            if (CharFolding.fold(form.charAt(i)) != form.charAt(i)) return true;
+        }
+        return false;
+    }
+
     /**
      * Get the offset from a position inside a current node array to a target node array, during
      * update.
@@ -390,6 +912,40 @@ public class EncoderUtils {
                 - (currentNodeArray.mCachedAddressBeforeUpdate + offsetFromStartOfCurrentNodeArray);
     }
 
+    /**
+     * Get the offset from a position inside a current node array to a target PtNode, during
+     * update, the same way as {@link #getOffsetToTargetNodeArrayDuringUpdate}.
+     */
+    private static int getOffsetToTargetPtNodeDuringUpdate(
+            final PatriciaTrie.PtNodeArray currentNodeArray,
+            final int offsetFromStartOfCurrentNodeArray,
+            final PatriciaTrie.PtNode targetPtNode) {
+        final boolean isTargetBeforeCurrent = (targetPtNode.mCachedAddressBeforeUpdate
+                < currentNodeArray.mCachedAddressBeforeUpdate);
+        if (isTargetBeforeCurrent) {
+            return targetPtNode.mCachedAddressAfterUpdate
+                    - (currentNodeArray.mCachedAddressAfterUpdate
+                    + offsetFromStartOfCurrentNodeArray);
+        }
+        return targetPtNode.mCachedAddressBeforeUpdate
+                - (currentNodeArray.mCachedAddressBeforeUpdate + offsetFromStartOfCurrentNodeArray);
+    }
+
+    /**
+     * Compute the size of the offset of an attribute, which stores its sign separately.
+     */
+    static int getAttributeOffsetSize(final int offset) {
+        return Math.max(1, getByteSize(Math.abs(offset)));
+    }
+
+    /**
+     * @return the MASK_ATTR_ADDRESS_TYPE bits of an attribute offset of that size, 4 bytes
+     * being 00.
+     */
+    static int makeAttributeAddressType(final int offsetSize) {
+        return (offsetSize & 3) << 4;
+    }
+
     /**
      * Updates the cached addresses of node arrays after recomputing their new positions.
      *
@@ -415,15 +971,16 @@ public class EncoderUtils {
      * @return the byte size.
      */
     public static int getByteSize(final int address) {
-        assert(address <= UINT24_MAX);
         if (!hasChildrenAddress(address)) {
             return 0;
         } else if (Math.abs(address) <= UINT8_MAX) {
             return 1;
         } else if (Math.abs(address) <= UINT16_MAX) {
             return 2;
-        } else {
+        } else if (Math.abs(address) <= UINT24_MAX) {
             return 3;
+        } else {
+            return 4;
         }
     }
 
@@ -522,12 +1079,73 @@ public class EncoderUtils {
 
     public static int writePtNode(byte[] buffer, int position, final PatriciaTrie.PtNode ptNode) {
         final int childrenPos = getChildrenPosition(ptNode);
-        int pos = writeUIntToBuffer(buffer, position,
-                makePtNodeFlags(ptNode.mChars.length > 1, ptNode.terminal, getByteSize(childrenPos)),
-                PTNODE_FLAGS_SIZE);
+        final boolean hasSurfaceForms = hasSurfaceForms(ptNode);
+        final boolean hasShortcuts = hasShortcuts(ptNode);
+        final boolean hasBigrams = getBigramCount(ptNode) > 0;
+        int flags = makePtNodeFlags(ptNode.mChars.length > 1, ptNode.terminal, getByteSize(childrenPos));
+        if (hasSurfaceForms) flags |= FLAG_HAS_SURFACE_FORMS;
+        if (hasShortcuts) flags |= FLAG_HAS_SHORTCUT_TARGETS;
+        if (hasBigrams) flags |= FLAG_HAS_BIGRAMS;
+        int pos = writeUIntToBuffer(buffer, position, flags, PTNODE_FLAGS_SIZE);
 
         pos = writeCharacters(buffer, pos, ptNode.mChars, ptNode.hasSeveralChars());
         pos = writeChildrenPosition(buffer, pos, ptNode);
+        if (hasSurfaceForms) {
+            pos = writeSurfaceForms(buffer, pos, ptNode.mSurfaceForms);
+        }
+        if (hasShortcuts) {
+            pos = writeShortcuts(buffer, pos, ptNode.mShortcuts);
+        }
+        if (hasBigrams) {
+            pos = writeBigrams(buffer, pos, ptNode.mBigrams);
+        }
+        return pos;
+    }
+
+    // Shortcuts are kept sorted by decreasing probability, see PatriciaTrie.addShortcut.
+    private static int writeShortcuts(byte[] buffer, int position, final ArrayList<PatriciaTrie.WeightedString> shortcuts) {
+        int pos = position;
+        for (int i = 0; i < shortcuts.size(); i++) {
+            final PatriciaTrie.WeightedString shortcut = shortcuts.get(i);
+            final int offsetSize = getAttributeOffsetSize(shortcut.mPoolOffset);
+            int flags = quantizeProbability(shortcut.mProbability) | makeAttributeAddressType(offsetSize);
+            if (i + 1 < shortcuts.size()) flags |= FLAG_ATTR_HAS_NEXT;
+            buffer[pos++] = (byte)flags;
+            pos = writeUIntToBuffer(buffer, pos, shortcut.mPoolOffset, offsetSize);
+        }
+        return pos;
+    }
+
+    // Bigrams are kept sorted by decreasing probability, see PatriciaTrie.addBigram.
+    private static int writeBigrams(byte[] buffer, int position, final ArrayList<PatriciaTrie.WeightedString> bigrams) {
+        int pos = position;
+        int remaining = 0;
+        for (PatriciaTrie.WeightedString bigram : bigrams) {
+            if (null != bigram.mTarget) remaining++;
+        }
+        for (PatriciaTrie.WeightedString bigram : bigrams) {
+            if (null == bigram.mTarget) continue;
+            final int offset = bigram.mTarget.mCachedAddressAfterUpdate - pos;
+            final int offsetSize = getAttributeOffsetSize(offset);
+            int flags = quantizeProbability(bigram.mProbability) | makeAttributeAddressType(offsetSize);
+            if (--remaining > 0) flags |= FLAG_ATTR_HAS_NEXT;
+            if (offset < 0) flags |= FLAG_BIGRAM_ATTR_OFFSET_NEGATIVE;
+            buffer[pos++] = (byte)flags;
+            pos = writeUIntToBuffer(buffer, pos, Math.abs(offset), offsetSize);
+        }
+        return pos;
+    }
+
+    private static int writeSurfaceForms(byte[] buffer, int position, final ArrayList<String> forms) {
+        if (forms.size() > MAX_SURFACE_FORMS) {
+            throw new RuntimeException("Too many surface forms: " + forms);
+        }
+        int pos = position;
+        buffer[pos++] = (byte)forms.size();
+        for (String form : forms) {
+            pos = CharEncoding.writeCharArray(form.toCharArray(), buffer, pos);
+            buffer[pos++] = PTNODE_CHARACTERS_TERMINATOR;
+        }
         return pos;
     }
 
@@ -572,6 +1190,12 @@ public class EncoderUtils {
                 buffer[index++] = (byte)(0xFF & (childrenPos >> 8));
                 buffer[index++] = (byte)(0xFF & childrenPos);
                 break;
+            case 4:
+                buffer[index++] = (byte)(0xFF & (childrenPos >> 24));
+                buffer[index++] = (byte)(0xFF & (childrenPos >> 16));
+                buffer[index++] = (byte)(0xFF & (childrenPos >> 8));
+                buffer[index++] = (byte)(0xFF & childrenPos);
+                break;
             case 0:
                 break;
             default:
@@ -608,6 +1232,9 @@ public class EncoderUtils {
             case 3:
                 flags |= FLAG_CHILDREN_ADDRESS_TYPE_THREEBYTES;
                 break;
+            case 4:
+                flags |= FLAG_CHILDREN_ADDRESS_TYPE_THREEBYTES | FLAG_CHILDREN_ADDRESS_WIDE;
+                break;
             case 0:
                 flags |= FLAG_CHILDREN_ADDRESS_TYPE_NOADDRESS;
                 break;
@@ -626,44 +1253,15 @@ public class EncoderUtils {
      * @param ptNodeArrays the list of PtNode arrays.
      */
     /* package */ static String showStatistics(ArrayList<PatriciaTrie.PtNodeArray> ptNodeArrays) {
-        int firstTerminalAddress = Integer.MAX_VALUE;
-        int lastTerminalAddress = Integer.MIN_VALUE;
-        int size = 0;
-        int ptNodes = 0;
-        int maxNodes = 0;
-        int maxRuns = 0;
-        for (final PatriciaTrie.PtNodeArray ptNodeArray : ptNodeArrays) {
-            if (maxNodes < ptNodeArray.mData.size()) maxNodes = ptNodeArray.mData.size();
-            for (final PatriciaTrie.PtNode ptNode : ptNodeArray.mData) {
-                ++ptNodes;
-                if (ptNode.mChars.length > maxRuns) maxRuns = ptNode.mChars.length;
-                if (ptNode.isTerminal()) {
-                    if (ptNodeArray.mCachedAddressAfterUpdate < firstTerminalAddress)
-                        firstTerminalAddress = ptNodeArray.mCachedAddressAfterUpdate;
-                    if (ptNodeArray.mCachedAddressAfterUpdate > lastTerminalAddress)
-                        lastTerminalAddress = ptNodeArray.mCachedAddressAfterUpdate;
-                }
-            }
-            if (ptNodeArray.mCachedAddressAfterUpdate + ptNodeArray.mCachedSize > size) {
-                size = ptNodeArray.mCachedAddressAfterUpdate + ptNodeArray.mCachedSize;
-            }
-        }
-        final int[] ptNodeCounts = new int[maxNodes + 1];
-        final int[] runCounts = new int[maxRuns + 1];
-        for (final PatriciaTrie.PtNodeArray ptNodeArray : ptNodeArrays) {
-            ++ptNodeCounts[ptNodeArray.mData.size()];
-            for (final PatriciaTrie.PtNode ptNode : ptNodeArray.mData) {
-                ++runCounts[ptNode.mChars.length];
-            }
-        }
+        return statistics(ptNodeArrays).toString();
+    }
 
-        return "Statistics:\n"
-                + "  Total file size " + size + "\n"
-                + "  " + ptNodeArrays.size() + " node arrays\n"
-                + "  " + ptNodes + " PtNodes (" + ((float)ptNodes / ptNodeArrays.size())
-                + " PtNodes per node)\n"
-                + "  First terminal at " + firstTerminalAddress + "\n"
-                + "  Last terminal at " + lastTerminalAddress + "\n"
-                + "  PtNode stats : max = " + maxNodes;
+    /**
+     * Same as {@link #showStatistics}, as a structured report.
+     *
+     * @param ptNodeArrays the list of PtNode arrays, with their final addresses.
+     */
+    public static LayoutReport statistics(ArrayList<PatriciaTrie.PtNodeArray> ptNodeArrays) {
+        return LayoutReport.ofNodeArrays(ptNodeArrays);
     }
 }
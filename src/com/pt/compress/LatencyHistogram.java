@@ -0,0 +1,135 @@
+package com.pt.compress;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Concurrent latency histogram, in nanoseconds.
+ *
+ * Values are bucketed the same way HdrHistogram does: a power-of-two magnitude, then
+ * SUB_BUCKET_COUNT linear sub-buckets inside each magnitude, which keeps the relative error
+ * of any reported percentile under 1 / SUB_BUCKET_COUNT. Each bucket is a LongAdder, so
+ * recording from many threads does not contend on a single counter.
+ */
+public final class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKET_COUNT = (Long.SIZE - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT;
+
+    private final LongAdder[] mCounts = new LongAdder[BUCKET_COUNT];
+    private final LongAdder mTotal = new LongAdder();
+    private final LongAccumulator mMax = new LongAccumulator(Math::max, 0);
+
+    public LatencyHistogram() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            mCounts[i] = new LongAdder();
+        }
+    }
+
+    public void record(long nanos) {
+        if (nanos < 0) nanos = 0;
+        mCounts[bucketIndex(nanos)].increment();
+        mTotal.add(nanos);
+        mMax.accumulate(nanos);
+    }
+
+    public void reset() {
+        for (LongAdder count : mCounts) {
+            count.reset();
+        }
+        mTotal.reset();
+        mMax.reset();
+    }
+
+    public Snapshot snapshot() {
+        final long[] counts = new long[BUCKET_COUNT];
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts[i] = mCounts[i].sum();
+        }
+        return new Snapshot(counts, mTotal.sum(), mMax.get());
+    }
+
+    static int bucketIndex(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int)value;
+        }
+        final int shift = (Long.SIZE - 1 - Long.numberOfLeadingZeros(value)) - SUB_BUCKET_BITS;
+        final int subBucket = (int)(value >>> shift) - SUB_BUCKET_COUNT;
+        return (shift + 1) * SUB_BUCKET_COUNT + subBucket;
+    }
+
+    /**
+     * @return the highest value that lands in the same bucket as the given index.
+     */
+    static long highestEquivalentValue(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        final int shift = index / SUB_BUCKET_COUNT - 1;
+        final long subBucket = index % SUB_BUCKET_COUNT + SUB_BUCKET_COUNT;
+        return ((subBucket + 1) << shift) - 1;
+    }
+
+    /**
+     * Immutable copy of a histogram at one point in time.
+     */
+    public static final class Snapshot {
+        private final long[] mCounts;
+        private final long mCount;
+        private final long mTotal;
+        private final long mMax;
+
+        Snapshot(long[] counts, long total, long max) {
+            long count = 0;
+            for (long c : counts) {
+                count += c;
+            }
+            mCounts = counts;
+            mCount = count;
+            mTotal = total;
+            mMax = max;
+        }
+
+        public long getCount() {
+            return mCount;
+        }
+
+        public long getMax() {
+            return mMax;
+        }
+
+        public double getMean() {
+            return mCount == 0 ? 0 : (double)mTotal / mCount;
+        }
+
+        /**
+         * @param percentile between 0 and 100.
+         * @return the value at the given percentile, 0 if nothing was recorded.
+         */
+        public long getValueAtPercentile(double percentile) {
+            if (mCount == 0) {
+                return 0;
+            }
+            final long target = Math.max(1, (long)Math.ceil(percentile / 100.0 * mCount));
+            long seen = 0;
+            for (int i = 0; i < mCounts.length; i++) {
+                seen += mCounts[i];
+                if (seen >= target) {
+                    return Math.min(highestEquivalentValue(i), mMax);
+                }
+            }
+            return mMax;
+        }
+
+        @Override
+        public String toString() {
+            return "count=" + mCount
+                    + " mean=" + (long)getMean()
+                    + " p50=" + getValueAtPercentile(50)
+                    + " p90=" + getValueAtPercentile(90)
+                    + " p99=" + getValueAtPercentile(99)
+                    + " p999=" + getValueAtPercentile(99.9)
+                    + " max=" + mMax;
+        }
+    }
+}
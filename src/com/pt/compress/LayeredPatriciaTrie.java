@@ -0,0 +1,267 @@
+package com.pt.compress;
+
+import com.pt.AbstractPatriciaTrie;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * A read-only {@link BinaryPatriciaTrie} with a small mutable delta on top of it.
+ *
+ * Added words and tombstones of removed words live in a concurrent sorted map, and are
+ * consulted before the base dictionary. Once the delta grows past a threshold, a background
+ * thread re-encodes base and delta into a new binary dictionary and swaps it in.
+ *
+ * All the layers are published together through one volatile reference, so readers never
+ * lock, and never see a base without the delta that was compacted into it. During a
+ * compaction the delta being encoded is frozen, and new writes go to a fresh delta.
+ */
+public class LayeredPatriciaTrie implements AbstractPatriciaTrie, Closeable {
+    private static final class Layers {
+        final BinaryPatriciaTrie mBase;
+        // The delta being compacted into the next base, or null if no compaction is running.
+        final ConcurrentSkipListMap<String, Boolean> mFrozen;
+        // true for an added word, false for a removed one.
+        final ConcurrentSkipListMap<String, Boolean> mDelta;
+
+        Layers(BinaryPatriciaTrie base, ConcurrentSkipListMap<String, Boolean> frozen,
+               ConcurrentSkipListMap<String, Boolean> delta) {
+            mBase = base;
+            mFrozen = frozen;
+            mDelta = delta;
+        }
+    }
+
+    private final File mBaseFile;
+    private final int mCompactionThreshold;
+    private final ExecutorService mCompactor;
+    // Serializes writers and layer swaps. Readers never take it.
+    private final Object mLock = new Object();
+    private volatile Layers mLayers;
+    // Guarded by mLock. ConcurrentSkipListMap.size() is not constant time.
+    private int mDeltaSize = 0;
+    private int mGeneration = 0;
+
+    /**
+     * @param baseFile the binary dictionary to start from. It is never modified; compacted
+     *                 dictionaries are written next to it.
+     * @param compactionThreshold the number of delta entries that triggers a compaction.
+     */
+    public LayeredPatriciaTrie(File baseFile, int compactionThreshold) throws IOException {
+        mBaseFile = baseFile;
+        mCompactionThreshold = compactionThreshold;
+        mLayers = new Layers(new BinaryPatriciaTrie(baseFile), null, new ConcurrentSkipListMap<>());
+        mCompactor = Executors.newSingleThreadExecutor(r -> {
+            final Thread t = new Thread(r, "pt-compactor");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    @Override
+    public void addWord(String word) {
+        put(word, Boolean.TRUE);
+    }
+
+    public void removeWord(String word) {
+        put(word, Boolean.FALSE);
+    }
+
+    private void put(String word, Boolean value) {
+        synchronized (mLock) {
+            if (null == mLayers.mDelta.put(word, value)) {
+                mDeltaSize++;
+            }
+            if (mDeltaSize >= mCompactionThreshold && null == mLayers.mFrozen) {
+                compact();
+            }
+        }
+    }
+
+    @Override
+    public boolean contains(String word) {
+        final Layers layers = mLayers;
+        Boolean value = layers.mDelta.get(word);
+        if (null == value && null != layers.mFrozen) {
+            value = layers.mFrozen.get(word);
+        }
+        if (null != value) {
+            return value;
+        }
+        return layers.mBase.contains(word);
+    }
+
+    @Override
+    public List<String> search(String prefix) {
+        final Layers layers = mLayers;
+        final ArrayList<String> res = new ArrayList<>();
+        final Iterator<String> it = new MergingIterator(layers.mBase.search(prefix).iterator(),
+                overlay(layers, prefix).entrySet().iterator());
+        while (it.hasNext()) {
+            res.add(it.next());
+        }
+        return res;
+    }
+
+    @Override
+    public Iterator<String> iterator() {
+        final Layers layers = mLayers;
+        return new MergingIterator(layers.mBase.iterator(), overlay(layers, "").entrySet().iterator());
+    }
+
+    /**
+     * Starts a compaction of the current delta, unless one is already running.
+     *
+     * @return the pending compaction, or null if one was already running.
+     */
+    public Future<?> compact() {
+        synchronized (mLock) {
+            final Layers layers = mLayers;
+            if (null != layers.mFrozen) {
+                return null;
+            }
+            final ConcurrentSkipListMap<String, Boolean> frozen = layers.mDelta;
+            mLayers = new Layers(layers.mBase, frozen, new ConcurrentSkipListMap<>());
+            mDeltaSize = 0;
+            final int generation = ++mGeneration;
+            return mCompactor.submit(() -> {
+                try {
+                    compactInto(layers.mBase, frozen, generation);
+                } catch (Exception e) {
+                    abortCompaction(frozen);
+                    throw e;
+                }
+                return null;
+            });
+        }
+    }
+
+    private void compactInto(BinaryPatriciaTrie base, ConcurrentSkipListMap<String, Boolean> frozen,
+                             int generation) throws Exception {
+        final PatriciaTrie pt = new PatriciaTrie();
+        final Iterator<String> it = new MergingIterator(base.iterator(), frozen.entrySet().iterator());
+        while (it.hasNext()) {
+            pt.addWord(it.next());
+        }
+        // Encode next to the target, then move it in place, so a crash never leaves a
+        // truncated dictionary behind under the final name.
+        final File target = getCompactedFile(generation);
+        final File tmp = new File(target.getPath() + ".tmp");
+        new PatriciaTrieEncoder().writeDictionary(tmp, pt);
+        Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        final BinaryPatriciaTrie compacted = new BinaryPatriciaTrie(target);
+        synchronized (mLock) {
+            mLayers = new Layers(compacted, null, mLayers.mDelta);
+        }
+        // The previous base is fully read into memory, so its file is no longer needed,
+        // unless it is the original one.
+        if (generation > 1) {
+            getCompactedFile(generation - 1).delete();
+        }
+    }
+
+    private File getCompactedFile(int generation) {
+        return new File(mBaseFile.getPath() + "." + generation);
+    }
+
+    // Puts the frozen entries back into the live delta; newer writes win.
+    private void abortCompaction(ConcurrentSkipListMap<String, Boolean> frozen) {
+        synchronized (mLock) {
+            final Layers layers = mLayers;
+            for (Map.Entry<String, Boolean> e : frozen.entrySet()) {
+                if (null == layers.mDelta.putIfAbsent(e.getKey(), e.getValue())) {
+                    mDeltaSize++;
+                }
+            }
+            mLayers = new Layers(layers.mBase, null, layers.mDelta);
+        }
+    }
+
+    private static NavigableMap<String, Boolean> overlay(Layers layers, String prefix) {
+        final String end = prefix + Character.MAX_VALUE;
+        final NavigableMap<String, Boolean> delta = layers.mDelta.subMap(prefix, true, end, false);
+        if (null == layers.mFrozen) {
+            return delta;
+        }
+        final TreeMap<String, Boolean> overlay = new TreeMap<>(layers.mFrozen.subMap(prefix, true, end, false));
+        overlay.putAll(delta);
+        return overlay;
+    }
+
+    @Override
+    public void close() {
+        mCompactor.shutdownNow();
+    }
+
+    /**
+     * Merges sorted base words with sorted delta entries: added words are inserted in order,
+     * and tombstones hide the matching base word.
+     */
+    private static final class MergingIterator implements Iterator<String> {
+        private final Iterator<String> mBase;
+        private final Iterator<Map.Entry<String, Boolean>> mOverlay;
+        private String mBaseHead;
+        private Map.Entry<String, Boolean> mOverlayHead;
+        private String mNext;
+
+        MergingIterator(Iterator<String> base, Iterator<Map.Entry<String, Boolean>> overlay) {
+            mBase = base;
+            mOverlay = overlay;
+            mBaseHead = mBase.hasNext() ? mBase.next() : null;
+            mOverlayHead = mOverlay.hasNext() ? mOverlay.next() : null;
+            mNext = fetchNext();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return null != mNext;
+        }
+
+        @Override
+        public String next() {
+            if (null == mNext) {
+                throw new NoSuchElementException();
+            }
+            final String res = mNext;
+            mNext = fetchNext();
+            return res;
+        }
+
+        private String fetchNext() {
+            while (null != mBaseHead || null != mOverlayHead) {
+                final int cmp = null == mBaseHead ? 1
+                        : null == mOverlayHead ? -1
+                        : mBaseHead.compareTo(mOverlayHead.getKey());
+                if (cmp < 0) {
+                    final String res = mBaseHead;
+                    mBaseHead = mBase.hasNext() ? mBase.next() : null;
+                    return res;
+                }
+                final Map.Entry<String, Boolean> entry = mOverlayHead;
+                mOverlayHead = mOverlay.hasNext() ? mOverlay.next() : null;
+                if (cmp == 0) {
+                    mBaseHead = mBase.hasNext() ? mBase.next() : null;
+                }
+                if (entry.getValue()) {
+                    return entry.getKey();
+                }
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,307 @@
+package com.pt.compress;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static com.pt.compress.DecoderUtils.*;
+import static com.pt.compress.EncoderUtils.*;
+
+/**
+ * Named counters describing the layout of a dictionary, in a fixed order.
+ *
+ * The same keys are used for the same quantities whatever the source, so that reports of
+ * the encoder, of binary dictionaries and of in-memory tries can be compared directly, or
+ * dumped as JSON and compared across runs:
+ * - {@link #ofNodeArrays}: the flattened node arrays, as placed by the encoder, without the
+ *   header, which depends on the options the file is written with,
+ * - {@link #ofDictionary}: a binary dictionary, walked from its root, plus the sizes of
+ *   its suffix index and shortcut pool if any,
+ * - {@link #ofTrie}: the estimated heap footprint of an in-memory trie.
+ */
+public final class LayoutReport {
+    // Estimated object sizes on a 64-bit JVM with compressed references: 12 bytes of
+    // object header, 4 bytes references, 16 bytes of array header, 8 bytes alignment.
+    private static final int OBJECT_HEADER = 12;
+    private static final int ARRAY_HEADER = 16;
+    private static final int REFERENCE = 4;
+    // mChars, terminal, mChildren, and the 3 encoder ints.
+    private static final int PTNODE_BYTES = align(OBJECT_HEADER + REFERENCE + 1 + REFERENCE + 3 * 4);
+    // mData, and the 3 encoder ints.
+    private static final int PTNODE_ARRAY_BYTES = align(OBJECT_HEADER + REFERENCE + 3 * 4);
+    // modCount, size, elementData.
+    private static final int ARRAY_LIST_BYTES = align(OBJECT_HEADER + 4 + 4 + REFERENCE);
+    // As in ArrayList: 10 slots on the first add, then 1.5 times more on each growth.
+    private static final int ARRAY_LIST_DEFAULT_CAPACITY = 10;
+
+    private final String mTitle;
+    private final LinkedHashMap<String, Long> mValues = new LinkedHashMap<>();
+
+    LayoutReport(String title) {
+        mTitle = title;
+    }
+
+    void put(String key, long value) {
+        mValues.put(key, value);
+    }
+
+    void add(String key, long delta) {
+        mValues.merge(key, delta, Long::sum);
+    }
+
+    /**
+     * @return the value of a counter, or 0 if the report does not have it.
+     */
+    public long get(String key) {
+        return mValues.getOrDefault(key, 0L);
+    }
+
+    public Map<String, Long> getValues() {
+        return Collections.unmodifiableMap(mValues);
+    }
+
+    public String toJson() {
+        final StringBuilder sb = new StringBuilder("{");
+        for (Map.Entry<String, Long> e : mValues.entrySet()) {
+            if (sb.length() > 1) sb.append(',');
+            sb.append('"').append(e.getKey()).append("\":").append(e.getValue());
+        }
+        return sb.append('}').toString();
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder(mTitle).append(':');
+        for (Map.Entry<String, Long> e : mValues.entrySet()) {
+            sb.append("\n  ").append(e.getKey()).append(' ').append(e.getValue());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Reports the node arrays once the encoder computed their final addresses.
+     */
+    static LayoutReport ofNodeArrays(ArrayList<PatriciaTrie.PtNodeArray> ptNodeArrays) {
+        final LayoutReport report = new LayoutReport("Statistics");
+        int firstTerminalAddress = Integer.MAX_VALUE;
+        int lastTerminalAddress = Integer.MIN_VALUE;
+        int size = 0;
+        int maxNodes = 0;
+        int maxRuns = 0;
+        report.put("main_trie_bytes", 0);
+        initBinaryCounters(report);
+        for (final PatriciaTrie.PtNodeArray ptNodeArray : ptNodeArrays) {
+            final int count = ptNodeArray.mData.size();
+            if (maxNodes < count) maxNodes = count;
+            report.add("node_arrays", 1);
+            report.add("count_bytes", getPtNodeCountSize(count));
+            for (final PatriciaTrie.PtNode ptNode : ptNodeArray.mData) {
+                if (ptNode.mChars.length > maxRuns) maxRuns = ptNode.mChars.length;
+                // The cached size holds the header, the children address, then the attributes.
+                final int surfaceFormsSize = getSurfaceFormsSize(ptNode);
+                final int shortcutsSize = getShortcutsSize(ptNode);
+                final int bigramsSize = getPlacedBigramsSize(ptNode);
+                final int addressSize = ptNode.mCachedSize - getNodeHeaderSize(ptNode) - surfaceFormsSize
+                        - shortcutsSize - bigramsSize;
+                countPtNode(report, ptNode.mChars.length, ptNode.isTerminal(), addressSize);
+                report.add("surface_form_bytes", surfaceFormsSize);
+                report.add("shortcut_bytes", shortcutsSize);
+                report.add("shortcuts", hasShortcuts(ptNode) ? ptNode.mShortcuts.size() : 0);
+                report.add("bigram_bytes", bigramsSize);
+                report.add("bigrams", getBigramCount(ptNode));
+                if (ptNode.isTerminal()) {
+                    if (ptNodeArray.mCachedAddressAfterUpdate < firstTerminalAddress)
+                        firstTerminalAddress = ptNodeArray.mCachedAddressAfterUpdate;
+                    if (ptNodeArray.mCachedAddressAfterUpdate > lastTerminalAddress)
+                        lastTerminalAddress = ptNodeArray.mCachedAddressAfterUpdate;
+                }
+            }
+            if (ptNodeArray.mCachedAddressAfterUpdate + ptNodeArray.mCachedSize > size) {
+                size = ptNodeArray.mCachedAddressAfterUpdate + ptNodeArray.mCachedSize;
+            }
+        }
+        report.put("main_trie_bytes", size);
+        report.put("first_terminal_address", firstTerminalAddress);
+        report.put("last_terminal_address", lastTerminalAddress);
+        report.put("max_pt_nodes_per_array", maxNodes);
+        report.put("max_label_length", maxRuns);
+        return report;
+    }
+
+    /**
+     * Reports a binary dictionary by walking all the node arrays reachable from its root.
+     */
+    static LayoutReport ofDictionary(DictBuffer buffer, int rootIndex) {
+        final LayoutReport report = new LayoutReport("Dictionary layout");
+        report.put("file_size", buffer.limit());
+        report.put("header_bytes", rootIndex);
+        // The shortcut pool ends the file, and the suffix index runs from the end of the main
+        // trie up to it.
+        final int shortcutPool = readShortcutPoolAddress(buffer);
+        final int end = shortcutPool == 0 ? buffer.limit() : shortcutPool;
+        final int suffixIndex = readSuffixIndexAddress(buffer);
+        report.put("main_trie_bytes", (suffixIndex == 0 ? end : suffixIndex) - rootIndex);
+        // Part of the header, which it ends.
+        final int membershipFilter = readMembershipFilterAddress(buffer);
+        report.put("membership_filter_bytes", membershipFilter == 0 ? 0 : rootIndex - membershipFilter);
+        initBinaryCounters(report);
+        int maxNodes = 0;
+        int maxRuns = 0;
+        final ArrayDeque<Integer> stack = new ArrayDeque<>();
+        stack.push(rootIndex);
+        while (!stack.isEmpty()) {
+            final int position = stack.pop();
+            final int[] nc = readPtNodeCount(buffer, position);
+            final int count = nc[0];
+            int pos = nc[1];
+            if (maxNodes < count) maxNodes = count;
+            report.add("node_arrays", 1);
+            report.add("count_bytes", pos - position);
+            for (int i = 0; i < count; i++) {
+                final PtNodeInfo info = readPtNode(buffer, pos);
+                pos = info.mEndAddress;
+                if (info.mCharacters.length > maxRuns) maxRuns = info.mCharacters.length;
+                countPtNode(report, info.mCharacters.length, info.isTerminal(),
+                        childrenAddressSize((byte)info.mFlags));
+                final int surfaceFormsEnd = skipSurfaceForms(buffer, info.mAttributesAddress, info.mFlags);
+                final int shortcutsEnd = skipShortcuts(buffer, surfaceFormsEnd, info.mFlags);
+                report.add("surface_form_bytes", surfaceFormsEnd - info.mAttributesAddress);
+                report.add("shortcut_bytes", shortcutsEnd - surfaceFormsEnd);
+                report.add("shortcuts", countEntries(buffer, surfaceFormsEnd, info.mFlags & NODE_FLAG_SHORTCUTS));
+                report.add("bigram_bytes", info.mEndAddress - shortcutsEnd);
+                report.add("bigrams", countEntries(buffer, shortcutsEnd, info.mFlags & NODE_FLAG_BIGRAMS));
+                if (info.hasChildren()) {
+                    stack.push(info.mChildrenAddress);
+                }
+            }
+        }
+        report.put("max_pt_nodes_per_array", maxNodes);
+        report.put("max_label_length", maxRuns);
+        report.put("suffix_index_bytes", suffixIndex == 0 ? 0 : end - suffixIndex);
+        report.put("shortcut_pool_bytes", buffer.limit() - end);
+        // Bytes no node array accounts for; 0 for a dictionary written by the encoder.
+        report.put("unaccounted_bytes", buffer.limit() - rootIndex - report.get("suffix_index_bytes")
+                - report.get("shortcut_pool_bytes") - report.get("count_bytes")
+                - report.get("flags_bytes") - report.get("char_bytes")
+                - report.get("char_terminator_bytes") - report.get("children_address_bytes")
+                - report.get("surface_form_bytes") - report.get("shortcut_bytes") - report.get("bigram_bytes"));
+        return report;
+    }
+
+    /**
+     * Reports the estimated heap footprint of an in-memory trie, per structure.
+     *
+     * The capacity of the child ArrayLists is not observable, so it is estimated from their
+     * size, assuming they only grew by single adds from an empty list.
+     */
+    static LayoutReport ofTrie(PatriciaTrie pt) {
+        final LayoutReport report = new LayoutReport("Memory footprint");
+        long ptNodes = 0, nodeArrays = 0, labelChars = 0, maxLabel = 0, slots = 0, capacity = 0;
+        long labelBytes = 0, slotBytes = 0;
+        final ArrayDeque<PatriciaTrie.PtNode> stack = new ArrayDeque<>();
+        stack.push(pt.getRoot());
+        while (!stack.isEmpty()) {
+            final PatriciaTrie.PtNode ptNode = stack.pop();
+            ptNodes++;
+            labelChars += ptNode.mChars.length;
+            maxLabel = Math.max(maxLabel, ptNode.mChars.length);
+            labelBytes += align(ARRAY_HEADER + 2L * ptNode.mChars.length);
+            final PatriciaTrie.PtNodeArray children = ptNode.getChildren();
+            if (children == null) {
+                continue;
+            }
+            nodeArrays++;
+            final int size = children.mData.size();
+            final int estimatedCapacity = estimateCapacity(size);
+            slots += size;
+            capacity += estimatedCapacity;
+            slotBytes += estimatedCapacity == 0 ? 0 : align(ARRAY_HEADER + (long)REFERENCE * estimatedCapacity);
+            for (PatriciaTrie.PtNode child : children.mData) {
+                stack.push(child);
+            }
+        }
+        report.put("words", pt.getWordsCount());
+        // The root, a PtNode without chars, is counted as well.
+        report.put("pt_nodes", ptNodes);
+        report.put("node_arrays", nodeArrays);
+        report.put("label_chars", labelChars);
+        report.put("max_label_length", maxLabel);
+        report.put("array_slots_used", slots);
+        report.put("array_slots_capacity", capacity);
+        report.put("array_slots_wasted", capacity - slots);
+        report.put("pt_node_bytes", ptNodes * PTNODE_BYTES);
+        report.put("label_bytes", labelBytes);
+        report.put("node_array_bytes", nodeArrays * (PTNODE_ARRAY_BYTES + ARRAY_LIST_BYTES));
+        report.put("array_slot_bytes", slotBytes);
+        report.put("array_slot_wasted_bytes", (long)REFERENCE * (capacity - slots));
+        report.put("total_bytes", ptNodes * PTNODE_BYTES + labelBytes
+                + nodeArrays * (PTNODE_ARRAY_BYTES + ARRAY_LIST_BYTES) + slotBytes);
+        return report;
+    }
+
+    private static void initBinaryCounters(LayoutReport report) {
+        for (String key : new String[]{"node_arrays", "pt_nodes", "words", "multi_char_pt_nodes",
+                "count_bytes", "flags_bytes", "char_bytes", "char_terminator_bytes",
+                "children_address_bytes", "surface_form_bytes", "shortcuts", "shortcut_bytes",
+                "bigrams", "bigram_bytes", "address_size_0", "address_size_1", "address_size_2",
+                "address_size_3", "address_size_4"}) {
+            report.put(key, 0);
+        }
+    }
+
+    private static void countPtNode(LayoutReport report, int chars, boolean terminal, int addressSize) {
+        report.add("pt_nodes", 1);
+        if (terminal) report.add("words", 1);
+        report.add("flags_bytes", PTNODE_FLAGS_SIZE);
+        report.add("char_bytes", 2 * chars);
+        if (chars > 1) {
+            report.add("multi_char_pt_nodes", 1);
+            report.add("char_terminator_bytes", PTNODE_TERMINATOR_SIZE);
+        }
+        report.add("children_address_bytes", addressSize);
+        report.add("address_size_" + addressSize, 1);
+    }
+
+    // The bigrams of a placed PtNode, with their final offsets.
+    private static int getPlacedBigramsSize(PatriciaTrie.PtNode ptNode) {
+        if (getBigramCount(ptNode) == 0) return 0;
+        final int start = ptNode.mCachedAddressAfterUpdate + getNodeHeaderSize(ptNode)
+                + getByteSize(getChildrenPosition(ptNode)) + getSurfaceFormsSize(ptNode);
+        int position = start;
+        for (PatriciaTrie.WeightedString bigram : ptNode.mBigrams) {
+            if (null == bigram.mTarget) continue;
+            position += 1 + getAttributeOffsetSize(bigram.mTarget.mCachedAddressAfterUpdate - position);
+        }
+        return position - start;
+    }
+
+    // Counts the shortcut or bigram entries at a position, if flag, the flag of their kind, is set.
+    private static int countEntries(DictBuffer buffer, int position, int flag) {
+        if (flag == 0) return 0;
+        int count = 1;
+        int pos = position;
+        int entry;
+        while (((entry = readUnsignedByte(buffer, pos)) & FLAG_ATTR_HAS_NEXT) != 0) {
+            pos += 1 + attributeAddressSize(entry);
+            count++;
+        }
+        return count;
+    }
+
+    private static int estimateCapacity(int size) {
+        if (size == 0) {
+            return 0;
+        }
+        int capacity = ARRAY_LIST_DEFAULT_CAPACITY;
+        while (capacity < size) {
+            capacity += capacity >> 1;
+        }
+        return capacity;
+    }
+
+    private static int align(long size) {
+        return (int)((size + 7) & ~7L);
+    }
+}
@@ -0,0 +1,151 @@
+package com.pt.compress;
+
+import java.util.Arrays;
+
+/**
+ * Pure Java codec for the LZ4 block format.
+ *
+ * A compressed block is a sequence of sequences, each made of a token byte (4 bits of literal
+ * length, 4 bits of match length - 4), optional length extension bytes of 255, the literals,
+ * then a 2 bytes little-endian offset back into the output. The last sequence only holds
+ * literals. The compressor is the simple greedy one: a single hash table of 4-byte
+ * sequences, no lazy matching, which favors speed over ratio.
+ */
+public final class Lz4Codec {
+    private static final int MIN_MATCH = 4;
+    private static final int MAX_DISTANCE = 0xFFFF;
+    // As in the reference implementation: the last 5 bytes are always literals, and the last
+    // match starts at least 12 bytes before the end of the block.
+    private static final int LAST_LITERALS = 5;
+    private static final int MF_LIMIT = 12;
+    private static final int HASH_LOG = 12;
+    private static final int RUN_MASK = 0x0F;
+
+    private Lz4Codec() {}
+
+    public static int maxCompressedLength(int length) {
+        return length + length / 255 + 16;
+    }
+
+    public static byte[] compress(byte[] src, int offset, int length) {
+        final byte[] dst = new byte[maxCompressedLength(length)];
+        final int[] table = new int[1 << HASH_LOG];
+        Arrays.fill(table, -1);
+        final int end = offset + length;
+        final int matchLimit = end - LAST_LITERALS;
+        final int mfLimit = end - MF_LIMIT;
+        int anchor = offset;
+        int ip = offset;
+        int op = 0;
+        while (ip < mfLimit) {
+            final int sequence = readIntLE(src, ip);
+            final int h = hash(sequence);
+            final int ref = table[h];
+            table[h] = ip;
+            if (ref < 0 || ip - ref > MAX_DISTANCE || readIntLE(src, ref) != sequence) {
+                ip++;
+                continue;
+            }
+            int matchLength = MIN_MATCH;
+            while (ip + matchLength < matchLimit && src[ref + matchLength] == src[ip + matchLength]) {
+                matchLength++;
+            }
+            op = writeSequence(dst, op, src, anchor, ip - anchor, ip - ref, matchLength);
+            ip += matchLength;
+            anchor = ip;
+        }
+        op = writeSequence(dst, op, src, anchor, end - anchor, 0, 0);
+        return Arrays.copyOf(dst, op);
+    }
+
+    /**
+     * @return the number of bytes written to dst.
+     */
+    public static int decompress(byte[] src, int offset, int length, byte[] dst) {
+        final int end = offset + length;
+        int ip = offset;
+        int op = 0;
+        while (ip < end) {
+            final int token = src[ip++] & 0xFF;
+            int literals = token >>> 4;
+            if (literals == RUN_MASK) {
+                int b;
+                do {
+                    b = src[ip++] & 0xFF;
+                    literals += b;
+                } while (b == 0xFF);
+            }
+            System.arraycopy(src, ip, dst, op, literals);
+            ip += literals;
+            op += literals;
+            if (ip >= end) {
+                break;
+            }
+            final int distance = (src[ip] & 0xFF) | ((src[ip + 1] & 0xFF) << 8);
+            ip += 2;
+            int matchLength = token & RUN_MASK;
+            if (matchLength == RUN_MASK) {
+                int b;
+                do {
+                    b = src[ip++] & 0xFF;
+                    matchLength += b;
+                } while (b == 0xFF);
+            }
+            matchLength += MIN_MATCH;
+            int ref = op - distance;
+            if (distance == 0 || ref < 0) {
+                throw new RuntimeException("corrupted block: offset " + distance + " at " + op);
+            }
+            if (distance >= matchLength) {
+                System.arraycopy(dst, ref, dst, op, matchLength);
+                op += matchLength;
+            } else {
+                // The match overlaps its own output, hence the byte by byte copy.
+                for (int i = 0; i < matchLength; i++) {
+                    dst[op++] = dst[ref++];
+                }
+            }
+        }
+        return op;
+    }
+
+    private static int writeSequence(byte[] dst, int op, byte[] src, int literalStart,
+                                     int literals, int distance, int matchLength) {
+        final int tokenPos = op++;
+        int token = Math.min(literals, RUN_MASK) << 4;
+        op = writeLength(dst, op, literals);
+        System.arraycopy(src, literalStart, dst, op, literals);
+        op += literals;
+        if (matchLength > 0) {
+            dst[op++] = (byte)distance;
+            dst[op++] = (byte)(distance >>> 8);
+            token |= Math.min(matchLength - MIN_MATCH, RUN_MASK);
+            op = writeLength(dst, op, matchLength - MIN_MATCH);
+        }
+        dst[tokenPos] = (byte)token;
+        return op;
+    }
+
+    // Writes the extension bytes of a length which does not fit in its 4 bits of the token.
+    private static int writeLength(byte[] dst, int op, int length) {
+        if (length < RUN_MASK) {
+            return op;
+        }
+        length -= RUN_MASK;
+        while (length >= 0xFF) {
+            dst[op++] = (byte)0xFF;
+            length -= 0xFF;
+        }
+        dst[op++] = (byte)length;
+        return op;
+    }
+
+    private static int readIntLE(byte[] buffer, int position) {
+        return (buffer[position] & 0xFF) | ((buffer[position + 1] & 0xFF) << 8)
+                | ((buffer[position + 2] & 0xFF) << 16) | ((buffer[position + 3] & 0xFF) << 24);
+    }
+
+    private static int hash(int sequence) {
+        return (sequence * -1640531535) >>> (32 - HASH_LOG);
+    }
+}
@@ -0,0 +1,175 @@
+package com.pt.compress;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Blocked Bloom filter of the keys of a dictionary, which rejects most lookups of words that
+ * are not there without walking the trie. There are no false negatives.
+ *
+ * Each key sets its bits in a single block of 512 bits, one cache line, chosen by its hash,
+ * so that a query costs a single cache miss however large the filter. Blocking costs a
+ * slightly higher false positive rate than a plain Bloom filter of the same size, which
+ * {@link #bitsPerKeyFor} accounts for.
+ *
+ * Layout, in the dictionary header, see {@link EncoderUtils#OPTION_MEMBERSHIP_FILTER}:
+ *
+ * hash count, 1 byte
+ * block count, 4 bytes
+ * blocks, 64 bytes each, as 8 big-endian longs
+ */
+public final class MembershipFilter {
+    public static final int DEFAULT_BITS_PER_KEY = 10;
+    static final int HEADER_SIZE = 5;
+    static final int BLOCK_SIZE = 64;
+    private static final int BLOCK_LONGS = BLOCK_SIZE / 8;
+    private static final int MAX_HASH_COUNT = 16;
+
+    private final int mHashCount;
+    private final int mBlockCount;
+    // Copied out of the dictionary, so that probes are plain array reads.
+    private final long[] mBits;
+
+    private MembershipFilter(int hashCount, int blockCount) {
+        mHashCount = hashCount;
+        mBlockCount = blockCount;
+        mBits = new long[blockCount * BLOCK_LONGS];
+    }
+
+    /**
+     * @return the bits per key giving about the false positive rate, from 0 to 1 excluded.
+     */
+    public static int bitsPerKeyFor(double falsePositiveRate) {
+        if (!(falsePositiveRate > 0 && falsePositiveRate < 1)) {
+            throw new IllegalArgumentException("invalid false positive rate " + falsePositiveRate);
+        }
+        // The optimum of a plain Bloom filter, plus a tenth for blocking.
+        final double bits = -Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2));
+        return (int)Math.ceil(bits * 1.1);
+    }
+
+    /**
+     * Builds the filter of the keys of the terminals of a trie, and encodes it.
+     *
+     * @param bitsPerKey the size of the filter per key, see {@link #bitsPerKeyFor}.
+     */
+    static byte[] encode(PatriciaTrie pt, int bitsPerKey) {
+        if (bitsPerKey < 1) {
+            throw new IllegalArgumentException("invalid bits per key " + bitsPerKey);
+        }
+        final ArrayList<char[]> keys = new ArrayList<>();
+        collectKeys(pt.getRoot(), new char[16], 0, keys);
+        final long bits = Math.max(1L, (long)keys.size() * bitsPerKey);
+        final int blockCount = (int)Math.min(Integer.MAX_VALUE / BLOCK_SIZE, (bits + 511) / 512);
+        final int hashCount = Math.max(1, Math.min(MAX_HASH_COUNT, (int)Math.round(bitsPerKey * Math.log(2))));
+        final MembershipFilter filter = new MembershipFilter(hashCount, blockCount);
+        for (char[] key : keys) {
+            filter.add(key);
+        }
+        final byte[] bytes = new byte[HEADER_SIZE + blockCount * BLOCK_SIZE];
+        int pos = EncoderUtils.writeUIntToBuffer(bytes, 0, hashCount, 1);
+        pos = EncoderUtils.writeUIntToBuffer(bytes, pos, blockCount, 4);
+        for (long word : filter.mBits) {
+            pos = EncoderUtils.writeUIntToBuffer(bytes, pos, (int)(word >>> 32), 4);
+            pos = EncoderUtils.writeUIntToBuffer(bytes, pos, (int)word, 4);
+        }
+        return bytes;
+    }
+
+    private static void collectKeys(PatriciaTrie.PtNode ptNode, char[] path, int length, ArrayList<char[]> keys) {
+        if (path.length < length + ptNode.mChars.length) {
+            path = Arrays.copyOf(path, Math.max(path.length * 2, length + ptNode.mChars.length));
+        }
+        System.arraycopy(ptNode.mChars, 0, path, length, ptNode.mChars.length);
+        final int end = length + ptNode.mChars.length;
+        if (ptNode.terminal) {
+            keys.add(Arrays.copyOf(path, end));
+        }
+        if (null != ptNode.mChildren) {
+            for (PatriciaTrie.PtNode child : ptNode.mChildren.mData) {
+                collectKeys(child, path, end, keys);
+            }
+        }
+    }
+
+    /**
+     * Reads a filter out of a dictionary.
+     *
+     * @param position the position of the hash count.
+     * @param limit the end of the header, which the filter must fit in.
+     */
+    static MembershipFilter read(DictBuffer buffer, int position, int limit) {
+        final int hashCount = DecoderUtils.readUnsignedByte(buffer, position);
+        final int blockCount = DecoderUtils.readInt(buffer, position + 1);
+        if (hashCount < 1 || hashCount > MAX_HASH_COUNT || blockCount < 1
+                || blockCount > (limit - position - HEADER_SIZE) / BLOCK_SIZE) {
+            throw new RuntimeException("invalid membership filter at " + position);
+        }
+        final MembershipFilter filter = new MembershipFilter(hashCount, blockCount);
+        int pos = position + HEADER_SIZE;
+        for (int i = 0; i < filter.mBits.length; i++, pos += 8) {
+            filter.mBits[i] = ((long)DecoderUtils.readInt(buffer, pos) << 32)
+                    | (DecoderUtils.readInt(buffer, pos + 4) & 0xFFFFFFFFL);
+        }
+        return filter;
+    }
+
+    /**
+     * @return the size of the filter in the dictionary, in bytes.
+     */
+    public int getSize() {
+        return HEADER_SIZE + mBlockCount * BLOCK_SIZE;
+    }
+
+    /**
+     * @return false if the key is certainly not in the dictionary, true if it may be.
+     */
+    public boolean mightContain(char[] key) {
+        return mightContain(key, key.length);
+    }
+
+    /**
+     * Same as {@link #mightContain(char[])}, for the key in the first length chars of an array.
+     */
+    public boolean mightContain(char[] key, int length) {
+        final long hash = hash(key, length);
+        final int block = blockOf(hash);
+        int bit = (int)hash;
+        final int step = (int)(hash >>> 16) | 1;
+        for (int i = 0; i < mHashCount; i++, bit += step) {
+            if ((mBits[block + ((bit >>> 6) & (BLOCK_LONGS - 1))] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void add(char[] key) {
+        final long hash = hash(key, key.length);
+        final int block = blockOf(hash);
+        int bit = (int)hash;
+        final int step = (int)(hash >>> 16) | 1;
+        for (int i = 0; i < mHashCount; i++, bit += step) {
+            mBits[block + ((bit >>> 6) & (BLOCK_LONGS - 1))] |= 1L << bit;
+        }
+    }
+
+    // The first long of the block, picked from the high bits without a division.
+    private int blockOf(long hash) {
+        return (int)(((hash >>> 32) * mBlockCount) >>> 32) * BLOCK_LONGS;
+    }
+
+    private static long hash(char[] key, int length) {
+        long h = length;
+        for (int i = 0; i < length; i++) {
+            h = (h + key[i]) * 0x9E3779B97F4A7C15L;
+        }
+        // The finalizer of MurmurHash3, so that every bit depends on every char.
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
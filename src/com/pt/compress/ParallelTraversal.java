@@ -0,0 +1,278 @@
+package com.pt.compress;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Consumer;
+
+/**
+ * Parallel walks over the words of a binary dictionary.
+ *
+ * The encoder flattens the trie depth first, so all the node arrays below a PtNode are
+ * contiguous in the file, and end where the children of its next sibling start. This gives
+ * the size in bytes of every subtree for free, which decides where to split: a subtree
+ * larger than the threshold is cut at its node array into the words and the subtrees of
+ * its PtNodes, which are walked in parallel, then put back in order.
+ */
+final class ParallelTraversal {
+    // Around a thousand words.
+    static final int DEFAULT_THRESHOLD = 16 * 1024;
+    // Rough size of a word in a dictionary, to turn bytes into an estimated word count.
+    private static final int BYTES_PER_WORD = 16;
+
+    private ParallelTraversal() {}
+
+    /**
+     * Either a single word, or all the words of a node array and its descendants, which lie
+     * between mPosition and mEnd.
+     */
+    static final class Piece {
+        final String mWord;
+        final String mPrefix;
+        final int mPosition;
+        final int mEnd;
+
+        private Piece(String word, String prefix, int position, int end) {
+            mWord = word;
+            mPrefix = prefix;
+            mPosition = position;
+            mEnd = end;
+        }
+
+        static Piece word(String word) {
+            return new Piece(word, null, 0, 0);
+        }
+
+        static Piece subtree(String prefix, int position, int end) {
+            return new Piece(null, prefix, position, Math.max(position, end));
+        }
+
+        boolean isWord() {
+            return mWord != null;
+        }
+
+        int size() {
+            return mEnd - mPosition;
+        }
+
+        // A word weighs as much as a byte of subtree.
+        int weight() {
+            return isWord() ? 1 : Math.max(1, size());
+        }
+    }
+
+    /**
+     * @return the words starting with the prefix, as at most a word and a subtree.
+     */
+    static ArrayList<Piece> ofPrefix(DictBuffer buffer, int rootIndex, String prefix, boolean folded) {
+        final ArrayList<Piece> pieces = new ArrayList<>(2);
+        if (prefix.isEmpty()) {
+            pieces.add(Piece.subtree("", rootIndex, buffer.limit()));
+            return pieces;
+        }
+        // As in BinaryPatriciaTrie.search: the prefix may end inside a PtNode, whose chars
+        // are then all in sb.
+        final StringBuilder sb = new StringBuilder();
+        final char[] chars = prefix.toCharArray();
+        if (folded) {
+            CharFolding.foldInPlace(chars);
+        }
+        final int[] nodeIndex = DecoderUtils.contains(sb, buffer, rootIndex, chars, 0);
+        if (nodeIndex[0] == -1) {
+            return pieces;
+        }
+        if (nodeIndex[1] == 1) {
+            addWords(pieces, DecoderUtils.readPtNode(buffer, nodeIndex[2]), sb);
+        }
+        if (nodeIndex[0] != 0) {
+            // The end of this subtree is unknown; the end of the dictionary bounds it, and
+            // the first split finds out the ends of its children but the last one.
+            pieces.add(Piece.subtree(sb.toString(), nodeIndex[0], buffer.limit()));
+        }
+        return pieces;
+    }
+
+    /**
+     * Cuts a subtree at its node array, into its words and subtrees, in order.
+     */
+    static ArrayList<Piece> split(DictBuffer buffer, Piece subtree) {
+        final int[] nc = DecoderUtils.readPtNodeCount(buffer, subtree.mPosition);
+        final int count = nc[0];
+        int pos = nc[1];
+        final ArrayList<Piece> pieces = new ArrayList<>(count * 2);
+        // Subtrees only know where they end once the next one starts.
+        int lastSubtree = -1;
+        String lastPrefix = null;
+        final StringBuilder sb = new StringBuilder(subtree.mPrefix);
+        for (int i = 0; i < count; i++) {
+            final PtNodeInfo info = DecoderUtils.readPtNode(buffer, pos);
+            pos = info.mEndAddress;
+            sb.setLength(subtree.mPrefix.length());
+            sb.append(info.mCharacters);
+            final String word = sb.toString();
+            if (info.isTerminal()) {
+                addWords(pieces, info, word);
+            }
+            if (info.hasChildren()) {
+                if (lastSubtree >= 0) {
+                    final Piece last = pieces.get(lastSubtree);
+                    pieces.set(lastSubtree, Piece.subtree(lastPrefix, last.mPosition, info.mChildrenAddress));
+                }
+                lastSubtree = pieces.size();
+                lastPrefix = word;
+                pieces.add(Piece.subtree(word, info.mChildrenAddress, subtree.mEnd));
+            }
+        }
+        return pieces;
+    }
+
+    private static void addWords(List<Piece> pieces, PtNodeInfo info, CharSequence key) {
+        if (info.mSurfaceForms == null) {
+            pieces.add(Piece.word(key.toString()));
+            return;
+        }
+        for (String form : info.mSurfaceForms) {
+            pieces.add(Piece.word(form));
+        }
+    }
+
+    /**
+     * Collects all the words of a subtree, in order.
+     */
+    @SuppressWarnings("serial")
+    static final class SearchTask extends RecursiveTask<List<String>> {
+        private final DictBuffer mBuffer;
+        private final Piece mSubtree;
+        private final int mThreshold;
+
+        SearchTask(DictBuffer buffer, Piece subtree, int threshold) {
+            mBuffer = buffer;
+            mSubtree = subtree;
+            mThreshold = threshold;
+        }
+
+        @Override
+        protected List<String> compute() {
+            if (mSubtree.size() <= mThreshold) {
+                final ArrayList<String> res = new ArrayList<>();
+                // The bounded walk shares one StringBuilder, which is cheaper than the plain one.
+                DecoderUtils.traverse(mBuffer, mSubtree.mPosition, new StringBuilder(mSubtree.mPrefix), res,
+                        Integer.MAX_VALUE);
+                return res;
+            }
+            final ArrayList<Piece> pieces = split(mBuffer, mSubtree);
+            final ArrayList<SearchTask> subtasks = new ArrayList<>();
+            for (Piece piece : pieces) {
+                if (!piece.isWord()) {
+                    subtasks.add(new SearchTask(mBuffer, piece, mThreshold));
+                }
+            }
+            invokeAll(subtasks);
+            final ArrayList<String> res = new ArrayList<>();
+            int next = 0;
+            for (Piece piece : pieces) {
+                if (piece.isWord()) {
+                    res.add(piece.mWord);
+                } else {
+                    res.addAll(subtasks.get(next++).join());
+                }
+            }
+            return res;
+        }
+    }
+
+    /**
+     * Ordered spliterator over words and subtrees. Splitting hands out the first half, in
+     * bytes, of the pending pieces, and cuts the last pending subtree when it is alone.
+     */
+    static final class SubtreeSpliterator implements Spliterator<String> {
+        private final DictBuffer mBuffer;
+        private final int mThreshold;
+        private final ArrayDeque<Piece> mPieces;
+        // Words of folded dictionaries are in the order of their keys, not their own.
+        private final boolean mSorted;
+        // Walks the subtree being consumed, if any. It always comes before mPieces.
+        private Iterator<String> mCurrent;
+
+        SubtreeSpliterator(DictBuffer buffer, List<Piece> pieces, int threshold, boolean sorted) {
+            this(buffer, threshold, new ArrayDeque<>(pieces), null, sorted);
+        }
+
+        private SubtreeSpliterator(DictBuffer buffer, int threshold, ArrayDeque<Piece> pieces,
+                                   Iterator<String> current, boolean sorted) {
+            mBuffer = buffer;
+            mThreshold = threshold;
+            mPieces = pieces;
+            mCurrent = current;
+            mSorted = sorted;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super String> action) {
+            while (mCurrent == null || !mCurrent.hasNext()) {
+                mCurrent = null;
+                final Piece piece = mPieces.pollFirst();
+                if (piece == null) {
+                    return false;
+                }
+                if (piece.isWord()) {
+                    action.accept(piece.mWord);
+                    return true;
+                }
+                mCurrent = new BinaryPatriciaTrieIterator(mBuffer, piece.mPosition, piece.mPrefix);
+            }
+            action.accept(mCurrent.next());
+            return true;
+        }
+
+        @Override
+        public Spliterator<String> trySplit() {
+            if (mCurrent == null && mPieces.size() == 1 && !mPieces.peekFirst().isWord()
+                    && mPieces.peekFirst().size() > mThreshold) {
+                mPieces.addAll(split(mBuffer, mPieces.pollFirst()));
+            }
+            if (mPieces.size() < 2) {
+                return null;
+            }
+            long total = 0;
+            for (Piece piece : mPieces) {
+                total += piece.weight();
+            }
+            // Hand out pieces up to half the bytes, but always leave one behind.
+            final ArrayDeque<Piece> prefix = new ArrayDeque<>();
+            long size = 0;
+            while (mPieces.size() > 1 && size * 2 < total) {
+                final Piece piece = mPieces.pollFirst();
+                size += piece.weight();
+                prefix.addLast(piece);
+            }
+            final Spliterator<String> res = new SubtreeSpliterator(mBuffer, mThreshold, prefix, mCurrent, mSorted);
+            mCurrent = null;
+            return res;
+        }
+
+        @Override
+        public long estimateSize() {
+            long size = mCurrent != null ? 1 : 0;
+            for (Piece piece : mPieces) {
+                size += piece.isWord() ? 1 : Math.max(1, piece.size() / BYTES_PER_WORD);
+            }
+            return size;
+        }
+
+        @Override
+        public int characteristics() {
+            return ORDERED | (mSorted ? SORTED : 0) | DISTINCT | NONNULL | IMMUTABLE;
+        }
+
+        @Override
+        public Comparator<? super String> getComparator() {
+            // Natural order: PtNodes are sorted by char value, as String.compareTo does.
+            return null;
+        }
+    }
+}
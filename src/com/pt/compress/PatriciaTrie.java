@@ -57,6 +57,12 @@ public class PatriciaTrie implements AbstractPatriciaTrie {
         public char mChars[] = new char[0];
         public boolean terminal = false;
         PtNodeArray mChildren;
+        // In a folded trie, the words of a terminal, sorted, which all fold to its key.
+        ArrayList<String> mSurfaceForms;
+        // The words a terminal is a shortcut for, by decreasing probability.
+        ArrayList<WeightedString> mShortcuts;
+        // The words which may follow the word of a terminal, by decreasing probability.
+        ArrayList<WeightedString> mBigrams;
 
         public PtNode() {
             mChars = new char[0];
@@ -97,6 +103,28 @@ public class PatriciaTrie implements AbstractPatriciaTrie {
         }
     }
 
+    /**
+     * A word with a probability: a shortcut target, or a word which may follow the word of a
+     * terminal.
+     *
+     * The word is kept by its spelling, so that a next word does not need to be in the trie
+     * yet, and the encoder resolves it to its terminal PtNode, see
+     * {@link EncoderUtils#resolveBigrams}.
+     */
+    static final class WeightedString {
+        final String mWord;
+        int mProbability;
+        // For bigrams: the terminal of mWord in the trie being encoded, or null if it is not there.
+        PtNode mTarget;
+        // For shortcuts: the offset of mWord in the shortcut pool being encoded.
+        int mPoolOffset;
+
+        WeightedString(String word, int probability) {
+            mWord = word;
+            mProbability = probability;
+        }
+    }
+
     /**
      * Helper class that compares and sorts two PtNodes according to their
      * first element only. I repeat: ONLY the first element is considered, the rest
@@ -119,6 +147,14 @@ public class PatriciaTrie implements AbstractPatriciaTrie {
         mRoot.mChildren = new PtNodeArray();
     }
 
+    /**
+     * Makes a trie out of existing PtNodes, which become the children of the root. The
+     * PtNodes are shared, not copied.
+     */
+    PatriciaTrie(ArrayList<PtNode> rootChildren) {
+        mRoot.mChildren = new PtNodeArray(rootChildren);
+    }
+
     public int getWordsCount() {
         return mWordsCount;
     }
@@ -127,6 +163,13 @@ public class PatriciaTrie implements AbstractPatriciaTrie {
         return mRoot;
     }
 
+    /**
+     * @return the estimated heap footprint of the trie, per structure.
+     */
+    public LayoutReport getMemoryReport() {
+        return LayoutReport.ofTrie(this);
+    }
+
     @Override
     public Iterator<String> iterator() {
         return new PatriciaTrieIterator(mRoot);
@@ -187,10 +230,16 @@ public class PatriciaTrie implements AbstractPatriciaTrie {
                     // containing the current prefix and create two new ones for the tails.
                     PtNode splittedNode = new PtNode(Arrays.copyOfRange(current.mChars, differentCharIndex, current.mChars.length));
                     splittedNode.terminal = current.terminal;
+                    splittedNode.mSurfaceForms = current.mSurfaceForms;
+                    splittedNode.mShortcuts = current.mShortcuts;
+                    splittedNode.mBigrams = current.mBigrams;
                     splittedNode.mChildren = current.mChildren;
 
                     current.mChars = Arrays.copyOfRange(current.mChars, 0, differentCharIndex);
                     current.terminal = false;
+                    current.mSurfaceForms = null;
+                    current.mShortcuts = null;
+                    current.mBigrams = null;
                     current.mChildren = new PtNodeArray();
                     current.mChildren.mData.add(splittedNode);
                     if (charIndex + differentCharIndex >= chars.length) {
@@ -208,6 +257,175 @@ public class PatriciaTrie implements AbstractPatriciaTrie {
         }
     }
 
+    /**
+     * Removes a word from the trie.
+     *
+     * The trie is kept path-compressed: a PtNode that no longer carries a word nor children is
+     * dropped from its node array, and a non-terminal PtNode left with a single child is merged
+     * with it, which is the converse of the split done in addWord.
+     *
+     * @param word the word to remove.
+     * @return true if the word was in the trie, false otherwise.
+     */
+    public boolean removeWord(String word) {
+        if (word.isEmpty()) return false;
+        final ArrayList<PtNode> path = new ArrayList<>();
+        PtNode current = findNode(word, path);
+        if (null == current || !current.terminal) return false;
+        current.terminal = false;
+        current.mSurfaceForms = null;
+        current.mShortcuts = null;
+        current.mBigrams = null;
+        mWordsCount--;
+
+        // Drop the PtNodes which became useless, bottom-up. The root is never dropped.
+        int depth = path.size() - 1;
+        while (depth >= 0 && !current.terminal
+                && (null == current.mChildren || current.mChildren.mData.isEmpty())) {
+            final PtNode parent = path.get(depth--);
+            parent.mChildren.mData.remove(current);
+            if (parent != mRoot && parent.mChildren.mData.isEmpty()) {
+                parent.mChildren = null;
+            }
+            current = parent;
+        }
+        if (current != mRoot && !current.terminal
+                && null != current.mChildren && current.mChildren.mData.size() == 1) {
+            mergeWithOnlyChild(current);
+        }
+        return true;
+    }
+
+    /**
+     * Adds a folded key, and records the word it comes from as one of its surface forms.
+     */
+    void addWord(String key, String surfaceForm) {
+        PtNode node = findNode(key, null);
+        if (null == node || !node.terminal) {
+            addWord(key);
+            node = findNode(key, null);
+        }
+        if (null == node.mSurfaceForms) {
+            node.mSurfaceForms = new ArrayList<>(1);
+        }
+        final int index = Collections.binarySearch(node.mSurfaceForms, surfaceForm);
+        if (index < 0) {
+            node.mSurfaceForms.add(-index - 1, surfaceForm);
+        }
+    }
+
+    /**
+     * Records that next may follow word, as the bigram lines of the combined word list.
+     * Adding the same bigram again keeps the highest probability.
+     *
+     * @param probability from 0 to {@link EncoderUtils#MAX_PROBABILITY}.
+     * @throws IllegalArgumentException if word is not in the trie, or the probability is out
+     * of range.
+     */
+    @Override
+    public void addBigram(String word, String next, int probability) {
+        final PtNode node = findTerminal(word, probability);
+        if (null == node.mBigrams) {
+            node.mBigrams = new ArrayList<>(1);
+        }
+        addWeightedString(node.mBigrams, next, probability);
+    }
+
+    /**
+     * Records that word is a shortcut for target, as the shortcut lines of the combined word
+     * list, such as "brb" for "be right back". Adding the same shortcut again keeps the
+     * highest probability.
+     *
+     * @param probability from 0 to {@link EncoderUtils#MAX_PROBABILITY}.
+     * @throws IllegalArgumentException if word is not in the trie, or the probability is out
+     * of range.
+     */
+    @Override
+    public void addShortcut(String word, String target, int probability) {
+        final PtNode node = findTerminal(word, probability);
+        if (null == node.mShortcuts) {
+            node.mShortcuts = new ArrayList<>(1);
+        }
+        addWeightedString(node.mShortcuts, target, probability);
+    }
+
+    private PtNode findTerminal(String word, int probability) {
+        if (probability < 0 || probability > EncoderUtils.MAX_PROBABILITY) {
+            throw new IllegalArgumentException("invalid probability " + probability);
+        }
+        final PtNode node = word.isEmpty() ? null : findNode(word, null);
+        if (null == node || !node.terminal) {
+            throw new IllegalArgumentException("no such word: " + word);
+        }
+        return node;
+    }
+
+    // Keeps the list sorted by decreasing probability, then by word, so that the encoder
+    // writes it in the order it is read back.
+    private static void addWeightedString(ArrayList<WeightedString> list, String word, int probability) {
+        for (int i = 0; i < list.size(); i++) {
+            final WeightedString existing = list.get(i);
+            if (existing.mWord.equals(word)) {
+                if (existing.mProbability >= probability) return;
+                list.remove(i);
+                break;
+            }
+        }
+        int index = 0;
+        while (index < list.size()) {
+            final WeightedString existing = list.get(index);
+            if (existing.mProbability < probability
+                    || (existing.mProbability == probability && existing.mWord.compareTo(word) > 0)) {
+                break;
+            }
+            index++;
+        }
+        list.add(index, new WeightedString(word, probability));
+    }
+
+    /**
+     * Finds the PtNode whose label ends exactly at the end of the word.
+     *
+     * @param path if not null, receives the ancestors of the PtNode, from the root.
+     * @return the PtNode, terminal or not, or null if there is none.
+     */
+    PtNode findNode(String word, ArrayList<PtNode> path) {
+        final char[] chars = word.toCharArray();
+        PtNode current = mRoot;
+        int charIndex = 0;
+        while (charIndex < chars.length) {
+            if (null == current.mChildren) return null;
+            final int nodeIndex = findIndexOfChar(current.mChildren, chars[charIndex]);
+            if (CHARACTER_NOT_FOUND_INDEX == nodeIndex) return null;
+            if (null != path) path.add(current);
+            current = current.mChildren.mData.get(nodeIndex);
+            if (chars.length - charIndex < current.mChars.length) return null;
+            if (current.mChars.length > 1 && Arrays.mismatch(current.mChars, 1, current.mChars.length,
+                    chars, charIndex + 1, charIndex + current.mChars.length) >= 0) {
+                return null;
+            }
+            charIndex += current.mChars.length;
+        }
+        return current;
+    }
+
+    /**
+     * Merges a non-terminal PtNode with its only child, so that the chain of the two PtNodes
+     * becomes a single multi-char PtNode. The PtNode keeps its place in its node array, since
+     * its first char does not change.
+     */
+    private static void mergeWithOnlyChild(final PtNode ptNode) {
+        final PtNode child = ptNode.mChildren.mData.get(0);
+        final char[] chars = Arrays.copyOf(ptNode.mChars, ptNode.mChars.length + child.mChars.length);
+        System.arraycopy(child.mChars, 0, chars, ptNode.mChars.length, child.mChars.length);
+        ptNode.mChars = chars;
+        ptNode.terminal = child.terminal;
+        ptNode.mSurfaceForms = child.mSurfaceForms;
+        ptNode.mShortcuts = child.mShortcuts;
+        ptNode.mBigrams = child.mBigrams;
+        ptNode.mChildren = child.mChildren;
+    }
+
     @Override
     public boolean contains(String word) {
         return false;
@@ -218,6 +436,74 @@ public class PatriciaTrie implements AbstractPatriciaTrie {
         return new ArrayList<>();
     }
 
+    /**
+     * Finds the longest word which is a prefix of text[offset..], in a single walk, without
+     * allocating.
+     *
+     * @return the end of the word in text, exclusive, or -1 if no word is a prefix.
+     */
+    public int longestPrefixOf(CharSequence text, int offset) {
+        return matchPrefixes(text, offset, null);
+    }
+
+    /**
+     * Finds all the words which are prefixes of text[offset..], in a single walk, without
+     * allocating.
+     *
+     * @param ends receives the ends of the words in text, exclusive, shortest first, as many
+     *             as fit.
+     * @return the number of words found, which may be more than ends.length.
+     */
+    public int allPrefixesOf(CharSequence text, int offset, int[] ends) {
+        return matchPrefixes(text, offset, ends);
+    }
+
+    // Returns the number of words with ends, the end of the longest one or -1 without.
+    private int matchPrefixes(CharSequence text, int offset, int[] ends) {
+        int count = 0;
+        int longest = -1;
+        PtNode current = mRoot;
+        int charIndex = offset;
+        while (charIndex < text.length() && null != current.mChildren) {
+            final PtNode child = findChild(current.mChildren, text.charAt(charIndex));
+            if (null == child || text.length() - charIndex < child.mChars.length) break;
+            int i = 1;
+            while (i < child.mChars.length && child.mChars[i] == text.charAt(charIndex + i)) ++i;
+            if (i < child.mChars.length) break;
+            charIndex += child.mChars.length;
+            if (child.terminal) {
+                if (null != ends && count < ends.length) ends[count] = charIndex;
+                count++;
+                longest = charIndex;
+            }
+            current = child;
+        }
+        return null == ends ? longest : count;
+    }
+
+    /**
+     * Binary search of a PtNode by its first char, without the reference PtNode that
+     * findInsertionIndex allocates.
+     */
+    private static PtNode findChild(final PtNodeArray node, char character) {
+        final ArrayList<PtNode> data = node.mData;
+        int low = 0;
+        int high = data.size() - 1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            final PtNode ptNode = data.get(mid);
+            final char first = ptNode.mChars[0];
+            if (first < character) {
+                low = mid + 1;
+            } else if (first > character) {
+                high = mid - 1;
+            } else {
+                return ptNode;
+            }
+        }
+        return null;
+    }
+
     /**
      * Recursively count the number of PtNodes in a given branch of the trie.
      *
@@ -276,11 +562,13 @@ public class PatriciaTrie implements AbstractPatriciaTrie {
      */
     private static int compareCharArrays(final char[] src, final char[] dst, int dstOffset) {
         // We do NOT test the first char, because we come from a method that already
-        // tested it.
-        for (int i = 1; i < src.length; ++i) {
-            if (dstOffset + i >= dst.length) return i;
-            if (src[i] != dst[dstOffset + i]) return i;
+        // tested it. Arrays.mismatch compares the rest several chars at a time.
+        final int end = Math.max(1, Math.min(src.length, dst.length - dstOffset));
+        if (end > 1) {
+            final int i = Arrays.mismatch(src, 1, end, dst, dstOffset + 1, dstOffset + end);
+            if (i >= 0) return i + 1;
         }
+        if (end < src.length) return end;
         if (dst.length > src.length) return src.length;
         return ARRAYS_ARE_EQUAL;
     }
@@ -1,46 +1,150 @@
 package com.pt.compress
 
+import java.io.ByteArrayOutputStream
 import java.io.File
 import java.io.FileOutputStream
+import java.io.OutputStream
 
 class PatriciaTrieEncoder {
     fun writeDictionary(file: File, pt: PatriciaTrie) {
+        writeDictionary(file, pt, 0)
+    }
+
+    /**
+     * @param options header options, such as [EncoderUtils.OPTION_SUFFIX_INDEX].
+     */
+    fun writeDictionary(file: File, pt: PatriciaTrie, options: Int) {
+        writeDictionary(file, pt, options, MembershipFilter.DEFAULT_BITS_PER_KEY)
+    }
+
+    /**
+     * @param filterBitsPerKey the size of the membership filter, if options have
+     * [EncoderUtils.OPTION_MEMBERSHIP_FILTER], see [MembershipFilter.bitsPerKeyFor].
+     */
+    fun writeDictionary(file: File, pt: PatriciaTrie, options: Int, filterBitsPerKey: Int) {
         val os = FileOutputStream(file)
         os.use { outputStream ->
-            EncoderUtils.writeDictionaryHeader(outputStream)
+            writeDictionary(outputStream, pt, options, filterBitsPerKey)
+        }
+    }
 
-            // Addresses are limited to 3 bytes, but since addresses can be relative to each node
-            // array, the structure itself is not limited to 16MB. However, if it is over 16MB deciding
-            // the order of the PtNode arrays becomes a quite complicated problem, because though the
-            // dictionary itself does not have a size limit, each node array must still be within 16MB
-            // of all its children and parents. As long as this is ensured, the dictionary file may
-            // grow to any size.
+    /**
+     * Writes the dictionary cut into blocks of blockSize bytes, each compressed on its own, see
+     * [EncoderUtils.writeBlockCompressedDictionary]. Smaller on disk and in the page cache, at
+     * the cost of decompressing blocks when they are not cached.
+     */
+    fun writeCompressedDictionary(file: File, pt: PatriciaTrie,
+                                  blockSize: Int = EncoderUtils.DEFAULT_COMPRESSION_BLOCK_SIZE) {
+        val plain = ByteArrayOutputStream()
+        writeDictionary(plain, pt)
+        val os = FileOutputStream(file)
+        os.use { outputStream ->
+            EncoderUtils.writeBlockCompressedDictionary(outputStream, plain.toByteArray(), blockSize)
+        }
+    }
 
-            // Leave the choice of the optimal node order to the flattenTree function.
-            println("Flattening the tree...")
+    /**
+     * Writes the folded trie of pt, see [EncoderUtils.foldTrie]: lookups in the dictionary
+     * ignore case and diacritics, and return the original words. Shortcuts and bigrams are
+     * kept on the folded words, so [BinaryPatriciaTrie.predictNext] returns folded words.
+     */
+    fun writeFoldedDictionary(file: File, pt: PatriciaTrie) {
+        writeFoldedDictionary(file, pt, 0)
+    }
 
-            // this is a DFS traversal
-            val flatNodes = EncoderUtils.flattenTree(pt)
+    /**
+     * The membership filter of a folded dictionary, if any, holds the folded keys.
+     */
+    fun writeFoldedDictionary(file: File, pt: PatriciaTrie, options: Int) {
+        val os = FileOutputStream(file)
+        os.use { outputStream ->
+            writeDictionary(outputStream, EncoderUtils.foldTrie(pt), options or EncoderUtils.OPTION_FOLDED)
+        }
+    }
 
-            println("Computing addresses...")
-            EncoderUtils.computeAddresses(flatNodes)
-            println("Checking PtNode array...")
-            EncoderUtils.checkFlatPtNodeArrayList(flatNodes)
+    /**
+     * With [EncoderUtils.OPTION_SUFFIX_INDEX] in options, the trie of the reversed words is
+     * written after the main one, for [BinaryPatriciaTrie.searchSuffix]. If the trie has
+     * shortcuts, [EncoderUtils.OPTION_SHORTCUTS] is added and their pool ends the file.
+     */
+    fun writeDictionary(outputStream: OutputStream, pt: PatriciaTrie, options: Int = 0,
+                        filterBitsPerKey: Int = MembershipFilter.DEFAULT_BITS_PER_KEY) {
+        // Shortcut entries are sized by their pool offsets, so the pool comes first.
+        val shortcutPool = EncoderUtils.buildShortcutPool(pt)
+        val buffer = encodeTrie(pt)
+        var suffixIndex = ByteArray(0)
+        if (options and EncoderUtils.OPTION_SUFFIX_INDEX != 0) {
+            println("Building the suffix index...")
+            suffixIndex = encodeTrie(EncoderUtils.reverseTrie(pt))
+        }
+        val filter = if (options and EncoderUtils.OPTION_MEMBERSHIP_FILTER != 0) {
+            MembershipFilter.encode(pt, filterBitsPerKey)
+        } else {
+            null
+        }
+        val allOptions = if (shortcutPool.isEmpty()) options else options or EncoderUtils.OPTION_SHORTCUTS
+        EncoderUtils.writeDictionaryHeader(outputStream, allOptions, buffer.size, suffixIndex.size, filter)
+        outputStream.write(buffer)
+        outputStream.write(suffixIndex)
+        outputStream.write(shortcutPool)
+    }
 
-            // Create a buffer that matches the final dictionary size.
-            val lastNodeArray = flatNodes.get(flatNodes.size - 1)
-            val bufferSize = lastNodeArray.mCachedAddressAfterUpdate + lastNodeArray.mCachedSize
-            val buffer = ByteArray(bufferSize)
+    private fun encodeTrie(pt: PatriciaTrie): ByteArray {
+        // Addresses take up to 3 bytes in tries under 16MB. In DFS order, the children of the
+        // last PtNodes of the root node array come after almost the whole trie, so no order of
+        // the node arrays keeps a larger trie within 3 bytes addresses: there, addresses that
+        // need it take 4 bytes, see EncoderUtils.VERSION_WIDE_ADDRESSES, up to the 2GB of a
+        // ByteArray.
 
-            println("Writing file...")
+        // Leave the choice of the optimal node order to the flattenTree function.
+        println("Flattening the tree...")
 
-            var position = 0
-            for (nodeArray in flatNodes) {
-                position = EncoderUtils.writePlacedPtNodeArray(buffer, nodeArray);
-            }
-            println(EncoderUtils.showStatistics(flatNodes))
+        // this is a DFS traversal
+        val flatNodes = EncoderUtils.flattenTree(pt)
+        EncoderUtils.resolveBigrams(pt)
+
+        println("Computing addresses...")
+        EncoderUtils.computeAddresses(flatNodes)
+        println("Checking PtNode array...")
+        EncoderUtils.checkFlatPtNodeArrayList(flatNodes)
+
+        // Create a buffer that matches the final dictionary size.
+        val lastNodeArray = flatNodes.get(flatNodes.size - 1)
+        val bufferSize = lastNodeArray.mCachedAddressAfterUpdate + lastNodeArray.mCachedSize
+        val buffer = ByteArray(bufferSize)
 
-            outputStream.write(buffer, 0, position)
+        println("Writing file...")
+
+        var position = 0
+        for (nodeArray in flatNodes) {
+            position = EncoderUtils.writePlacedPtNodeArray(buffer, nodeArray);
+        }
+        println(EncoderUtils.showStatistics(flatNodes))
+
+        return if (position == buffer.size) buffer else buffer.copyOf(position)
+    }
+
+    /**
+     * Splits the trie by leading characters into at most shardCount binary dictionaries, written
+     * next to the manifest, and writes the manifest listing them in order with their first word.
+     * Bigrams whose next word is in another shard are dropped, see [EncoderUtils.splitIntoShards].
+     *
+     * Manifest layout:
+     *   shards=<count>
+     *   shard=<file name>,first=<first word of the shard>
+     */
+    fun writeShardedDictionary(manifest: File, pt: PatriciaTrie, shardCount: Int) {
+        val shards = EncoderUtils.splitIntoShards(pt, shardCount)
+        val baseName = manifest.name.substringBeforeLast('.')
+        val directory = manifest.absoluteFile.parentFile
+        println("Writing ${shards.size} shards...")
+        manifest.printWriter().use { writer ->
+            writer.println("shards=${shards.size}")
+            shards.forEachIndexed { index, shard ->
+                val file = File(directory, "$baseName.$index.dict")
+                writeDictionary(file, shard)
+                writer.println("shard=${file.name},first=${shard.iterator().next()}")
+            }
         }
     }
-}
\ No newline at end of file
+}
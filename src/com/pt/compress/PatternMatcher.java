@@ -0,0 +1,349 @@
+package com.pt.compress;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static com.pt.compress.DecoderUtils.*;
+import static com.pt.compress.EncoderUtils.PTNODE_CHARACTERS_TERMINATOR;
+
+/**
+ * Whole-word glob pattern, walked over the node arrays of a binary dictionary.
+ *
+ * The syntax is the one of crosswords and shells:
+ *   ?        any single char
+ *   *        any sequence of chars, possibly empty
+ *   [abc]    one of the chars, with ranges as in [a-z], negated as in [^aeiou] or [!aeiou]
+ *   \c       the char c itself
+ *
+ * A pattern compiles to a small NFA with one state per element, so a set of states fits a
+ * long, and stepping it over a char is a few bit operations. The walk carries the state set
+ * of every prefix down the trie, label char by label char, and gives up a branch as soon as
+ * its state set is empty: "c?t" only ever looks at the children of "c". Once only trailing
+ * stars are left to match, every word below matches, and the rest of the subtree is
+ * collected without stepping the NFA.
+ *
+ * A matcher is immutable, and can be shared between threads.
+ */
+public final class PatternMatcher {
+    // The accepting state is the one after the last element, and must fit in a long too.
+    public static final int MAX_ELEMENTS = 63;
+
+    private static final byte ANY = 0;
+    private static final byte LITERAL = 1;
+    private static final byte CLASS = 2;
+    private static final byte STAR = 3;
+
+    private final String mPattern;
+    private final byte[] mKinds;
+    private final char[] mLiterals;
+    // Inclusive ranges of CLASS elements, as lo, hi pairs.
+    private final char[][] mRanges;
+    private final boolean[] mNegated;
+    // States that can still consume a char: all but the accepting one.
+    private final long mLiveMask;
+    private final long mStarMask;
+    private final long mAcceptBit;
+    // Trailing star states, from which anything goes.
+    private final long mMatchAllMask;
+    private final long mInitialStates;
+
+    private PatternMatcher(String pattern, byte[] kinds, char[] literals, char[][] ranges, boolean[] negated) {
+        mPattern = pattern;
+        mKinds = kinds;
+        mLiterals = literals;
+        mRanges = ranges;
+        mNegated = negated;
+        final int count = kinds.length;
+        mAcceptBit = 1L << count;
+        mLiveMask = mAcceptBit - 1;
+        long stars = 0;
+        for (int i = 0; i < count; i++) {
+            if (kinds[i] == STAR) stars |= 1L << i;
+        }
+        mStarMask = stars;
+        int matchAllFrom = count;
+        while (matchAllFrom > 0 && kinds[matchAllFrom - 1] == STAR) {
+            matchAllFrom--;
+        }
+        mMatchAllMask = mLiveMask & (-1L << matchAllFrom);
+        mInitialStates = closure(1L);
+    }
+
+    /**
+     * @throws IllegalArgumentException if the pattern is malformed, or has more than
+     * {@link #MAX_ELEMENTS} elements.
+     */
+    public static PatternMatcher compile(String pattern) {
+        return compile(pattern, false);
+    }
+
+    /**
+     * @param folded whether to match folded keys, see {@link CharFolding}: the chars of the
+     *               pattern, and the bounds of its ranges, are folded as well.
+     */
+    static PatternMatcher compile(String pattern, boolean folded) {
+        final byte[] kinds = new byte[MAX_ELEMENTS];
+        final char[] literals = new char[MAX_ELEMENTS];
+        final char[][] ranges = new char[MAX_ELEMENTS][];
+        final boolean[] negated = new boolean[MAX_ELEMENTS];
+        int count = 0;
+        int i = 0;
+        while (i < pattern.length()) {
+            final char c = pattern.charAt(i++);
+            // Consecutive stars are one star, which keeps the closure to a single step.
+            if (c == '*' && count > 0 && kinds[count - 1] == STAR) {
+                continue;
+            }
+            if (count == MAX_ELEMENTS) {
+                throw new IllegalArgumentException("more than " + MAX_ELEMENTS + " elements in " + pattern);
+            }
+            switch (c) {
+                case '?':
+                    kinds[count] = ANY;
+                    break;
+                case '*':
+                    kinds[count] = STAR;
+                    break;
+                case '[': {
+                    final ArrayList<Character> bounds = new ArrayList<>();
+                    if (i < pattern.length() && (pattern.charAt(i) == '^' || pattern.charAt(i) == '!')) {
+                        negated[count] = true;
+                        i++;
+                    }
+                    // A ']' right after the opening bracket is a member.
+                    boolean first = true;
+                    while (true) {
+                        if (i >= pattern.length()) {
+                            throw new IllegalArgumentException("unterminated class in " + pattern);
+                        }
+                        char lo = pattern.charAt(i++);
+                        if (lo == ']' && !first) {
+                            break;
+                        }
+                        first = false;
+                        if (lo == '\\') {
+                            lo = escaped(pattern, i++);
+                        }
+                        char hi = lo;
+                        if (i + 1 < pattern.length() && pattern.charAt(i) == '-' && pattern.charAt(i + 1) != ']') {
+                            hi = pattern.charAt(i + 1);
+                            i += 2;
+                            if (hi == '\\') {
+                                hi = escaped(pattern, i++);
+                            }
+                            if (hi < lo) {
+                                throw new IllegalArgumentException("invalid range " + lo + "-" + hi + " in " + pattern);
+                            }
+                        }
+                        bounds.add(folded ? CharFolding.fold(lo) : lo);
+                        bounds.add(folded ? CharFolding.fold(hi) : hi);
+                    }
+                    final char[] r = new char[bounds.size()];
+                    for (int b = 0; b < r.length; b++) {
+                        r[b] = bounds.get(b);
+                    }
+                    kinds[count] = CLASS;
+                    ranges[count] = r;
+                    break;
+                }
+                case '\\':
+                    kinds[count] = LITERAL;
+                    literals[count] = escaped(pattern, i++);
+                    break;
+                default:
+                    kinds[count] = LITERAL;
+                    literals[count] = c;
+                    break;
+            }
+            if (folded && kinds[count] == LITERAL) {
+                literals[count] = CharFolding.fold(literals[count]);
+            }
+            count++;
+        }
+        return new PatternMatcher(pattern, Arrays.copyOf(kinds, count),
+                Arrays.copyOf(literals, count), Arrays.copyOf(ranges, count),
+                Arrays.copyOf(negated, count));
+    }
+
+    private static char escaped(String pattern, int position) {
+        if (position >= pattern.length()) {
+            throw new IllegalArgumentException("dangling escape in " + pattern);
+        }
+        return pattern.charAt(position);
+    }
+
+    public String getPattern() {
+        return mPattern;
+    }
+
+    /**
+     * @return the matcher of the reversed words, to walk a suffix index with.
+     */
+    PatternMatcher reversed() {
+        final int count = mKinds.length;
+        final byte[] kinds = new byte[count];
+        final char[] literals = new char[count];
+        final char[][] ranges = new char[count][];
+        final boolean[] negated = new boolean[count];
+        for (int i = 0; i < count; i++) {
+            kinds[i] = mKinds[count - 1 - i];
+            literals[i] = mLiterals[count - 1 - i];
+            ranges[i] = mRanges[count - 1 - i];
+            negated[i] = mNegated[count - 1 - i];
+        }
+        return new PatternMatcher(mPattern, kinds, literals, ranges, negated);
+    }
+
+    /**
+     * @return true if the end of the pattern narrows the walk down more than its start, as
+     * in "*tion", so that walking the reversed words is cheaper.
+     */
+    boolean prefersSuffixIndex() {
+        return countAnchoredElements(mKinds.length - 1, -1) > countAnchoredElements(0, 1);
+    }
+
+    // The chars and classes before the first star, which prune the walk; '?' does not.
+    private int countAnchoredElements(int from, int direction) {
+        int count = 0;
+        for (int i = from; i >= 0 && i < mKinds.length && mKinds[i] != STAR; i += direction) {
+            if (mKinds[i] != ANY) count++;
+        }
+        return count;
+    }
+
+    /**
+     * Matches a single word, without any dictionary.
+     */
+    public boolean matches(CharSequence word) {
+        long states = mInitialStates;
+        for (int i = 0; i < word.length() && states != 0; i++) {
+            states = step(states, word.charAt(i));
+        }
+        return (states & mAcceptBit) != 0;
+    }
+
+    private long step(long states, char c) {
+        long next = 0;
+        for (long s = states & mLiveMask; s != 0; s &= s - 1) {
+            final int i = Long.numberOfTrailingZeros(s);
+            switch (mKinds[i]) {
+                case STAR:
+                    next |= 1L << i;
+                    break;
+                case ANY:
+                    next |= 1L << (i + 1);
+                    break;
+                case LITERAL:
+                    if (mLiterals[i] == c) next |= 1L << (i + 1);
+                    break;
+                default:
+                    if (inClass(i, c)) next |= 1L << (i + 1);
+                    break;
+            }
+        }
+        return closure(next);
+    }
+
+    // A star may match nothing, so reaching it also reaches the next state.
+    private long closure(long states) {
+        return states | ((states & mStarMask) << 1);
+    }
+
+    private boolean inClass(int element, char c) {
+        final char[] ranges = mRanges[element];
+        boolean in = false;
+        for (int i = 0; i < ranges.length && !in; i += 2) {
+            in = c >= ranges[i] && c <= ranges[i + 1];
+        }
+        return in != mNegated[element];
+    }
+
+    /**
+     * Collects the words of a dictionary matching the pattern, in dictionary order.
+     */
+    List<String> search(DictBuffer buffer, int rootIndex, int limit, QueryMetrics metrics) {
+        final ArrayList<String> res = new ArrayList<>();
+        if (limit > 0) {
+            walk(buffer, rootIndex, mInitialStates, new StringBuilder(), res, limit, metrics);
+        }
+        return res;
+    }
+
+    // Returns false once the limit is reached, as DecoderUtils.traverse does.
+    private boolean walk(DictBuffer buffer, int position, long states, StringBuilder sb, List<String> res,
+                         int limit, QueryMetrics metrics) {
+        final int[] nc = readPtNodeCount(buffer, position);
+        final int count = nc[0];
+        int pos = nc[1];
+        if (metrics != null) metrics.onNodeArrayRead(pos - position);
+        final int length = sb.length();
+        for (int i = 0; i < count; i++) {
+            final int nodeStart = pos;
+            final byte flag = (byte)buffer.readUnsignedByte(pos++);
+            long s = states;
+            // Only step the label chars while some state is alive; skip the others.
+            if (!nodeMultipleChars(flag)) {
+                final char c = (char)readUnsignedShort(buffer, pos);
+                s = step(s, c);
+                sb.append(c);
+                pos += 2;
+            } else {
+                while (readUnsignedByte(buffer, pos) != PTNODE_CHARACTERS_TERMINATOR) {
+                    if (s != 0) {
+                        final char c = (char)readUnsignedShort(buffer, pos);
+                        s = step(s, c);
+                        sb.append(c);
+                    }
+                    pos += 2;
+                }
+                pos++;
+            }
+            final int childrenAddress = nodeChildrenAddressSize(buffer, pos, flag);
+            pos += childrenAddressSize(flag);
+            final int attributesAddress = pos;
+            pos = skipAttributes(buffer, pos, flag);
+            if (metrics != null) metrics.onPtNodeDecoded(pos - nodeStart);
+            if ((s & mMatchAllMask) != 0) {
+                if (nodeIsTerminator(flag)) {
+                    addWords(buffer, attributesAddress, flag, sb, res, limit);
+                }
+                if (childrenAddress != 0 && !traverse(buffer, childrenAddress, sb, res, limit, metrics)) {
+                    sb.setLength(length);
+                    return false;
+                }
+            } else if (s != 0) {
+                if (nodeIsTerminator(flag) && (s & mAcceptBit) != 0) {
+                    addWords(buffer, attributesAddress, flag, sb, res, limit);
+                }
+                if (childrenAddress != 0 && (s & mLiveMask) != 0
+                        && !walk(buffer, childrenAddress, s, sb, res, limit, metrics)) {
+                    sb.setLength(length);
+                    return false;
+                }
+            }
+            sb.setLength(length);
+            if (res.size() >= limit) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void addWords(DictBuffer buffer, int attributesAddress, byte flag, CharSequence key,
+                                 List<String> res, int limit) {
+        if ((flag & NODE_FLAG_SURFACE_FORMS) == 0) {
+            res.add(key.toString());
+            return;
+        }
+        for (String form : readSurfaceForms(buffer, attributesAddress)) {
+            if (res.size() >= limit) return;
+            res.add(form);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return mPattern;
+    }
+}
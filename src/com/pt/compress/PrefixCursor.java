@@ -0,0 +1,197 @@
+package com.pt.compress;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Incremental type-ahead position inside a {@link BinaryPatriciaTrie}.
+ *
+ * Instead of walking from the root for every keystroke, the cursor remembers the PtNode it
+ * stopped in and how many chars of that node's label are already matched. Typing one more
+ * char either moves one step along the current label, or scans the children node array for
+ * the next PtNode, so {@link #advance(char)} is O(1) or O(fan-out). Every typed char pushes
+ * one frame, so {@link #backspace()} is O(1) as well.
+ *
+ * Once a typed char does not match anything, the cursor keeps counting the chars typed
+ * past the last match, so backspacing out of a typo lands on the last matching position.
+ *
+ * A cursor is not thread safe; use one per typing session.
+ */
+public class PrefixCursor {
+    private static final int INITIAL_DEPTH = 32;
+    // flags and first char, all findChild reads of a PtNode that does not match
+    private static final int PTNODE_FIRST_CHAR_SIZE = 3;
+
+    private final DictBuffer mBuffer;
+    private final int mRootIndex;
+    private final QueryMetrics mMetrics;
+    // Typed chars are folded before matching, see CharFolding.
+    private final boolean mFolded;
+    private final StringBuilder mPrefix = new StringBuilder();
+    // One frame per matched char: the PtNode holding the char, and the number of chars of
+    // that node's label matched so far.
+    private PtNodeInfo[] mNodes = new PtNodeInfo[INITIAL_DEPTH];
+    private int[] mOffsets = new int[INITIAL_DEPTH];
+    private int mDepth = 0;
+    // Number of chars typed after the last matching one.
+    private int mMismatchCount = 0;
+
+    PrefixCursor(DictBuffer buffer, int rootIndex, QueryMetrics metrics, boolean folded) {
+        mBuffer = buffer;
+        mRootIndex = rootIndex;
+        mMetrics = metrics;
+        mFolded = folded;
+    }
+
+    /**
+     * Types one more char.
+     *
+     * @return true if the prefix typed so far is still a prefix of some word.
+     */
+    public boolean advance(char c) {
+        mPrefix.append(c);
+        if (mFolded) {
+            c = CharFolding.fold(c);
+        }
+        if (mMismatchCount > 0) {
+            mMismatchCount++;
+            return false;
+        }
+        if (mDepth > 0) {
+            final PtNodeInfo node = mNodes[mDepth - 1];
+            final int offset = mOffsets[mDepth - 1];
+            if (offset < node.mCharacters.length) {
+                if (node.mCharacters[offset] != c) {
+                    mMismatchCount++;
+                    return false;
+                }
+                push(node, offset + 1);
+                return true;
+            }
+            if (!node.hasChildren()) {
+                mMismatchCount++;
+                return false;
+            }
+        }
+        final PtNodeInfo child = findChild(mDepth == 0 ? mRootIndex : mNodes[mDepth - 1].mChildrenAddress, c);
+        if (child == null) {
+            mMismatchCount++;
+            return false;
+        }
+        push(child, 1);
+        return true;
+    }
+
+    /**
+     * Removes the last typed char.
+     *
+     * @return false if there was nothing to remove.
+     */
+    public boolean backspace() {
+        if (mPrefix.length() == 0) {
+            return false;
+        }
+        mPrefix.setLength(mPrefix.length() - 1);
+        if (mMismatchCount > 0) {
+            mMismatchCount--;
+        } else {
+            mNodes[--mDepth] = null;
+        }
+        return true;
+    }
+
+    public void reset() {
+        Arrays.fill(mNodes, 0, mDepth, null);
+        mDepth = 0;
+        mMismatchCount = 0;
+        mPrefix.setLength(0);
+    }
+
+    public String getPrefix() {
+        return mPrefix.toString();
+    }
+
+    /**
+     * @return true if the typed chars are a prefix of at least one word.
+     */
+    public boolean isMatching() {
+        return mMismatchCount == 0;
+    }
+
+    /**
+     * @return true if the typed chars are exactly a word of the dictionary.
+     */
+    public boolean isWord() {
+        if (mMismatchCount > 0 || mDepth == 0) {
+            return false;
+        }
+        final PtNodeInfo node = mNodes[mDepth - 1];
+        return mOffsets[mDepth - 1] == node.mCharacters.length && node.isTerminal();
+    }
+
+    /**
+     * Collects the words starting with the typed chars, in dictionary order, including the
+     * typed chars themselves if they are a word.
+     *
+     * @param limit the maximum number of words to collect.
+     */
+    public List<String> completions(int limit) {
+        final ArrayList<String> res = new ArrayList<>();
+        if (mMismatchCount > 0 || limit <= 0) {
+            return res;
+        }
+        final StringBuilder sb = new StringBuilder(mPrefix);
+        if (mFolded) {
+            // Keys are folded, and terminals without surface forms are their own key.
+            for (int i = 0; i < sb.length(); i++) {
+                sb.setCharAt(i, CharFolding.fold(sb.charAt(i)));
+            }
+        }
+        if (mDepth == 0) {
+            DecoderUtils.traverse(mBuffer, mRootIndex, sb, res, limit, mMetrics);
+            return res;
+        }
+        final PtNodeInfo node = mNodes[mDepth - 1];
+        final int offset = mOffsets[mDepth - 1];
+        sb.append(node.mCharacters, offset, node.mCharacters.length - offset);
+        if (node.isTerminal()) {
+            DecoderUtils.addWords(res, node, sb, limit);
+        }
+        if (node.hasChildren()) {
+            DecoderUtils.traverse(mBuffer, node.mChildrenAddress, sb, res, limit, mMetrics);
+        }
+        if (mMetrics != null) mMetrics.onResultsEmitted(res.size());
+        return res;
+    }
+
+    private PtNodeInfo findChild(int nodeArrayPosition, char c) {
+        final int[] nc = DecoderUtils.readPtNodeCount(mBuffer, nodeArrayPosition);
+        int pos = nc[1];
+        if (mMetrics != null) mMetrics.onNodeArrayRead(pos - nodeArrayPosition);
+        for (int i = 0; i < nc[0]; i++) {
+            // The first char is right after the flags, whether the PtNode has one or several.
+            final char first = (char)DecoderUtils.readUnsignedShort(mBuffer, pos + 1);
+            if (mMetrics != null) mMetrics.onPtNodeDecoded(PTNODE_FIRST_CHAR_SIZE);
+            if (first == c) {
+                return DecoderUtils.readPtNode(mBuffer, pos);
+            }
+            // PtNodes of a node array are sorted by their first char.
+            if (first > c) {
+                return null;
+            }
+            pos = DecoderUtils.skipPtNode(mBuffer, pos);
+        }
+        return null;
+    }
+
+    private void push(PtNodeInfo node, int offset) {
+        if (mDepth == mNodes.length) {
+            mNodes = Arrays.copyOf(mNodes, mDepth * 2);
+            mOffsets = Arrays.copyOf(mOffsets, mDepth * 2);
+        }
+        mNodes[mDepth] = node;
+        mOffsets[mDepth] = offset;
+        mDepth++;
+    }
+}
@@ -0,0 +1,45 @@
+package com.pt.compress;
+
+/**
+ * Raw PtNode information straight out of a binary dictionary.
+ *
+ * This is the decoded form of one PtNode, as written by {@link EncoderUtils#writePtNode}.
+ * The children address is absolute in the buffer the node was read from, and is 0 when
+ * the PtNode has no children. Surface forms are only there for terminals of folded
+ * dictionaries whose words differ from their key, and are null otherwise.
+ */
+public final class PtNodeInfo {
+    public final int mOriginalAddress;
+    public final int mEndAddress;
+    public final int mFlags;
+    public final char[] mCharacters;
+    public final int mChildrenAddress;
+    // Where the attributes following the children address start.
+    public final int mAttributesAddress;
+    public final String[] mSurfaceForms;
+
+    public PtNodeInfo(final int originalAddress, final int endAddress, final int flags,
+                      final char[] characters, final int childrenAddress) {
+        this(originalAddress, endAddress, flags, characters, childrenAddress, endAddress, null);
+    }
+
+    public PtNodeInfo(final int originalAddress, final int endAddress, final int flags,
+                      final char[] characters, final int childrenAddress,
+                      final int attributesAddress, final String[] surfaceForms) {
+        mOriginalAddress = originalAddress;
+        mEndAddress = endAddress;
+        mFlags = flags;
+        mCharacters = characters;
+        mChildrenAddress = childrenAddress;
+        mAttributesAddress = attributesAddress;
+        mSurfaceForms = surfaceForms;
+    }
+
+    public boolean isTerminal() {
+        return (mFlags & DecoderUtils.NODE_FLAG_TERMINAL) != 0;
+    }
+
+    public boolean hasChildren() {
+        return mChildrenAddress != 0;
+    }
+}
@@ -0,0 +1,184 @@
+package com.pt.compress;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Optional instrumentation of a {@link BinaryPatriciaTrie}.
+ *
+ * Counters are striped (LongAdder), so concurrent queries do not contend on them. A trie
+ * built without metrics passes null down to {@link DecoderUtils}, and the only cost left is
+ * a null check per decoded node.
+ */
+public final class QueryMetrics implements QueryMetricsMXBean {
+    private final LongAdder mNodeArraysRead = new LongAdder();
+    private final LongAdder mPtNodesDecoded = new LongAdder();
+    private final LongAdder mBytesTouched = new LongAdder();
+    private final LongAdder mResultsEmitted = new LongAdder();
+
+    private final LatencyHistogram mContainsLatency = new LatencyHistogram();
+    private final LatencyHistogram mSearchLatency = new LatencyHistogram();
+    private final LatencyHistogram mLoadLatency = new LatencyHistogram();
+
+    void onNodeArrayRead(int bytes) {
+        mNodeArraysRead.increment();
+        mBytesTouched.add(bytes);
+    }
+
+    void onPtNodeDecoded(int bytes) {
+        mPtNodesDecoded.increment();
+        mBytesTouched.add(bytes);
+    }
+
+    void onResultsEmitted(int count) {
+        mResultsEmitted.add(count);
+    }
+
+    void recordContains(long nanos) {
+        mContainsLatency.record(nanos);
+    }
+
+    void recordSearch(long nanos) {
+        mSearchLatency.record(nanos);
+    }
+
+    void recordLoad(long nanos) {
+        mLoadLatency.record(nanos);
+    }
+
+    public Snapshot snapshot() {
+        return new Snapshot(this);
+    }
+
+    /**
+     * Registers this instance with the platform MBean server.
+     *
+     * @param name used as the "name" key of the object name, to tell dictionaries apart.
+     */
+    public ObjectName registerMBean(String name) throws JMException {
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        final ObjectName objectName =
+                new ObjectName("com.pt:type=QueryMetrics,name=" + ObjectName.quote(name));
+        server.registerMBean(this, objectName);
+        return objectName;
+    }
+
+    @Override
+    public long getNodeArraysRead() {
+        return mNodeArraysRead.sum();
+    }
+
+    @Override
+    public long getPtNodesDecoded() {
+        return mPtNodesDecoded.sum();
+    }
+
+    @Override
+    public long getBytesTouched() {
+        return mBytesTouched.sum();
+    }
+
+    @Override
+    public long getResultsEmitted() {
+        return mResultsEmitted.sum();
+    }
+
+    @Override
+    public long getContainsCount() {
+        return mContainsLatency.snapshot().getCount();
+    }
+
+    @Override
+    public long getContainsP50() {
+        return mContainsLatency.snapshot().getValueAtPercentile(50);
+    }
+
+    @Override
+    public long getContainsP99() {
+        return mContainsLatency.snapshot().getValueAtPercentile(99);
+    }
+
+    @Override
+    public long getContainsMax() {
+        return mContainsLatency.snapshot().getMax();
+    }
+
+    @Override
+    public long getSearchCount() {
+        return mSearchLatency.snapshot().getCount();
+    }
+
+    @Override
+    public long getSearchP50() {
+        return mSearchLatency.snapshot().getValueAtPercentile(50);
+    }
+
+    @Override
+    public long getSearchP99() {
+        return mSearchLatency.snapshot().getValueAtPercentile(99);
+    }
+
+    @Override
+    public long getSearchMax() {
+        return mSearchLatency.snapshot().getMax();
+    }
+
+    @Override
+    public long getLoadCount() {
+        return mLoadLatency.snapshot().getCount();
+    }
+
+    @Override
+    public long getLoadMax() {
+        return mLoadLatency.snapshot().getMax();
+    }
+
+    @Override
+    public void reset() {
+        mNodeArraysRead.reset();
+        mPtNodesDecoded.reset();
+        mBytesTouched.reset();
+        mResultsEmitted.reset();
+        mContainsLatency.reset();
+        mSearchLatency.reset();
+        mLoadLatency.reset();
+    }
+
+    /**
+     * Point in time copy of all the counters and latency histograms.
+     */
+    public static final class Snapshot {
+        public final long mNodeArraysRead;
+        public final long mPtNodesDecoded;
+        public final long mBytesTouched;
+        public final long mResultsEmitted;
+        public final LatencyHistogram.Snapshot mContainsLatency;
+        public final LatencyHistogram.Snapshot mSearchLatency;
+        public final LatencyHistogram.Snapshot mLoadLatency;
+
+        Snapshot(QueryMetrics metrics) {
+            mNodeArraysRead = metrics.mNodeArraysRead.sum();
+            mPtNodesDecoded = metrics.mPtNodesDecoded.sum();
+            mBytesTouched = metrics.mBytesTouched.sum();
+            mResultsEmitted = metrics.mResultsEmitted.sum();
+            mContainsLatency = metrics.mContainsLatency.snapshot();
+            mSearchLatency = metrics.mSearchLatency.snapshot();
+            mLoadLatency = metrics.mLoadLatency.snapshot();
+        }
+
+        @Override
+        public String toString() {
+            return "Query metrics:\n"
+                    + "  node arrays read " + mNodeArraysRead + "\n"
+                    + "  PtNodes decoded " + mPtNodesDecoded + "\n"
+                    + "  bytes touched " + mBytesTouched + "\n"
+                    + "  results emitted " + mResultsEmitted + "\n"
+                    + "  contains (ns) " + mContainsLatency + "\n"
+                    + "  search (ns) " + mSearchLatency + "\n"
+                    + "  load (ns) " + mLoadLatency;
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package com.pt.compress;
+
+/**
+ * JMX view of {@link QueryMetrics}. Latencies are in nanoseconds.
+ */
+public interface QueryMetricsMXBean {
+    long getNodeArraysRead();
+    long getPtNodesDecoded();
+    long getBytesTouched();
+    long getResultsEmitted();
+
+    long getContainsCount();
+    long getContainsP50();
+    long getContainsP99();
+    long getContainsMax();
+
+    long getSearchCount();
+    long getSearchP50();
+    long getSearchP99();
+    long getSearchMax();
+
+    long getLoadCount();
+    long getLoadMax();
+
+    void reset();
+}
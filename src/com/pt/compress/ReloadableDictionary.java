@@ -0,0 +1,367 @@
+package com.pt.compress;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * A memory-mapped dictionary that is replaced while it serves queries.
+ *
+ * Queries run on a {@link Lease} of the current generation of the dictionary, for as long as
+ * they take. {@link #reload} prepares the next generation on the side: it maps the file,
+ * reads all its pages in, checks its structure and runs the validator. A file that fails is
+ * unmapped, and the current generation stays. A file that passes is published with a single
+ * volatile write, so a query sees either the whole previous generation or the whole next one.
+ *
+ * Each generation counts its leases, plus one while it is current. A generation that was
+ * replaced is reclaimed, and its file unmapped, when its last lease is closed. That is never
+ * while a query still reads it, and it is right away if no query does. Taking a lease is a
+ * volatile read and a CAS; there is no lock on the query path.
+ *
+ * Files must be replaced by renaming a new file over the old one, never rewritten in place:
+ * a mapping sees the writes to its file, while a rename leaves it on the old one.
+ */
+public final class ReloadableDictionary implements Closeable {
+    // sun.misc.Unsafe.invokeCleaner, which unmaps a buffer without waiting for a GC to find
+    // it unreachable, or null where it is not available, and then the GC unmaps.
+    private static final MethodHandle INVOKE_CLEANER = findInvokeCleaner();
+
+    private final QueryMetrics mMetrics;
+    private final Predicate<BinaryPatriciaTrie> mValidator;
+    private volatile Generation mCurrent;
+    private boolean mClosed = false;
+    private long mLastGeneration = 0;
+
+    private final LatencyHistogram mPrepareLatency = new LatencyHistogram();
+    private final LatencyHistogram mSwapLatency = new LatencyHistogram();
+    private final LatencyHistogram mDrainLatency = new LatencyHistogram();
+    private final LongAdder mRejected = new LongAdder();
+    // Generations replaced and not reclaimed yet, because queries still hold them.
+    private final AtomicInteger mDraining = new AtomicInteger();
+
+    private static final class Generation {
+        final long mNumber;
+        final BinaryPatriciaTrie mDictionary;
+        // null for dictionaries handed over already built, which the GC reclaims.
+        final MappedByteBuffer mMapping;
+        // Leases, plus one while the generation is current. Nothing retains it at 0.
+        final AtomicInteger mReferences = new AtomicInteger(1);
+        volatile long mReplacedAt;
+
+        Generation(long number, BinaryPatriciaTrie dictionary, MappedByteBuffer mapping) {
+            mNumber = number;
+            mDictionary = dictionary;
+            mMapping = mapping;
+        }
+
+        boolean tryRetain() {
+            int references;
+            do {
+                references = mReferences.get();
+                if (references == 0) {
+                    return false;
+                }
+            } while (!mReferences.compareAndSet(references, references + 1));
+            return true;
+        }
+    }
+
+    /**
+     * A generation of the dictionary, kept mapped until the lease is closed. Whatever reads
+     * the dictionary lazily, such as iterators, streams and cursors, must be done with before
+     * then; results returned as lists or strings are copies and outlive the lease.
+     *
+     * A lease belongs to the thread that took it.
+     */
+    public final class Lease implements AutoCloseable {
+        private final Generation mGeneration;
+        private boolean mClosed = false;
+
+        Lease(Generation generation) {
+            mGeneration = generation;
+        }
+
+        public BinaryPatriciaTrie get() {
+            if (mClosed) {
+                throw new IllegalStateException("lease closed");
+            }
+            return mGeneration.mDictionary;
+        }
+
+        /**
+         * @return the number of the generation, counting from 1 for the first dictionary.
+         */
+        public long getGeneration() {
+            return mGeneration.mNumber;
+        }
+
+        @Override
+        public void close() {
+            if (!mClosed) {
+                mClosed = true;
+                release(mGeneration);
+            }
+        }
+    }
+
+    public ReloadableDictionary(File dictionary) throws IOException {
+        this(dictionary, null, null);
+    }
+
+    /**
+     * @param metrics shared by all the generations, or null.
+     * @param validator run on each new generation before it is published, such as a check
+     *                  that known words are found, or null. A file it returns false for is
+     *                  rejected.
+     */
+    public ReloadableDictionary(File dictionary, QueryMetrics metrics, Predicate<BinaryPatriciaTrie> validator)
+            throws IOException {
+        mMetrics = metrics;
+        mValidator = validator;
+        final long start = System.nanoTime();
+        final Generation first = prepare(dictionary);
+        mCurrent = new Generation(++mLastGeneration, first.mDictionary, first.mMapping);
+        mPrepareLatency.record(System.nanoTime() - start);
+    }
+
+    /**
+     * Serves a dictionary already built, such as one read out of a stream. It is not
+     * validated, and not unmapped when replaced.
+     */
+    public ReloadableDictionary(BinaryPatriciaTrie dictionary) {
+        mMetrics = dictionary.getMetrics();
+        mValidator = null;
+        mCurrent = new Generation(++mLastGeneration, dictionary, null);
+    }
+
+    /**
+     * Takes a lease on the current generation. Close it as soon as the query is done, or the
+     * generation stays mapped after it is replaced.
+     *
+     * @throws IllegalStateException if the dictionary is closed.
+     */
+    public Lease acquire() {
+        while (true) {
+            final Generation generation = mCurrent;
+            if (generation == null) {
+                throw new IllegalStateException("dictionary closed");
+            }
+            if (generation.tryRetain()) {
+                return new Lease(generation);
+            }
+            // Replaced and reclaimed between the read and the retain: the next read sees the
+            // generation that replaced it.
+        }
+    }
+
+    /**
+     * Runs a query on a lease of the current generation.
+     */
+    public <T> T query(Function<BinaryPatriciaTrie, T> query) {
+        try (Lease lease = acquire()) {
+            return query.apply(lease.get());
+        }
+    }
+
+    /**
+     * Maps, preloads and validates a dictionary file, then makes it the current generation.
+     * Queries keep running on the previous generation meanwhile.
+     *
+     * @return the number of the new generation.
+     * @throws RuntimeException if the file is not a valid dictionary, or the validator
+     * rejects it. The current generation stays.
+     */
+    public long reload(File dictionary) throws IOException {
+        final long start = System.nanoTime();
+        final Generation next;
+        try {
+            next = prepare(dictionary);
+        } catch (IOException | RuntimeException e) {
+            mRejected.increment();
+            throw e;
+        }
+        mPrepareLatency.record(System.nanoTime() - start);
+        return publish(next);
+    }
+
+    /**
+     * Reloads on an executor, so that mapping, preloading and validating the file keep off
+     * the calling thread.
+     *
+     * @return the number of the new generation, or the reason the file was rejected.
+     */
+    public CompletableFuture<Long> reloadAsync(File dictionary, Executor executor) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return reload(dictionary);
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }, executor);
+    }
+
+    /**
+     * Makes a dictionary already built the current generation, without validating it.
+     *
+     * @return the number of the new generation.
+     */
+    public long replace(BinaryPatriciaTrie dictionary) {
+        return publish(new Generation(0, dictionary, null));
+    }
+
+    private Generation prepare(File dictionary) throws IOException {
+        final MappedByteBuffer mapping;
+        try (FileChannel channel = FileChannel.open(dictionary.toPath(), StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("dictionary too large to map: " + dictionary);
+            }
+            mapping = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        try {
+            // Fault the pages in now, rather than in the first queries of the generation.
+            mapping.load();
+            final BinaryPatriciaTrie trie = new BinaryPatriciaTrie(mapping, mMetrics);
+            trie.checkStructure();
+            if (mValidator != null && !mValidator.test(trie)) {
+                throw new RuntimeException("invalid dictionary: rejected by the validator: " + dictionary);
+            }
+            return new Generation(0, trie, mapping);
+        } catch (RuntimeException e) {
+            unmap(mapping);
+            throw e;
+        }
+    }
+
+    private long publish(Generation next) {
+        final long start = System.nanoTime();
+        final Generation previous;
+        final long number;
+        synchronized (this) {
+            if (mClosed) {
+                unmap(next.mMapping);
+                throw new IllegalStateException("dictionary closed");
+            }
+            number = ++mLastGeneration;
+            previous = mCurrent;
+            mCurrent = new Generation(number, next.mDictionary, next.mMapping);
+        }
+        mSwapLatency.record(System.nanoTime() - start);
+        retire(previous);
+        return number;
+    }
+
+    private void retire(Generation generation) {
+        mDraining.incrementAndGet();
+        generation.mReplacedAt = System.nanoTime();
+        release(generation);
+    }
+
+    private void release(Generation generation) {
+        if (generation.mReferences.decrementAndGet() == 0) {
+            mDrainLatency.record(System.nanoTime() - generation.mReplacedAt);
+            mDraining.decrementAndGet();
+            unmap(generation.mMapping);
+        }
+    }
+
+    private static void unmap(MappedByteBuffer mapping) {
+        if (mapping == null || INVOKE_CLEANER == null) {
+            return;
+        }
+        try {
+            INVOKE_CLEANER.invokeExact((ByteBuffer)mapping);
+        } catch (Throwable e) {
+            // Left to the GC.
+        }
+    }
+
+    private static MethodHandle findInvokeCleaner() {
+        try {
+            final Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            final Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            return MethodHandles.lookup()
+                    .findVirtual(unsafeClass, "invokeCleaner", MethodType.methodType(void.class, ByteBuffer.class))
+                    .bindTo(field.get(null));
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return the number of the current generation.
+     */
+    public long getGeneration() {
+        final Generation generation = mCurrent;
+        return generation != null ? generation.mNumber : 0;
+    }
+
+    /**
+     * @return the time to map, preload and validate each file published, in nanoseconds.
+     */
+    public LatencyHistogram.Snapshot getPrepareLatency() {
+        return mPrepareLatency.snapshot();
+    }
+
+    /**
+     * @return the time each swap kept reloads out, in nanoseconds. Queries are never blocked.
+     */
+    public LatencyHistogram.Snapshot getSwapLatency() {
+        return mSwapLatency.snapshot();
+    }
+
+    /**
+     * @return the time from the replacement of each generation to its reclamation, that is
+     * how long the queries running on it held it, in nanoseconds.
+     */
+    public LatencyHistogram.Snapshot getDrainLatency() {
+        return mDrainLatency.snapshot();
+    }
+
+    /**
+     * @return the number of files rejected by {@link #reload}.
+     */
+    public long getRejectedCount() {
+        return mRejected.sum();
+    }
+
+    /**
+     * @return the number of generations replaced that queries still hold.
+     */
+    public int getDrainingCount() {
+        return mDraining.get();
+    }
+
+    /**
+     * Stops serving: leases are refused from now on, and the current generation is reclaimed
+     * once the leases on it are closed.
+     */
+    @Override
+    public void close() {
+        final Generation current;
+        synchronized (this) {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            current = mCurrent;
+            mCurrent = null;
+        }
+        retire(current);
+    }
+}
@@ -0,0 +1,179 @@
+package com.pt.compress;
+
+import com.pt.AbstractPatriciaTrie;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * A dictionary split into several binary files by {@link PatriciaTrieEncoder#writeShardedDictionary}.
+ *
+ * Shards are loaded on first access only. Shard i holds the words from its first word
+ * (included) to the first word of shard i + 1 (excluded), so a word lives in exactly one
+ * shard, and a prefix spans a contiguous run of shards. Operations spanning several shards
+ * run on the common fork-join pool, one task per shard, and the results are concatenated in
+ * shard order, which keeps them sorted.
+ */
+public class ShardedPatriciaTrie implements AbstractPatriciaTrie {
+    private final File[] mShardFiles;
+    private final String[] mFirstWords;
+    private final Object[] mShardLocks;
+    private final AtomicReferenceArray<BinaryPatriciaTrie> mShards;
+
+    public ShardedPatriciaTrie(File manifest) throws IOException {
+        final List<String> lines = Files.readAllLines(manifest.toPath());
+        if (lines.isEmpty() || !lines.get(0).startsWith("shards=")) {
+            throw new RuntimeException("invalid shard manifest format");
+        }
+        final int count = Integer.parseInt(lines.get(0).substring("shards=".length()));
+        if (lines.size() != count + 1) {
+            throw new RuntimeException("expected " + count + " shards, got " + (lines.size() - 1));
+        }
+        final File directory = manifest.getAbsoluteFile().getParentFile();
+        mShardFiles = new File[count];
+        mFirstWords = new String[count];
+        mShardLocks = new Object[count];
+        for (int i = 0; i < count; i++) {
+            // shard=<file name>,first=<word>; the word is last as it may hold any char.
+            final String line = lines.get(i + 1);
+            final int separator = line.indexOf(",first=");
+            if (!line.startsWith("shard=") || separator < 0) {
+                throw new RuntimeException("invalid shard entry: " + line);
+            }
+            mShardFiles[i] = new File(directory, line.substring("shard=".length(), separator));
+            mFirstWords[i] = line.substring(separator + ",first=".length());
+            mShardLocks[i] = new Object();
+        }
+        mShards = new AtomicReferenceArray<>(count);
+    }
+
+    public int getShardCount() {
+        return mShardFiles.length;
+    }
+
+    /**
+     * @return the shard, loading it on first access.
+     */
+    public BinaryPatriciaTrie getShard(int index) {
+        BinaryPatriciaTrie shard = mShards.get(index);
+        if (null != shard) {
+            return shard;
+        }
+        synchronized (mShardLocks[index]) {
+            shard = mShards.get(index);
+            if (null == shard) {
+                try {
+                    shard = new BinaryPatriciaTrie(mShardFiles[index]);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                mShards.set(index, shard);
+            }
+            return shard;
+        }
+    }
+
+    public boolean isShardLoaded(int index) {
+        return null != mShards.get(index);
+    }
+
+    @Override
+    public void addWord(String word) {}
+
+    @Override
+    public boolean contains(String word) {
+        final int index = findShard(word);
+        return index >= 0 && getShard(index).contains(word);
+    }
+
+    @Override
+    public List<String> search(String prefix) {
+        final int from = Math.max(0, findShard(prefix));
+        final int to = findShard(prefix + Character.MAX_VALUE);
+        if (to < from) {
+            return new ArrayList<>();
+        }
+        if (from == to) {
+            return getShard(from).search(prefix);
+        }
+        return fanOut(from, to + 1, shard -> shard.search(prefix));
+    }
+
+    /**
+     * Runs a query on a range of shards in parallel.
+     *
+     * @param from the first shard, included.
+     * @param to the last shard, excluded.
+     * @param query the query to run on each shard.
+     * @return the results of each shard, concatenated in shard order.
+     */
+    public List<String> fanOut(int from, int to, Function<BinaryPatriciaTrie, List<String>> query) {
+        final List<List<String>> results = IntStream.range(from, to).parallel()
+                .mapToObj(i -> query.apply(getShard(i)))
+                .collect(Collectors.toList());
+        int size = 0;
+        for (List<String> r : results) {
+            size += r.size();
+        }
+        final ArrayList<String> res = new ArrayList<>(size);
+        for (List<String> r : results) {
+            res.addAll(r);
+        }
+        return res;
+    }
+
+    /**
+     * Iterates all the words in order. All the shards start loading in parallel right away,
+     * while iteration goes through them one after the other.
+     */
+    @Override
+    public Iterator<String> iterator() {
+        final List<CompletableFuture<BinaryPatriciaTrie>> shards = new ArrayList<>();
+        for (int i = 0; i < mShardFiles.length; i++) {
+            final int index = i;
+            shards.add(CompletableFuture.supplyAsync(() -> getShard(index)));
+        }
+        return new Iterator<String>() {
+            private int mIndex = 0;
+            private Iterator<String> mCurrent = Collections.emptyIterator();
+
+            @Override
+            public boolean hasNext() {
+                while (!mCurrent.hasNext() && mIndex < shards.size()) {
+                    mCurrent = shards.get(mIndex++).join().iterator();
+                }
+                return mCurrent.hasNext();
+            }
+
+            @Override
+            public String next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return mCurrent.next();
+            }
+        };
+    }
+
+    /**
+     * @return the index of the shard that would hold the word, or -1 if it sorts before
+     * the first word of the dictionary.
+     */
+    private int findShard(String word) {
+        final int index = Arrays.binarySearch(mFirstWords, word);
+        return index >= 0 ? index : -index - 2;
+    }
+}
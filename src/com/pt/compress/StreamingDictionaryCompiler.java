@@ -0,0 +1,362 @@
+package com.pt.compress;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import static com.pt.compress.EncoderUtils.*;
+
+/**
+ * Compiles a sorted word list into a binary dictionary without building a
+ * {@link PatriciaTrie}, so that memory is bounded by the depth of the trie, not by the size
+ * of the vocabulary.
+ *
+ * Words come in increasing {@link String#compareTo} order. Only the path of the last word is
+ * kept open; a word closes every PtNode of that path it does not share, and a closed PtNode
+ * gets its children node array encoded at once, its sizes being known by then. Node arrays
+ * are spilled to a temporary file as they are encoded, in postorder, each followed by a
+ * trailer giving its size and that of the whole region of its subtree. Once all the words are
+ * in, the spill is copied to the dictionary in DFS preorder, the order
+ * {@link EncoderUtils#flattenTree} lays node arrays out in, by walking the regions back from
+ * their trailers.
+ *
+ * The dictionary is the same, byte for byte, as the one {@link PatriciaTrieEncoder} writes
+ * for the same words. Words only: no surface forms, shortcuts or bigrams, and no options,
+ * which all need the whole trie.
+ */
+public final class StreamingDictionaryCompiler implements Closeable {
+    // Node array size, 4 bytes, then region size, 8 bytes.
+    private static final int TRAILER_SIZE = 12;
+
+    // A PtNode of the path of the last word.
+    private static final class OpenPtNode {
+        final int mStart;
+        int mEnd;
+        boolean mTerminal;
+        final ArrayList<ClosedPtNode> mChildren = new ArrayList<>();
+
+        OpenPtNode(int start, int end, boolean terminal) {
+            mStart = start;
+            mEnd = end;
+            mTerminal = terminal;
+        }
+    }
+
+    // A PtNode whose subtree is complete and spilled.
+    private static final class ClosedPtNode {
+        final char[] mChars;
+        final boolean mTerminal;
+        // The size of the node arrays under it, 0 if it has no children.
+        final long mChildrenSize;
+        // The size of their region of the spill, trailers included.
+        final long mRegionSize;
+
+        ClosedPtNode(char[] chars, boolean terminal, long childrenSize, long regionSize) {
+            mChars = chars;
+            mTerminal = terminal;
+            mChildrenSize = childrenSize;
+            mRegionSize = regionSize;
+        }
+    }
+
+    private final File mOutput;
+    private final File mSpillFile;
+    private final DataOutputStream mSpill;
+    private long mSpillSize = 0;
+    // The path of the last word, the root first.
+    private final ArrayList<OpenPtNode> mPath = new ArrayList<>();
+    private char[] mLastWord = new char[16];
+    private int mLastLength = 0;
+    private int mWordCount = 0;
+    private int mNodeArrayCount = 0;
+    private boolean mFinished = false;
+
+    /**
+     * @param output the dictionary to write; the spill is written next to it.
+     */
+    public StreamingDictionaryCompiler(File output) throws IOException {
+        mOutput = output;
+        mSpillFile = File.createTempFile(output.getName(), ".spill", output.getAbsoluteFile().getParentFile());
+        mSpill = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(mSpillFile), 1 << 16));
+        mPath.add(new OpenPtNode(0, 0, false));
+    }
+
+    /**
+     * Adds a word, which must not sort before the last one. Adding the last word again does
+     * nothing.
+     */
+    public void add(CharSequence word) throws IOException {
+        if (mFinished) {
+            throw new IllegalStateException("already finished");
+        }
+        if (word.length() == 0) {
+            throw new IllegalArgumentException("empty word");
+        }
+        int common = 0;
+        final int max = Math.min(word.length(), mLastLength);
+        while (common < max && word.charAt(common) == mLastWord[common]) {
+            common++;
+        }
+        if (common == word.length()) {
+            if (common == mLastLength) {
+                return;
+            }
+            throw new IllegalArgumentException("\"" + word + "\" is not sorted after \"" + lastWord() + "\"");
+        }
+        if (common < mLastLength && word.charAt(common) < mLastWord[common]) {
+            throw new IllegalArgumentException("\"" + word + "\" is not sorted after \"" + lastWord() + "\"");
+        }
+        // Close what the word does not share with the last one, splitting the PtNode it
+        // leaves in the middle of.
+        while (mPath.size() > 1 && mPath.get(mPath.size() - 1).mStart >= common) {
+            closeLast();
+        }
+        final OpenPtNode last = mPath.get(mPath.size() - 1);
+        if (last.mEnd > common) {
+            final ClosedPtNode tail = close(Arrays.copyOfRange(mLastWord, common, last.mEnd), last.mTerminal,
+                    last.mChildren);
+            last.mChildren.clear();
+            last.mChildren.add(tail);
+            last.mEnd = common;
+            last.mTerminal = false;
+        }
+        if (mLastWord.length < word.length()) {
+            mLastWord = Arrays.copyOf(mLastWord, Math.max(mLastWord.length * 2, word.length()));
+        }
+        for (int i = common; i < word.length(); i++) {
+            mLastWord[i] = word.charAt(i);
+        }
+        mLastLength = word.length();
+        mPath.add(new OpenPtNode(common, word.length(), true));
+        mWordCount++;
+    }
+
+    /**
+     * Closes the whole trie and writes the dictionary.
+     *
+     * @return the layout of the dictionary.
+     */
+    public LayoutReport finish() throws IOException {
+        if (mFinished) {
+            throw new IllegalStateException("already finished");
+        }
+        mFinished = true;
+        while (mPath.size() > 1) {
+            closeLast();
+        }
+        final long mainTrieSize = spillNodeArray(mPath.get(0).mChildren);
+        mSpill.close();
+        if (mainTrieSize > Integer.MAX_VALUE) {
+            throw new RuntimeException("dictionary of " + mainTrieSize + " bytes is too large");
+        }
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(mOutput), 1 << 16);
+             FileChannel spill = FileChannel.open(mSpillFile.toPath(), StandardOpenOption.READ)) {
+            writeDictionaryHeader(out, 0, (int)mainTrieSize, 0);
+            copyInPreorder(new MappedSpill(spill), out);
+        } finally {
+            mSpillFile.delete();
+        }
+        final LayoutReport report = new LayoutReport("Streaming compilation");
+        report.put("words", mWordCount);
+        report.put("node_arrays", mNodeArrayCount);
+        report.put("main_trie_bytes", mainTrieSize);
+        report.put("spill_bytes", mSpillSize);
+        return report;
+    }
+
+    /**
+     * Drops the spill of a compilation which was not finished; the dictionary is only written
+     * by {@link #finish}.
+     */
+    @Override
+    public void close() throws IOException {
+        if (!mFinished) {
+            mFinished = true;
+            mSpill.close();
+            mSpillFile.delete();
+        }
+    }
+
+    private String lastWord() {
+        return new String(mLastWord, 0, mLastLength);
+    }
+
+    private void closeLast() throws IOException {
+        final OpenPtNode node = mPath.remove(mPath.size() - 1);
+        mPath.get(mPath.size() - 1).mChildren.add(
+                close(Arrays.copyOfRange(mLastWord, node.mStart, node.mEnd), node.mTerminal, node.mChildren));
+    }
+
+    private ClosedPtNode close(char[] chars, boolean terminal, ArrayList<ClosedPtNode> children) throws IOException {
+        if (children.isEmpty()) {
+            return new ClosedPtNode(chars, terminal, 0, 0);
+        }
+        final long spillStart = mSpillSize;
+        final long childrenSize = spillNodeArray(children);
+        long regionSize = mSpillSize - spillStart;
+        for (ClosedPtNode child : children) {
+            regionSize += child.mRegionSize;
+        }
+        return new ClosedPtNode(chars, terminal, childrenSize, regionSize);
+    }
+
+    /**
+     * Encodes a node array whose children are all spilled, and spills it.
+     *
+     * @return the size of the node array and of all the node arrays under it.
+     */
+    private long spillNodeArray(ArrayList<ClosedPtNode> nodes) throws IOException {
+        final int count = nodes.size();
+        // In preorder, the children of a PtNode come after the node array and the children
+        // of the PtNodes before it. Address sizes start at their maximum and shrink with the
+        // offsets until they are stable, as in EncoderUtils.computeAddresses: 3 bytes if no
+        // offset can exceed that, else 4.
+        final int[] addressSizes = new int[count];
+        final long[] offsets = new long[count];
+        long bound = 0;
+        for (int i = 0; i < count; i++) {
+            final ClosedPtNode node = nodes.get(i);
+            bound += getHeaderSize(node) + (node.mChildrenSize == 0 ? 0 : PTNODE_MAX_ADDRESS_SIZE) + node.mChildrenSize;
+        }
+        final int maximumAddressSize = bound > UINT24_MAX ? PTNODE_MAX_WIDE_ADDRESS_SIZE : PTNODE_MAX_ADDRESS_SIZE;
+        for (int i = 0; i < count; i++) {
+            addressSizes[i] = nodes.get(i).mChildrenSize == 0 ? 0 : maximumAddressSize;
+        }
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            long after = 0;
+            for (int i = count - 1; i >= 0; i--) {
+                offsets[i] = after + addressSizes[i];
+                after += getHeaderSize(nodes.get(i)) + addressSizes[i];
+            }
+            long before = 0;
+            for (int i = 0; i < count; i++) {
+                final ClosedPtNode node = nodes.get(i);
+                if (node.mChildrenSize != 0) {
+                    offsets[i] += before;
+                    if (offsets[i] > Integer.MAX_VALUE) {
+                        throw new RuntimeException("children address " + offsets[i] + " does not fit");
+                    }
+                    final int size = getByteSize((int)offsets[i]);
+                    if (size != addressSizes[i]) {
+                        addressSizes[i] = size;
+                        changed = true;
+                    }
+                    before += node.mChildrenSize;
+                }
+            }
+        }
+        int size = getPtNodeCountSize(count);
+        long childrenSize = 0;
+        for (int i = 0; i < count; i++) {
+            size += getHeaderSize(nodes.get(i)) + addressSizes[i];
+            childrenSize += nodes.get(i).mChildrenSize;
+        }
+        final byte[] buffer = new byte[size];
+        int pos = writePtNodeCount(buffer, 0, count);
+        for (int i = 0; i < count; i++) {
+            final ClosedPtNode node = nodes.get(i);
+            final boolean hasSeveralChars = node.mChars.length > 1;
+            pos = writeUIntToBuffer(buffer, pos, makePtNodeFlags(hasSeveralChars, node.mTerminal, addressSizes[i]),
+                    PTNODE_FLAGS_SIZE);
+            pos = CharEncoding.writeCharArray(node.mChars, buffer, pos);
+            if (hasSeveralChars) {
+                buffer[pos++] = PTNODE_CHARACTERS_TERMINATOR;
+            }
+            pos = writeUIntToBuffer(buffer, pos, (int)offsets[i], addressSizes[i]);
+        }
+        // The region of the subtree: the regions of the children, in order, then this.
+        long regionSize = size + TRAILER_SIZE;
+        for (ClosedPtNode node : nodes) {
+            regionSize += node.mRegionSize;
+        }
+        mSpill.write(buffer);
+        mSpill.writeInt(size);
+        mSpill.writeLong(regionSize);
+        mSpillSize += size + TRAILER_SIZE;
+        mNodeArrayCount++;
+        return size + childrenSize;
+    }
+
+    private static int getHeaderSize(ClosedPtNode node) {
+        return PTNODE_FLAGS_SIZE + 2 * node.mChars.length + (node.mChars.length > 1 ? PTNODE_TERMINATOR_SIZE : 0);
+    }
+
+    /**
+     * Copies the node arrays in preorder: a node array, then the subtrees of its PtNodes in
+     * order, which are the regions right before it in the spill.
+     */
+    private void copyInPreorder(MappedSpill spill, OutputStream out) throws IOException {
+        final ArrayDeque<long[]> regions = new ArrayDeque<>();
+        regions.push(new long[]{0, spill.mLength});
+        byte[] buffer = new byte[256];
+        while (!regions.isEmpty()) {
+            final long[] region = regions.pop();
+            final int size = (int)spill.readLong(region[1] - TRAILER_SIZE, buffer, 4);
+            final long arrayStart = region[1] - TRAILER_SIZE - size;
+            if (buffer.length < size) {
+                buffer = new byte[Math.max(size, buffer.length * 2)];
+            }
+            spill.read(arrayStart, buffer, size);
+            out.write(buffer, 0, size);
+            // Children regions from the last one, so that the first one is popped first.
+            long end = arrayStart;
+            while (end > region[0]) {
+                final long start = end - spill.readLong(end - 8, buffer, 8);
+                regions.push(new long[]{start, end});
+                end = start;
+            }
+        }
+    }
+
+    // The spill mapped in segments, since it may not fit a single buffer. Reads jump around,
+    // which costs a system call each on a file, and next to nothing on a mapping.
+    private static final class MappedSpill {
+        private static final int SEGMENT_SHIFT = 30;
+        final long mLength;
+        private final MappedByteBuffer[] mSegments;
+
+        MappedSpill(FileChannel channel) throws IOException {
+            mLength = channel.size();
+            mSegments = new MappedByteBuffer[(int)((mLength + (1L << SEGMENT_SHIFT) - 1) >>> SEGMENT_SHIFT)];
+            for (int i = 0; i < mSegments.length; i++) {
+                final long start = (long)i << SEGMENT_SHIFT;
+                mSegments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start,
+                        Math.min(1L << SEGMENT_SHIFT, mLength - start));
+            }
+        }
+
+        void read(long position, byte[] dst, int length) {
+            int offset = 0;
+            while (offset < length) {
+                final MappedByteBuffer segment = mSegments[(int)(position >>> SEGMENT_SHIFT)];
+                final int index = (int)(position & ((1L << SEGMENT_SHIFT) - 1));
+                final int n = Math.min(length - offset, segment.limit() - index);
+                segment.duplicate().position(index).get(dst, offset, n);
+                offset += n;
+                position += n;
+            }
+        }
+
+        // A big-endian value of size bytes, read through scratch.
+        long readLong(long position, byte[] scratch, int size) {
+            read(position, scratch, size);
+            long value = 0;
+            for (int i = 0; i < size; i++) {
+                value = (value << 8) | (scratch[i] & 0xFF);
+            }
+            return value;
+        }
+    }
+}
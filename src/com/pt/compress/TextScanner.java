@@ -0,0 +1,432 @@
+package com.pt.compress;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.util.Arrays;
+
+/**
+ * Finds every occurrence of every word of a dictionary in a text, in one pass over the text,
+ * with an Aho-Corasick automaton.
+ *
+ * The automaton has one state per distinct prefix of the words. Each state also has a
+ * failure link, to the state of its longest proper suffix that is a prefix of some word, and
+ * an output link, to the closest terminal state along its failure links.
+ *
+ * Everything a scan reads about a state, its char included, is in a single 32 bytes record
+ * of mStates, so that a step and its matches usually cost one cache miss. The children of a
+ * state are contiguous records sorted by char, so goto transitions are a binary search over
+ * them, except at the root which has a direct table. Child blocks are allocated depth first:
+ * the chains of single children that make up the ends of most words are consecutive
+ * records, which the hardware prefetches.
+ *
+ * {@link #writeTo} saves the automaton as a sidecar file, so that large dictionaries are
+ * compiled once.
+ *
+ * A word is identified by its ordinal: its index in the iteration order of the dictionary,
+ * which is the sorted order for {@link PatriciaTrie} and plain binary dictionaries.
+ *
+ * A scanner is immutable, and can be shared between threads. The state of a scan lives in
+ * {@link Session}, which carries matches across the chunks of a stream.
+ */
+public final class TextScanner {
+    private static final int MAGIC_NUMBER = 0x9BC13AFF;
+    private static final int VERSION = 1;
+    private static final int ROOT = 0;
+    private static final int NO_STATE = 0;
+    private static final int NOT_TERMINAL = -1;
+    private static final int READ_BUFFER_SIZE = 8192;
+
+    // Fields of a state record in mStates.
+    private static final int CHAR = 0;
+    private static final int FIRST_CHILD = 1;
+    private static final int CHILD_END = 2;
+    private static final int FAIL = 3;
+    // The state itself if terminal, else its output link: the first state to report.
+    private static final int REPORT = 4;
+    private static final int OUTPUT = 5;
+    private static final int ORDINAL = 6;
+    private static final int DEPTH = 7;
+    private static final int STRIDE = 8;
+
+    public interface MatchListener {
+        /**
+         * @param start the position of the first char of the match in the text.
+         * @param end the position after the last char of the match.
+         * @param wordOrdinal the ordinal of the word, see {@link #getWord}.
+         */
+        void onMatch(long start, long end, int wordOrdinal);
+    }
+
+    private final int mWordCount;
+    // The children of a state are the states from its FIRST_CHILD to its CHILD_END excluded,
+    // and CHAR is the char leading to a state.
+    private final int[] mStates;
+    // Only used to spell words out.
+    private final int[] mParent;
+    // Per word ordinal, its terminal state.
+    private final int[] mTerminals;
+    // Goto transitions of the root, by char, NO_STATE if none.
+    private final int[] mRootGoto = new int[Character.MAX_VALUE + 1];
+
+    private TextScanner(int wordCount, char[] chars, int[] firstChild, int[] childEnd, int[] parent,
+                        int[] ordinal) {
+        mWordCount = wordCount;
+        mParent = parent;
+        final int states = chars.length;
+        mStates = new int[states * STRIDE];
+        for (int s = 0; s < states; s++) {
+            final int record = s * STRIDE;
+            mStates[record + CHAR] = chars[s];
+            mStates[record + FIRST_CHILD] = firstChild[s];
+            mStates[record + CHILD_END] = childEnd[s];
+            mStates[record + ORDINAL] = ordinal[s];
+        }
+        mTerminals = new int[wordCount];
+        Arrays.fill(mTerminals, NO_STATE);
+        for (int s = firstChild[ROOT]; s < childEnd[ROOT]; s++) {
+            mRootGoto[chars[s]] = s;
+        }
+        // Failure links must be computed breadth first: the failure link of a state always
+        // points to a shallower one.
+        final int[] queue = new int[states];
+        int head = 0;
+        int tail = 0;
+        queue[tail++] = ROOT;
+        while (head < tail) {
+            final int s = queue[head++];
+            for (int c = firstChild[s]; c < childEnd[s]; c++) {
+                queue[tail++] = c;
+            }
+            if (s == ROOT) {
+                continue;
+            }
+            final int record = s * STRIDE;
+            final int parentState = mParent[s];
+            mStates[record + DEPTH] = mStates[parentState * STRIDE + DEPTH] + 1;
+            if (ordinal[s] != NOT_TERMINAL && mTerminals[ordinal[s]] == NO_STATE) {
+                mTerminals[ordinal[s]] = s;
+            }
+            int fail = NO_STATE;
+            if (parentState != ROOT) {
+                int f = mStates[parentState * STRIDE + FAIL];
+                while (true) {
+                    fail = next(f, chars[s]);
+                    if (fail != NO_STATE || f == ROOT) break;
+                    f = mStates[f * STRIDE + FAIL];
+                }
+            }
+            mStates[record + FAIL] = fail;
+            mStates[record + OUTPUT] = mStates[fail * STRIDE + REPORT];
+            mStates[record + REPORT] = ordinal[s] != NOT_TERMINAL ? s : mStates[record + OUTPUT];
+        }
+    }
+
+    /**
+     * Compiles the words of a dictionary, such as a {@link PatriciaTrie} or a
+     * {@link BinaryPatriciaTrie}. Empty words are ignored, and a word repeated keeps its
+     * first ordinal.
+     */
+    public static TextScanner compile(Iterable<String> words) {
+        // First as a tree of first child and next sibling links, siblings sorted by char.
+        final Builder builder = new Builder();
+        int ordinal = 0;
+        for (String word : words) {
+            builder.add(word, ordinal++);
+        }
+        return builder.build(ordinal);
+    }
+
+    private static final class Builder {
+        int mSize = 1;
+        char[] mChars = new char[1024];
+        int[] mChild = new int[1024];
+        int[] mSibling = new int[1024];
+        int[] mOrdinal = new int[1024];
+
+        Builder() {
+            mOrdinal[ROOT] = NOT_TERMINAL;
+        }
+
+        void add(String word, int ordinal) {
+            if (word.isEmpty()) {
+                return;
+            }
+            int state = ROOT;
+            for (int i = 0; i < word.length(); i++) {
+                state = child(state, word.charAt(i));
+            }
+            if (mOrdinal[state] == NOT_TERMINAL) {
+                mOrdinal[state] = ordinal;
+            }
+        }
+
+        // Finds or inserts the child with that char, keeping siblings sorted.
+        private int child(int state, char c) {
+            int previous = NO_STATE;
+            int s = mChild[state];
+            while (s != NO_STATE && mChars[s] < c) {
+                previous = s;
+                s = mSibling[s];
+            }
+            if (s != NO_STATE && mChars[s] == c) {
+                return s;
+            }
+            if (mSize == mChars.length) {
+                final int capacity = mSize * 2;
+                mChars = Arrays.copyOf(mChars, capacity);
+                mChild = Arrays.copyOf(mChild, capacity);
+                mSibling = Arrays.copyOf(mSibling, capacity);
+                mOrdinal = Arrays.copyOf(mOrdinal, capacity);
+            }
+            final int created = mSize++;
+            mChars[created] = c;
+            mOrdinal[created] = NOT_TERMINAL;
+            mSibling[created] = s;
+            if (previous == NO_STATE) {
+                mChild[state] = created;
+            } else {
+                mSibling[previous] = created;
+            }
+            return created;
+        }
+
+        // Renumbers the states so that the children of a state are contiguous, allocating the
+        // child blocks depth first with an explicit stack of states to expand.
+        TextScanner build(int wordCount) {
+            final int[] order = new int[mSize];
+            final char[] chars = new char[mSize];
+            final int[] firstChild = new int[mSize];
+            final int[] childEnd = new int[mSize];
+            final int[] parent = new int[mSize];
+            final int[] ordinal = new int[mSize];
+            ordinal[ROOT] = NOT_TERMINAL;
+            final int[] stack = new int[mSize];
+            int depth = 0;
+            stack[depth++] = ROOT;
+            int next = 1;
+            while (depth > 0) {
+                final int s = stack[--depth];
+                firstChild[s] = next;
+                for (int c = mChild[order[s]]; c != NO_STATE; c = mSibling[c]) {
+                    order[next] = c;
+                    chars[next] = mChars[c];
+                    parent[next] = s;
+                    ordinal[next] = mOrdinal[c];
+                    next++;
+                }
+                childEnd[s] = next;
+                // Pushed last to first, so that the first child is expanded right away.
+                for (int c = next - 1; c >= firstChild[s]; c--) {
+                    stack[depth++] = c;
+                }
+            }
+            return new TextScanner(wordCount, chars, firstChild, childEnd, parent, ordinal);
+        }
+    }
+
+    private int next(int state, char c) {
+        if (state == ROOT) {
+            return mRootGoto[c];
+        }
+        final int record = state * STRIDE;
+        int low = mStates[record + FIRST_CHILD];
+        int high = mStates[record + CHILD_END] - 1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            final int m = mStates[mid * STRIDE + CHAR];
+            if (m < c) {
+                low = mid + 1;
+            } else if (m > c) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return NO_STATE;
+    }
+
+    /**
+     * A scan in progress. Text given to successive {@link #feed} calls is scanned as one
+     * text, so words spanning chunks are found.
+     */
+    public final class Session {
+        private final MatchListener mListener;
+        private int mState = ROOT;
+        private long mPosition = 0;
+
+        Session(MatchListener listener) {
+            mListener = listener;
+        }
+
+        public void feed(char[] chars, int offset, int length) {
+            int state = mState;
+            long position = mPosition;
+            for (int i = offset; i < offset + length; i++) {
+                state = step(state, chars[i]);
+                position++;
+                if (mStates[state * STRIDE + REPORT] != NO_STATE) {
+                    report(state, position);
+                }
+            }
+            mState = state;
+            mPosition = position;
+        }
+
+        public void feed(CharSequence text) {
+            int state = mState;
+            long position = mPosition;
+            for (int i = 0; i < text.length(); i++) {
+                state = step(state, text.charAt(i));
+                position++;
+                if (mStates[state * STRIDE + REPORT] != NO_STATE) {
+                    report(state, position);
+                }
+            }
+            mState = state;
+            mPosition = position;
+        }
+
+        /**
+         * @return the number of chars scanned so far.
+         */
+        public long getPosition() {
+            return mPosition;
+        }
+
+        private void report(int state, long end) {
+            for (int s = mStates[state * STRIDE + REPORT]; s != NO_STATE; s = mStates[s * STRIDE + OUTPUT]) {
+                final int record = s * STRIDE;
+                mListener.onMatch(end - mStates[record + DEPTH], end, mStates[record + ORDINAL]);
+            }
+        }
+    }
+
+    private int step(int state, char c) {
+        while (true) {
+            final int next = next(state, c);
+            if (next != NO_STATE || state == ROOT) {
+                return next;
+            }
+            state = mStates[state * STRIDE + FAIL];
+        }
+    }
+
+    public Session newSession(MatchListener listener) {
+        return new Session(listener);
+    }
+
+    /**
+     * Scans a whole text, such as a String or a CharBuffer, from its first char. Matches are
+     * reported in the order of their ends, then from the longest to the shortest.
+     */
+    public void scan(CharSequence text, MatchListener listener) {
+        newSession(listener).feed(text);
+    }
+
+    /**
+     * Scans a stream to its end, a buffer at a time. The reader is not closed.
+     */
+    public void scan(Reader reader, MatchListener listener) throws IOException {
+        final Session session = newSession(listener);
+        final char[] buffer = new char[READ_BUFFER_SIZE];
+        int read;
+        while ((read = reader.read(buffer)) >= 0) {
+            session.feed(buffer, 0, read);
+        }
+    }
+
+    public int getWordCount() {
+        return mWordCount;
+    }
+
+    public int getStateCount() {
+        return mParent.length;
+    }
+
+    /**
+     * @return the word of an ordinal, or null if the ordinal was an empty or repeated word.
+     */
+    public String getWord(int wordOrdinal) {
+        final int state = mTerminals[wordOrdinal];
+        if (state == NO_STATE) {
+            return null;
+        }
+        final char[] word = new char[mStates[state * STRIDE + DEPTH]];
+        for (int s = state, i = word.length - 1; s != ROOT; s = mParent[s], i--) {
+            word[i] = (char)mStates[s * STRIDE + CHAR];
+        }
+        return new String(word);
+    }
+
+    /*
+     * Sidecar layout is as follows, big-endian:
+     *
+     * MAGIC_NUMBER, 4 bytes, VERSION, 4 bytes
+     * word count, state count, 4 bytes each
+     * per state, in order: char, 2 bytes
+     * per state, in order: first child, child end, parent, ordinal or -1, 4 bytes each
+     *
+     * Failure and output links and depths are recomputed on load, in a single linear pass.
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        final DataOutputStream data = new DataOutputStream(out);
+        data.writeInt(MAGIC_NUMBER);
+        data.writeInt(VERSION);
+        data.writeInt(mWordCount);
+        final int states = mParent.length;
+        data.writeInt(states);
+        for (int s = 0; s < states; s++) data.writeChar(mStates[s * STRIDE + CHAR]);
+        for (int s = 0; s < states; s++) data.writeInt(mStates[s * STRIDE + FIRST_CHILD]);
+        for (int s = 0; s < states; s++) data.writeInt(mStates[s * STRIDE + CHILD_END]);
+        for (int p : mParent) data.writeInt(p);
+        for (int s = 0; s < states; s++) data.writeInt(mStates[s * STRIDE + ORDINAL]);
+        data.flush();
+    }
+
+    public static TextScanner readFrom(InputStream in) throws IOException {
+        final DataInputStream data = new DataInputStream(in);
+        if (data.readInt() != MAGIC_NUMBER) {
+            throw new IOException("invalid text scanner format");
+        }
+        final int version = data.readInt();
+        if (version != VERSION) {
+            throw new IOException("unsupported text scanner version " + version);
+        }
+        final int wordCount = data.readInt();
+        final int states = data.readInt();
+        if (wordCount < 0 || states < 1) {
+            throw new IOException("invalid text scanner sizes " + wordCount + ", " + states);
+        }
+        final char[] chars = new char[states];
+        final int[] firstChild = new int[states];
+        final int[] childEnd = new int[states];
+        final int[] parent = new int[states];
+        final int[] ordinal = new int[states];
+        for (int i = 0; i < states; i++) chars[i] = data.readChar();
+        for (int i = 0; i < states; i++) firstChild[i] = data.readInt();
+        for (int i = 0; i < states; i++) childEnd[i] = data.readInt();
+        for (int i = 0; i < states; i++) parent[i] = data.readInt();
+        for (int i = 0; i < states; i++) ordinal[i] = data.readInt();
+        if (firstChild[ROOT] != 1 || ordinal[ROOT] != NOT_TERMINAL) {
+            throw new IOException("invalid text scanner root");
+        }
+        // Every state in a child block must name its owner as parent, so the blocks are
+        // disjoint and the states form a tree.
+        for (int i = 0; i < states; i++) {
+            if (parent[i] < 0 || parent[i] >= states || ordinal[i] < NOT_TERMINAL || ordinal[i] >= wordCount
+                    || firstChild[i] <= i || firstChild[i] > childEnd[i] || childEnd[i] > states) {
+                throw new IOException("invalid text scanner state " + i);
+            }
+            for (int c = firstChild[i]; c < childEnd[i]; c++) {
+                if (parent[c] != i) {
+                    throw new IOException("invalid text scanner state " + c);
+                }
+            }
+        }
+        return new TextScanner(wordCount, chars, firstChild, childEnd, parent, ordinal);
+    }
+}
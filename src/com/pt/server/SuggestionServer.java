@@ -0,0 +1,378 @@
+package com.pt.server;
+
+import com.pt.compress.BinaryPatriciaTrie;
+import com.pt.compress.PrefixCursor;
+import com.pt.compress.ReloadableDictionary;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Serves a {@link BinaryPatriciaTrie} on the loopback interface, one request per line:
+ *
+ *   contains <word>         OK true | OK false
+ *   search <prefix>         OK <count>[\t<word>]*   (at most {@link Options#maxResults} words)
+ *   top <k> <prefix>        OK <count>[\t<word>]*   (the first k completions, in order)
+ *
+ * Everything after the command, or after k, is the key, spaces included. Malformed requests,
+ * and requests not answered in time, get an "ERR <reason>" line; the connection stays open.
+ *
+ * Each connection is served by its own thread, which parses its requests and waits for their
+ * answers. The lookups themselves are queued to a single batcher thread, which drains all the
+ * requests that arrived within a short window and runs them together: sorted by key, through
+ * one {@link PrefixCursor}, so requests sharing a prefix share its descent, and identical
+ * requests are answered once.
+ *
+ * {@link #reload} swaps the dictionary for the next batches, without touching connections.
+ * Batches run on a lease of a {@link ReloadableDictionary}, so a dictionary file replaced
+ * while a batch reads it stays mapped until the batch is done.
+ */
+public class SuggestionServer implements Closeable {
+    public static final class Options {
+        int mReadTimeoutMillis = 60_000;
+        int mQueryTimeoutMillis = 1_000;
+        int mBatchWindowMicros = 200;
+        int mMaxBatchSize = 256;
+        int mMaxResults = 10_000;
+        ThreadFactory mConnectionThreads = daemonThreads("pt-connection-");
+
+        /**
+         * Closes a connection idle for that long. 0 waits forever.
+         */
+        public Options readTimeout(int millis) {
+            mReadTimeoutMillis = millis;
+            return this;
+        }
+
+        /**
+         * Answers "ERR timeout" to a request not served within that time.
+         */
+        public Options queryTimeout(int millis) {
+            mQueryTimeoutMillis = millis;
+            return this;
+        }
+
+        /**
+         * How long the batcher waits for more requests after the first one of a batch.
+         */
+        public Options batchWindow(int micros) {
+            mBatchWindowMicros = micros;
+            return this;
+        }
+
+        public Options maxBatchSize(int size) {
+            mMaxBatchSize = size;
+            return this;
+        }
+
+        public Options maxResults(int count) {
+            mMaxResults = count;
+            return this;
+        }
+
+        /**
+         * The threads serving connections, one per connection. On a JDK with virtual
+         * threads, pass Thread.ofVirtual().factory().
+         */
+        public Options connectionThreads(ThreadFactory factory) {
+            mConnectionThreads = factory;
+            return this;
+        }
+    }
+
+    private static final int CONTAINS = 0;
+    private static final int SEARCH = 1;
+    private static final int TOP = 2;
+
+    private static final class Request {
+        final int mType;
+        final String mKey;
+        final int mLimit;
+        final CompletableFuture<String> mResponse = new CompletableFuture<>();
+
+        Request(int type, String key, int limit) {
+            mType = type;
+            mKey = key;
+            mLimit = limit;
+        }
+
+        boolean isSameQuery(Request other) {
+            return mType == other.mType && mLimit == other.mLimit && mKey.equals(other.mKey);
+        }
+    }
+
+    // Same key order as the dictionary, so the cursor only moves forward in it.
+    private static final Comparator<Request> REQUEST_ORDER = Comparator
+            .comparing((Request r) -> r.mKey)
+            .thenComparingInt(r -> r.mType)
+            .thenComparingInt(r -> r.mLimit);
+
+    private final Options mOptions;
+    private final ServerSocket mServerSocket;
+    private final ExecutorService mConnections;
+    private final Set<Socket> mSockets = ConcurrentHashMap.newKeySet();
+    private final LinkedBlockingQueue<Request> mQueue = new LinkedBlockingQueue<>();
+    private final Thread mAcceptor;
+    private final Thread mBatcher;
+    private final ReloadableDictionary mDictionary;
+    private volatile boolean mClosed = false;
+    // Requests parsed and not answered yet, queued or not.
+    private final AtomicInteger mInFlight = new AtomicInteger();
+    private final LongAdder mRequests = new LongAdder();
+    private final LongAdder mBatches = new LongAdder();
+
+    /**
+     * Starts serving right away.
+     *
+     * @param port the loopback port to listen to, or 0 for any free one, see {@link #getPort}.
+     */
+    public SuggestionServer(BinaryPatriciaTrie dictionary, int port, Options options) throws IOException {
+        mDictionary = new ReloadableDictionary(dictionary);
+        mOptions = options;
+        mServerSocket = new ServerSocket(port, 0, InetAddress.getLoopbackAddress());
+        mConnections = Executors.newCachedThreadPool(options.mConnectionThreads);
+        mBatcher = daemonThreads("pt-batcher").newThread(this::runBatches);
+        mAcceptor = daemonThreads("pt-acceptor").newThread(this::acceptConnections);
+        mBatcher.start();
+        mAcceptor.start();
+    }
+
+    public int getPort() {
+        return mServerSocket.getLocalPort();
+    }
+
+    /**
+     * Serves the next batches from another dictionary. Batches already running finish on
+     * the previous one.
+     */
+    public void reload(BinaryPatriciaTrie dictionary) {
+        mDictionary.replace(dictionary);
+    }
+
+    /**
+     * Maps and validates a dictionary file, then serves the next batches from it, see
+     * {@link ReloadableDictionary#reload}. The previous file is unmapped once the batches
+     * reading it are done.
+     */
+    public void reload(File dictionary) throws IOException {
+        mDictionary.reload(dictionary);
+    }
+
+    public ReloadableDictionary getDictionary() {
+        return mDictionary;
+    }
+
+    public long getRequestCount() {
+        return mRequests.sum();
+    }
+
+    public long getBatchCount() {
+        return mBatches.sum();
+    }
+
+    private void acceptConnections() {
+        while (!mClosed) {
+            try {
+                final Socket socket = mServerSocket.accept();
+                mSockets.add(socket);
+                mConnections.execute(() -> serve(socket));
+            } catch (IOException e) {
+                // Closing the server socket ends the loop.
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try (Socket s = socket;
+             BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+             BufferedWriter out = new BufferedWriter(new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8))) {
+            s.setSoTimeout(mOptions.mReadTimeoutMillis);
+            s.setTcpNoDelay(true);
+            String line;
+            while ((line = in.readLine()) != null) {
+                out.write(answer(line));
+                out.write('\n');
+                // Pipelined requests are answered together.
+                if (!in.ready()) {
+                    out.flush();
+                }
+            }
+        } catch (SocketTimeoutException | SocketException e) {
+            // Idle connection, or closed on either side.
+        } catch (IOException e) {
+            // Nothing to answer to anymore.
+        } finally {
+            mSockets.remove(socket);
+        }
+    }
+
+    private String answer(String line) {
+        final Request request;
+        try {
+            request = parse(line);
+        } catch (IllegalArgumentException e) {
+            return "ERR " + e.getMessage();
+        }
+        mRequests.increment();
+        mInFlight.incrementAndGet();
+        mQueue.add(request);
+        try {
+            return request.mResponse.get(mOptions.mQueryTimeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            return "ERR timeout";
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return "ERR interrupted";
+        } catch (ExecutionException e) {
+            return "ERR " + e.getCause();
+        } finally {
+            mInFlight.decrementAndGet();
+        }
+    }
+
+    private Request parse(String line) {
+        final int space = line.indexOf(' ');
+        final String command = space < 0 ? line : line.substring(0, space);
+        final String rest = space < 0 ? "" : line.substring(space + 1);
+        switch (command) {
+            case "contains":
+                return new Request(CONTAINS, rest, 0);
+            case "search":
+                return new Request(SEARCH, rest, mOptions.mMaxResults);
+            case "top": {
+                final int keyStart = rest.indexOf(' ');
+                try {
+                    final int k = Integer.parseInt(keyStart < 0 ? rest : rest.substring(0, keyStart));
+                    if (k < 0) {
+                        throw new IllegalArgumentException("negative k");
+                    }
+                    return new Request(TOP, keyStart < 0 ? "" : rest.substring(keyStart + 1),
+                            Math.min(k, mOptions.mMaxResults));
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("invalid k");
+                }
+            }
+            default:
+                throw new IllegalArgumentException("unknown command " + command);
+        }
+    }
+
+    private void runBatches() {
+        final ArrayList<Request> batch = new ArrayList<>();
+        while (!mClosed) {
+            try {
+                batch.add(mQueue.take());
+                final long deadline = System.nanoTime() + mOptions.mBatchWindowMicros * 1000L;
+                // Only wait for requests that are on their way: a lone client is never delayed.
+                while (batch.size() < mOptions.mMaxBatchSize && mInFlight.get() > batch.size()) {
+                    final long wait = deadline - System.nanoTime();
+                    final Request next = wait > 0 ? mQueue.poll(wait, TimeUnit.NANOSECONDS) : mQueue.poll();
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+                try (ReloadableDictionary.Lease lease = mDictionary.acquire()) {
+                    runBatch(lease.get(), batch);
+                }
+            } catch (InterruptedException e) {
+                break;
+            } catch (RuntimeException e) {
+                for (Request r : batch) {
+                    r.mResponse.completeExceptionally(e);
+                }
+            }
+            batch.clear();
+        }
+    }
+
+    private void runBatch(BinaryPatriciaTrie dictionary, List<Request> batch) {
+        mBatches.increment();
+        batch.sort(REQUEST_ORDER);
+        final PrefixCursor cursor = dictionary.newCursor();
+        String typed = "";
+        Request previous = null;
+        String previousResponse = null;
+        for (Request request : batch) {
+            if (previous != null && previous.isSameQuery(request)) {
+                request.mResponse.complete(previousResponse);
+                continue;
+            }
+            // Only retype the chars that differ from the previous key.
+            final String key = request.mKey;
+            int common = 0;
+            final int max = Math.min(typed.length(), key.length());
+            while (common < max && typed.charAt(common) == key.charAt(common)) {
+                common++;
+            }
+            for (int i = typed.length(); i > common; i--) {
+                cursor.backspace();
+            }
+            for (int i = common; i < key.length(); i++) {
+                cursor.advance(key.charAt(i));
+            }
+            typed = key;
+            final String response = request.mType == CONTAINS
+                    ? (cursor.isWord() ? "OK true" : "OK false")
+                    : format(cursor.completions(request.mLimit));
+            request.mResponse.complete(response);
+            previous = request;
+            previousResponse = response;
+        }
+    }
+
+    private static String format(List<String> words) {
+        final StringBuilder sb = new StringBuilder("OK ").append(words.size());
+        for (String word : words) {
+            sb.append('\t').append(word);
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public void close() throws IOException {
+        mClosed = true;
+        mServerSocket.close();
+        mBatcher.interrupt();
+        for (Socket socket : mSockets) {
+            socket.close();
+        }
+        mConnections.shutdownNow();
+        mDictionary.close();
+    }
+
+    private static ThreadFactory daemonThreads(String name) {
+        final AtomicInteger count = new AtomicInteger();
+        return r -> {
+            final Thread t = new Thread(r, name.endsWith("-") ? name + count.incrementAndGet() : name);
+            t.setDaemon(true);
+            return t;
+        };
+    }
+}
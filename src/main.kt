@@ -1,4 +1,5 @@
 import com.pt.PTParser
+import com.pt.PTValidator
 import com.pt.compress.BinaryPatriciaTrie
 import com.pt.compress.PatriciaTrie
 import com.pt.compress.PatriciaTrieEncoder
@@ -38,18 +39,36 @@ fun main() {
     println("dump finished, took time $encodeTime ms")
 
     val bpt = BinaryPatriciaTrie(dict)
+    // The trie iterates in order, so the binary dictionary is checked against it in a
+    // single merge pass, without holding the words a second time.
+    val checkTime = measureTimeMillis {
+        println("structure: ${bpt.checkStructure()}")
+        PTValidator(bpt, true).validate(pt.iterator())
+    }
+    println("binary dictionary checked, took time $checkTime ms")
 
+    // Keep a single cursor across inputs, like a typing session: only the chars that
+    // differ from the previous input are backspaced and typed again.
+    val cursor = bpt.newCursor()
     var key = readLine()
     while (key != null) {
+        val typed = cursor.prefix
+        val common = typed.commonPrefixWith(key).length
+        repeat(typed.length - common) { cursor.backspace() }
+        for (i in common until key.length) {
+            cursor.advance(key[i])
+        }
         if (key.length <= 3) {
             println("skip suggestions")
-            continue
-        }
-        print("suggestions for $key: ")
-        for (v in bpt.search(key)) {
-            print("$v ")
+        } else {
+            print("suggestions for $key: ")
+            for (v in cursor.completions(SUGGESTIONS_LIMIT)) {
+                print("$v ")
+            }
+            println()
         }
-        println()
         key = readLine()
     }
 }
+
+const val SUGGESTIONS_LIMIT = 18